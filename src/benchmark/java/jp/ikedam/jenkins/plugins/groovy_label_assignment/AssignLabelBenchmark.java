@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import hudson.model.Action;
+import hudson.model.BooleanParameterValue;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks {@link GroovyLabelAssignmentProperty#assignLabel(hudson.model.AbstractProject, List)}
+ * with scripts of different costs.
+ * 
+ * Each invocation is submitted with a distinct parameter
+ * so that labels decided for recent submissions are never reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AssignLabelBenchmark
+{
+    /**
+     * Scripts to benchmark.
+     */
+    public static enum ScriptKind
+    {
+        /**
+         * Returns a label with a trivial check.
+         * Not a constant, which is returned without running the script.
+         */
+        TRIVIAL("return (currentJob != null) ? \"test1\" : \"test2\";"),
+        /**
+         * Decides the label from parameters as typical scripts do.
+         */
+        REALISTIC(
+                "def labelMap = [arm: \"armcc\", win: \"vs2010\", linux: \"gcc\"];\n"
+                + "def label = labelMap.get(PLATFORM);\n"
+                + "return (RELEASE == \"true\") ? \"${label}&&RELEASE\" : \"${label}&&!RELEASE\";"
+        ),
+        /**
+         * Does some computation before returning the label.
+         */
+        HEAVY(
+                "def candidates = [];\n"
+                + "for(int i = 0; i < 1000; ++i) {\n"
+                + "    candidates.add(\"${PLATFORM}-${i % 16}\");\n"
+                + "}\n"
+                + "def label = candidates.unique().sort().find { it.endsWith(\"-${BRANCH.length() % 16}\") };\n"
+                + "return \"${label}||${PLATFORM}\";"
+        ),
+        ;
+        
+        private final String script;
+        
+        private ScriptKind(String script)
+        {
+            this.script = script;
+        }
+        
+        public String getScript()
+        {
+            return script;
+        }
+    }
+    
+    @Param
+    public ScriptKind scriptKind;
+    
+    private FreeStyleProject project;
+    private GroovyLabelAssignmentProperty property;
+    private int sequence;
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        project = LabelAssignmentBenchmarkRunner.prepareProject(
+                String.format("assignLabel-%s", scriptKind.name().toLowerCase(Locale.ENGLISH)),
+                scriptKind.getScript()
+        );
+        property = project.getProperty(GroovyLabelAssignmentProperty.class);
+    }
+    
+    @Benchmark
+    public List<Action> assignLabel()
+    {
+        List<Action> buildActions = new ArrayList<Action>();
+        buildActions.add(new ParametersAction(
+                new StringParameterValue("PLATFORM", "linux"),
+                new BooleanParameterValue("RELEASE", true),
+                new StringParameterValue("BRANCH", "feature/benchmark"),
+                new StringParameterValue("SEQUENCE", Integer.toString(++sequence))
+        ));
+        if(!property.assignLabel(project, buildActions))
+        {
+            throw new IllegalStateException(String.format("Failed to assign label with %s", scriptKind));
+        }
+        return buildActions;
+    }
+}
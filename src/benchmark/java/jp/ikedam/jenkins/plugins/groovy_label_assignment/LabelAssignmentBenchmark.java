@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import groovy.lang.Binding;
+import hudson.model.Action;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import hudson.model.labels.LabelExpression;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import antlr.ANTLRException;
+
+/**
+ * Benchmarks steps of the label assignment other than running scripts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LabelAssignmentBenchmark
+{
+    private static final String LABEL_STRING = "(linux||mac)&&x64&&!RELEASE";
+    
+    private FreeStyleProject project;
+    private GroovyLabelAssignmentProperty property;
+    private List<Action> actions;
+    private GroovyLabelAssignmentAction labelAction;
+    
+    @Setup
+    public void setUp() throws Exception
+    {
+        project = LabelAssignmentBenchmarkRunner.prepareProject("labelAssignment", "return \"test1\";");
+        property = project.getProperty(GroovyLabelAssignmentProperty.class);
+        actions = Arrays.<Action>asList(new ParametersAction(
+                new StringParameterValue("PARAM1", "value1"),
+                new StringParameterValue("PARAM2", "${PARAM1}-value2"),
+                new StringParameterValue("PARAM3", "value3"),
+                new StringParameterValue("PARAM4", "value4"),
+                new StringParameterValue("PARAM5", "value5")
+        ));
+        labelAction = new GroovyLabelAssignmentAction(LABEL_STRING);
+    }
+    
+    @Benchmark
+    public Binding createBinding()
+    {
+        return property.createBinding(project, actions);
+    }
+    
+    /**
+     * Includes building environment variables, which {@link #createBinding()} delays.
+     */
+    @Benchmark
+    public Object createBindingAndReadVariable()
+    {
+        return property.createBinding(project, actions).getVariable("PARAM2");
+    }
+    
+    /**
+     * Baseline for {@link #validateLabel()}.
+     */
+    @Benchmark
+    public Label parseLabelExpression() throws ANTLRException
+    {
+        return LabelExpression.parseExpression(LABEL_STRING);
+    }
+    
+    @Benchmark
+    public Label validateLabel() throws ANTLRException
+    {
+        return LabelCache.parse(LABEL_STRING);
+    }
+    
+    @Benchmark
+    public Label getAssignedLabel()
+    {
+        return labelAction.getAssignedLabel();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+import hudson.model.FreeStyleProject;
+
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ClasspathEntry;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Launches Jenkins and runs benchmarks in the same JVM.
+ * 
+ * Run with <code>mvn -P benchmark test</code>.
+ * Following system properties are available:
+ * <dl>
+ *   <dt>benchmark.include</dt>
+ *   <dd>regular expression to select benchmarks</dd>
+ *   <dt>benchmark.warmupIterations</dt>
+ *   <dd>number of warmup iterations (default 5)</dd>
+ *   <dt>benchmark.measurementIterations</dt>
+ *   <dd>number of measurement iterations (default 5)</dd>
+ * </dl>
+ * 
+ * Results are written to target/jmh-result.json.
+ * Allocation rates are reported as gc.alloc.rate.norm.
+ */
+public class LabelAssignmentBenchmarkRunner
+{
+    @Rule
+    public GroovyLabelAssignmentJenkinsRule j = new GroovyLabelAssignmentJenkinsRule();
+    
+    @Test
+    public void runBenchmarks() throws Exception
+    {
+        // labels are logged for every assignment.
+        Logger.getLogger(GroovyLabelAssignmentProperty.class.getName()).setLevel(Level.WARNING);
+        
+        // Benchmarks cannot be forked,
+        // as they need Jenkins launched in this JVM.
+        Options options = new OptionsBuilder()
+                .include(System.getProperty("benchmark.include", ".*Benchmark\\..*"))
+                .forks(0)
+                .warmupIterations(Integer.getInteger("benchmark.warmupIterations", 5))
+                .measurementIterations(Integer.getInteger("benchmark.measurementIterations", 5))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-result.json")
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+        assertFalse(results.isEmpty());
+    }
+    
+    /**
+     * Creates a project with {@link GroovyLabelAssignmentProperty}.
+     * 
+     * The project is reused if already exists.
+     * 
+     * @param name
+     * @param script script not using the sandbox. It is approved here.
+     * @return the project.
+     * @throws Exception
+     */
+    public static FreeStyleProject prepareProject(String name, String script) throws Exception
+    {
+        Jenkins jenkins = Jenkins.getInstance();
+        FreeStyleProject project = jenkins.getItemByFullName(name, FreeStyleProject.class);
+        if(project == null)
+        {
+            project = jenkins.createProject(FreeStyleProject.class, name);
+        }
+        ScriptApproval.get().configuring(script, GroovyLanguage.get(), ApprovalContext.create());
+        project.removeProperty(GroovyLabelAssignmentProperty.class);
+        project.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(script, false, Collections.<ClasspathEntry>emptyList())
+        ));
+        return project;
+    }
+}
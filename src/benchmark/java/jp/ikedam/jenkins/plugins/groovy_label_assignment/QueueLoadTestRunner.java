@@ -0,0 +1,350 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.TextAxis;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.BooleanParameterValue;
+import hudson.model.FreeStyleProject;
+import hudson.model.ParametersAction;
+import hudson.model.Queue;
+import hudson.model.Queue.QueueDecisionHandler;
+import hudson.model.StringParameterValue;
+
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ClasspathEntry;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the overhead of {@link GroovyLabelAssignmentProperty} on the build queue.
+ * 
+ * Creates freestyle and multi-configuration jobs,
+ * and schedules them from multiple threads
+ * without and with {@link GroovyLabelAssignmentProperty}.
+ * Jenkins has no executors, and builds stay in the queue.
+ * For each run, following are reported:
+ * <dl>
+ *   <dt>enqueue</dt>
+ *   <dd>throughput and latencies of {@link Queue#schedule(hudson.model.Queue.Task, int, List)},
+ *   which includes waiting for the queue lock</dd>
+ *   <dt>shouldSchedule</dt>
+ *   <dd>throughput and latencies of {@link GroovyLabelAssignmentQueueDecisionHandler} called directly</dd>
+ * </dl>
+ * and the increase of the used heap after a full GC.
+ * 
+ * Run with <code>mvn -P benchmark test -Dtest=QueueLoadTestRunner</code>.
+ * This is not run with other benchmarks as it takes long.
+ * Following system properties are available:
+ * <dl>
+ *   <dt>loadtest.jobs</dt>
+ *   <dd>number of freestyle jobs (default 200)</dd>
+ *   <dt>loadtest.matrixJobs</dt>
+ *   <dd>number of multi-configuration jobs with 5 configurations (default 20)</dd>
+ *   <dt>loadtest.threads</dt>
+ *   <dd>number of threads scheduling builds (default 8)</dd>
+ *   <dt>loadtest.submissions</dt>
+ *   <dd>number of builds scheduled in each run (default 5000)</dd>
+ *   <dt>loadtest.distinctValues</dt>
+ *   <dd>number of distinct parameter values (default 50)</dd>
+ *   <dt>loadtest.script</dt>
+ *   <dd>script to assign labels: TRIVIAL, REALISTIC or HEAVY (default REALISTIC).
+ *   See {@link AssignLabelBenchmark.ScriptKind}.</dd>
+ *   <dt>loadtest.recentSubmissionWindowMillis</dt>
+ *   <dd>milliseconds to reuse labels for duplicate submissions of deterministic jobs (default 0).
+ *   See {@link RecentSubmissions}.</dd>
+ * </dl>
+ * 
+ * Results are written to target/loadtest-result.txt, and logged also.
+ */
+public class QueueLoadTestRunner
+{
+    static private final Logger LOGGER = Logger.getLogger(QueueLoadTestRunner.class.getName());
+    
+    @Rule
+    public GroovyLabelAssignmentJenkinsRule j = new GroovyLabelAssignmentJenkinsRule();
+    
+    private final int jobs = Integer.getInteger("loadtest.jobs", 200);
+    private final int matrixJobs = Integer.getInteger("loadtest.matrixJobs", 20);
+    private final int threads = Integer.getInteger("loadtest.threads", 8);
+    private final int submissions = Integer.getInteger("loadtest.submissions", 5000);
+    private final int distinctValues = Integer.getInteger("loadtest.distinctValues", 50);
+    private final AssignLabelBenchmark.ScriptKind scriptKind
+            = AssignLabelBenchmark.ScriptKind.valueOf(System.getProperty("loadtest.script", "REALISTIC"));
+    private final long recentSubmissionWindowMillis = Long.getLong("loadtest.recentSubmissionWindowMillis", 0L);
+    
+    /**
+     * Result of a run.
+     */
+    private static class Result
+    {
+        private final long calls;
+        private final long elapsedNanos;
+        private final long[] latencyNanos;
+        
+        private Result(long elapsedNanos, long[] latencyNanos)
+        {
+            this.calls = latencyNanos.length;
+            this.elapsedNanos = elapsedNanos;
+            this.latencyNanos = latencyNanos;
+            Arrays.sort(this.latencyNanos);
+        }
+        
+        private double getThroughput()
+        {
+            return calls * 1000000000.0 / elapsedNanos;
+        }
+        
+        private double getPercentileMicros(double percentile)
+        {
+            if(latencyNanos.length == 0)
+            {
+                return 0;
+            }
+            int index = (int)Math.ceil(percentile / 100.0 * latencyNanos.length) - 1;
+            return latencyNanos[Math.max(0, index)] / 1000.0;
+        }
+    }
+    
+    /**
+     * Schedules a build.
+     */
+    private static interface Submitter
+    {
+        public void submit(AbstractProject<?, ?> task, List<Action> actions) throws Exception;
+    }
+    
+    @Test
+    public void runLoadTest() throws Exception
+    {
+        // labels are logged for every assignment.
+        Logger.getLogger(GroovyLabelAssignmentProperty.class.getName()).setLevel(Level.WARNING);
+        j.jenkins.setNumExecutors(0);
+        GroovyLabelAssignmentConfiguration.get().setRecentSubmissionWindowMillis(recentSubmissionWindowMillis);
+        
+        List<AbstractProject<?, ?>> projects = new ArrayList<AbstractProject<?, ?>>();
+        List<AbstractProject<?, ?>> tasks = new ArrayList<AbstractProject<?, ?>>();
+        for(int i = 0; i < jobs; ++i)
+        {
+            FreeStyleProject p = j.createFreeStyleProject(String.format("freestyle%d", i));
+            projects.add(p);
+            tasks.add(p);
+        }
+        for(int i = 0; i < matrixJobs; ++i)
+        {
+            MatrixProject p = j.createMatrixProject(String.format("matrix%d", i));
+            p.setAxes(new AxisList(new TextAxis("axis1", "a", "b", "c", "d", "e")));
+            projects.add(p);
+            tasks.addAll(p.getActiveConfigurations());
+        }
+        ScriptApproval.get().configuring(scriptKind.getScript(), GroovyLanguage.get(), ApprovalContext.create());
+        
+        final Queue queue = j.jenkins.getQueue();
+        final QueueDecisionHandler handler = QueueDecisionHandler.all().get(GroovyLabelAssignmentQueueDecisionHandler.class);
+        Submitter enqueue = new Submitter() {
+            public void submit(AbstractProject<?, ?> task, List<Action> actions)
+            {
+                queue.schedule(task, 0, actions);
+            }
+        };
+        Submitter shouldSchedule = new Submitter() {
+            public void submit(AbstractProject<?, ?> task, List<Action> actions)
+            {
+                handler.shouldSchedule(task, actions);
+            }
+        };
+        
+        File resultFile = new File("target/loadtest-result.txt");
+        resultFile.getParentFile().mkdirs();
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(resultFile), "UTF-8"));
+        try
+        {
+            report(out, String.format(
+                    "%d tasks (%d freestyle jobs, %d multi-configuration jobs), %d threads, %d submissions, script %s",
+                    tasks.size(), jobs, matrixJobs, threads, submissions, scriptKind
+            ));
+            report(out, String.format("%-8s %-15s %10s %12s %10s %10s %10s",
+                    "plugin", "pass", "calls", "calls/sec", "p50(us)", "p99(us)", "heap(MB)"));
+            for(boolean withPlugin: new boolean[]{false, true})
+            {
+                configure(projects, withPlugin);
+                
+                queue.clear();
+                long heap = usedHeap();
+                Result enqueueResult = run(tasks, enqueue);
+                long enqueueHeap = usedHeap() - heap;
+                report(out, withPlugin, "enqueue", enqueueResult, enqueueHeap);
+                
+                queue.clear();
+                heap = usedHeap();
+                Result shouldScheduleResult = run(tasks, shouldSchedule);
+                report(out, withPlugin, "shouldSchedule", shouldScheduleResult, usedHeap() - heap);
+                
+                assertEquals(submissions, enqueueResult.calls);
+            }
+        }
+        finally
+        {
+            out.close();
+            queue.clear();
+        }
+    }
+    
+    private void configure(List<AbstractProject<?, ?>> projects, boolean withPlugin) throws Exception
+    {
+        for(AbstractProject<?, ?> p: projects)
+        {
+            p.removeProperty(GroovyLabelAssignmentProperty.class);
+            if(withPlugin)
+            {
+                p.addProperty(new GroovyLabelAssignmentProperty(
+                        new SecureGroovyScript(scriptKind.getScript(), false, Collections.<ClasspathEntry>emptyList())
+                ));
+            }
+        }
+    }
+    
+    private List<Action> createActions(int index)
+    {
+        int value = index % distinctValues;
+        return new ArrayList<Action>(Arrays.<Action>asList(new ParametersAction(
+                new StringParameterValue("PLATFORM", (value % 3 == 0) ? "win" : "linux"),
+                new BooleanParameterValue("RELEASE", value % 2 == 0),
+                new StringParameterValue("BRANCH", String.format("feature/branch%d", value))
+        )));
+    }
+    
+    private Result run(final List<AbstractProject<?, ?>> tasks, final Submitter submitter) throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+            for(int t = 0; t < threads; ++t)
+            {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<long[]>() {
+                    public long[] call() throws Exception
+                    {
+                        List<Long> latencies = new ArrayList<Long>();
+                        start.await();
+                        for(int i = thread; i < submissions; i += threads)
+                        {
+                            AbstractProject<?, ?> task = tasks.get(i % tasks.size());
+                            List<Action> actions = createActions(i);
+                            long begin = System.nanoTime();
+                            submitter.submit(task, actions);
+                            latencies.add(System.nanoTime() - begin);
+                        }
+                        long[] result = new long[latencies.size()];
+                        for(int i = 0; i < result.length; ++i)
+                        {
+                            result[i] = latencies.get(i);
+                        }
+                        return result;
+                    }
+                }));
+            }
+            
+            long begin = System.nanoTime();
+            start.countDown();
+            List<long[]> results = new ArrayList<long[]>();
+            int total = 0;
+            for(Future<long[]> f: futures)
+            {
+                long[] result = f.get();
+                results.add(result);
+                total += result.length;
+            }
+            long elapsed = System.nanoTime() - begin;
+            
+            long[] latencies = new long[total];
+            int pos = 0;
+            for(long[] result: results)
+            {
+                System.arraycopy(result, 0, latencies, pos, result.length);
+                pos += result.length;
+            }
+            return new Result(elapsed, latencies);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; ++i)
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static void report(PrintWriter out, boolean withPlugin, String pass, Result result, long heapBytes)
+    {
+        report(out, String.format("%-8s %-15s %10d %12.1f %10.1f %10.1f %10.1f",
+                withPlugin ? "with" : "without",
+                pass,
+                result.calls,
+                result.getThroughput(),
+                result.getPercentileMicros(50),
+                result.getPercentileMicros(99),
+                heapBytes / 1024.0 / 1024.0
+        ));
+    }
+    
+    private static void report(PrintWriter out, String line)
+    {
+        LOGGER.info(line);
+        out.println(line);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.scriptsecurity.scripts.ClasspathEntry;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.UnapprovedClasspathException;
+import org.jenkinsci.plugins.scriptsecurity.scripts.UnapprovedUsageException;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+
+/**
+ * Cache of approvals of label scripts and classpath entries.
+ * 
+ * {@link ScriptApproval} computes the hash of a script
+ * (or of the contents of a classpath entry) each time it is used.
+ * This remembers scripts and classpath entries once they are approved,
+ * so that an unchanged script is verified with a lookup of this cache.
+ * 
+ * Only approvals are cached: unapproved usages are always passed to
+ * {@link ScriptApproval} so that they are reported as pending.
+ * The cache is dropped entirely when {@link ScriptApproval} is saved,
+ * which happens whenever approvals are changed,
+ * and when {@link ScriptApproval} is replaced with another instance
+ * (e.g. Jenkins is restarted in the same JVM), which is not notified with saving.
+ * Scripts are cached with their contents and classpath entries with
+ * their timestamps, so reconfigured scripts or replaced files are always
+ * verified again.
+ * Directories (and entries other than local files) are never cached,
+ * as their timestamps don't change when files in them are modified.
+ * 
+ * @since 1.2.1
+ */
+public class ApprovalCache
+{
+    static private final Logger LOGGER = Logger.getLogger(ApprovalCache.class.getName());
+    
+    /**
+     * Maximum number of scripts and classpath entries to hold.
+     */
+    static public final int MAX_SIZE = Integer.getInteger(ApprovalCache.class.getName() + ".maxSize", 256);
+    
+    static private final Map<String, Boolean> approvedScripts = new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+        {
+            return size() > MAX_SIZE;
+        }
+    };
+    
+    static private final Map<String, Boolean> approvedClasspath = new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+        {
+            return size() > MAX_SIZE;
+        }
+    };
+    
+    /**
+     * Incremented when the cache is dropped,
+     * not to cache approvals checked before that.
+     */
+    static private final AtomicLong generation = new AtomicLong();
+    
+    /**
+     * {@link ScriptApproval} the cached approvals are checked with.
+     */
+    static private WeakReference<ScriptApproval> checkedApproval = new WeakReference<ScriptApproval>(null);
+    
+    static private final AtomicLong hitCount = new AtomicLong();
+    static private final AtomicLong missCount = new AtomicLong();
+    
+    private ApprovalCache()
+    {
+    }
+    
+    /**
+     * Checks a non-sandboxed groovy script is approved.
+     * 
+     * @param script
+     * @throws UnapprovedUsageException the script is not approved.
+     * @see ScriptApproval#using(String, org.jenkinsci.plugins.scriptsecurity.scripts.Language)
+     */
+    public static void using(String script) throws UnapprovedUsageException
+    {
+        ScriptApproval approval = getScriptApproval();
+        if(isCached(approvedScripts, script))
+        {
+            return;
+        }
+        long current = generation.get();
+        approval.using(script, GroovyLanguage.get());
+        cache(approvedScripts, script, current);
+    }
+    
+    /**
+     * Checks a classpath entry is approved.
+     * 
+     * @param entry
+     * @throws UnapprovedClasspathException the classpath entry is not approved.
+     * @see ScriptApproval#using(ClasspathEntry)
+     */
+    public static void using(ClasspathEntry entry) throws UnapprovedClasspathException
+    {
+        ScriptApproval approval = getScriptApproval();
+        String key = getKey(entry.getURL());
+        if(key == null)
+        {
+            missCount.incrementAndGet();
+            approval.using(entry);
+            return;
+        }
+        if(isCached(approvedClasspath, key))
+        {
+            return;
+        }
+        long current = generation.get();
+        approval.using(entry);
+        cache(approvedClasspath, key, current);
+    }
+    
+    /**
+     * Returns {@link ScriptApproval}, dropping the cache if it is replaced.
+     * 
+     * @return the current {@link ScriptApproval}
+     */
+    private static ScriptApproval getScriptApproval()
+    {
+        ScriptApproval approval = ScriptApproval.get();
+        synchronized(ApprovalCache.class)
+        {
+            if(checkedApproval.get() != approval)
+            {
+                clear();
+                checkedApproval = new WeakReference<ScriptApproval>(approval);
+            }
+        }
+        return approval;
+    }
+    
+    /**
+     * Returns the key for a classpath entry.
+     * 
+     * Files are identified with their timestamps and sizes,
+     * as approvals of classpath entries are for their contents.
+     * 
+     * @param url
+     * @return the key. null if the entry cannot be cached.
+     */
+    static String getKey(URL url)
+    {
+        if(!"file".equals(url.getProtocol()))
+        {
+            // contents may change without notice.
+            return null;
+        }
+        File file;
+        try
+        {
+            file = new File(url.toURI());
+        }
+        catch(URISyntaxException e)
+        {
+            file = new File(url.getPath());
+        }
+        if(!file.isFile())
+        {
+            // directories are not modified when files in them are modified.
+            return null;
+        }
+        return String.format("%s@%d:%d", url, file.lastModified(), file.length());
+    }
+    
+    private static boolean isCached(Map<String, Boolean> cache, String key)
+    {
+        synchronized(cache)
+        {
+            if(cache.containsKey(key))
+            {
+                hitCount.incrementAndGet();
+                return true;
+            }
+        }
+        missCount.incrementAndGet();
+        return false;
+    }
+    
+    private static void cache(Map<String, Boolean> cache, String key, long checkedGeneration)
+    {
+        synchronized(cache)
+        {
+            if(generation.get() != checkedGeneration)
+            {
+                // approvals changed while checking.
+                return;
+            }
+            cache.put(key, Boolean.TRUE);
+        }
+    }
+    
+    /**
+     * Drops all cached approvals.
+     */
+    public static void clear()
+    {
+        generation.incrementAndGet();
+        synchronized(approvedScripts)
+        {
+            approvedScripts.clear();
+        }
+        synchronized(approvedClasspath)
+        {
+            approvedClasspath.clear();
+        }
+        LOGGER.fine("Cleared cached approvals");
+    }
+    
+    /**
+     * @return the generation incremented each time approvals are changed.
+     */
+    public static long getGeneration()
+    {
+        return generation.get();
+    }
+    
+    /**
+     * @return the number of approval checks answered from the cache.
+     */
+    public static long getHitCount()
+    {
+        return hitCount.get();
+    }
+    
+    /**
+     * @return the number of approval checks passed to {@link ScriptApproval}.
+     */
+    public static long getMissCount()
+    {
+        return missCount.get();
+    }
+    
+    /**
+     * Drops cached approvals when approvals are changed.
+     */
+    @Extension
+    static public class SaveableListenerImpl extends SaveableListener
+    {
+        /**
+         * @see hudson.model.listeners.SaveableListener#onChange(hudson.model.Saveable, hudson.XmlFile)
+         */
+        @Override
+        public void onChange(Saveable o, XmlFile file)
+        {
+            if(o instanceof ScriptApproval)
+            {
+                clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,612 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.scriptsecurity.sandbox.whitelists.Whitelisted;
+
+import antlr.ANTLRException;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.labels.LabelAtom;
+import hudson.model.listeners.RunListener;
+import hudson.slaves.ComputerListener;
+
+/**
+ * Immutable snapshot of executors and queued builds for each node and label atom.
+ * 
+ * Passed to label scripts as <code>capacity</code> unless a variable with that name is defined,
+ * so that scripts can make load-aware choices without walking all nodes
+ * and locking computers in the thread scheduling builds.
+ * 
+ * The snapshot is updated for a node when it goes online or offline
+ * and when builds start and complete on it.
+ * All nodes and the length of the queue are refreshed every {@link #REFRESH_MILLIS} milliseconds,
+ * as Jenkins doesn't notify changes of the queue
+ * (nor nodes marked temporarily offline).
+ * Values may be slightly stale.
+ * 
+ * @since 1.2.1
+ */
+public final class CapacitySnapshot
+{
+    static private final Logger LOGGER = Logger.getLogger(CapacitySnapshot.class.getName());
+    
+    /**
+     * The name of the variable the snapshot is bound to.
+     */
+    static public final String VARIABLE_NAME = "capacity";
+    
+    /**
+     * Milliseconds to refresh the whole snapshot.
+     */
+    static public final long REFRESH_MILLIS = Long.getLong(CapacitySnapshot.class.getName() + ".refreshMillis", 5000L);
+    
+    static private volatile CapacitySnapshot current = new CapacitySnapshot(
+            Collections.<String, NodeCapacity>emptyMap(),
+            Collections.<String, LabelCapacity>emptyMap(),
+            Collections.<String, Integer>emptyMap()
+    );
+    
+    /**
+     * Capacity of a node.
+     */
+    public static final class NodeCapacity
+    {
+        private final String name;
+        private final boolean online;
+        private final int idleExecutors;
+        private final int busyExecutors;
+        private final Set<String> labels;
+        private final Set<LabelAtom> atoms;
+        
+        private NodeCapacity(String name, boolean online, int idleExecutors, int busyExecutors, Set<LabelAtom> atoms)
+        {
+            this.name = name;
+            this.online = online;
+            this.idleExecutors = idleExecutors;
+            this.busyExecutors = busyExecutors;
+            Set<String> labelNames = new TreeSet<String>();
+            for(LabelAtom atom: atoms)
+            {
+                labelNames.add(atom.getName());
+            }
+            this.labels = Collections.unmodifiableSet(labelNames);
+            this.atoms = atoms;
+        }
+        
+        /**
+         * @return the name of the node. blank for the master.
+         */
+        @Whitelisted
+        public String getName()
+        {
+            return name;
+        }
+        
+        /**
+         * @return whether the node is online and accepting builds.
+         */
+        @Whitelisted
+        public boolean isOnline()
+        {
+            return online;
+        }
+        
+        /**
+         * @return the number of idle executors. 0 if offline.
+         */
+        @Whitelisted
+        public int getIdleExecutors()
+        {
+            return idleExecutors;
+        }
+        
+        /**
+         * @return the number of busy executors.
+         */
+        @Whitelisted
+        public int getBusyExecutors()
+        {
+            return busyExecutors;
+        }
+        
+        /**
+         * @return label atoms of the node.
+         */
+        @Whitelisted
+        public Set<String> getLabels()
+        {
+            return labels;
+        }
+    }
+    
+    /**
+     * Capacity of nodes with a label atom.
+     */
+    public static final class LabelCapacity
+    {
+        private final String name;
+        private final int onlineNodes;
+        private final int offlineNodes;
+        private final int idleExecutors;
+        private final int busyExecutors;
+        private final int queueLength;
+        
+        private LabelCapacity(String name, int onlineNodes, int offlineNodes, int idleExecutors, int busyExecutors, int queueLength)
+        {
+            this.name = name;
+            this.onlineNodes = onlineNodes;
+            this.offlineNodes = offlineNodes;
+            this.idleExecutors = idleExecutors;
+            this.busyExecutors = busyExecutors;
+            this.queueLength = queueLength;
+        }
+        
+        private LabelCapacity add(NodeCapacity node, int sign)
+        {
+            return new LabelCapacity(
+                    name,
+                    onlineNodes + (node.isOnline() ? sign : 0),
+                    offlineNodes + (node.isOnline() ? 0 : sign),
+                    idleExecutors + node.getIdleExecutors() * sign,
+                    busyExecutors + node.getBusyExecutors() * sign,
+                    queueLength
+            );
+        }
+        
+        private LabelCapacity withQueueLength(int queueLength)
+        {
+            return new LabelCapacity(name, onlineNodes, offlineNodes, idleExecutors, busyExecutors, queueLength);
+        }
+        
+        /**
+         * @return the label atom.
+         */
+        @Whitelisted
+        public String getName()
+        {
+            return name;
+        }
+        
+        /**
+         * @return the number of online nodes with the label.
+         */
+        @Whitelisted
+        public int getOnlineNodes()
+        {
+            return onlineNodes;
+        }
+        
+        /**
+         * @return the number of offline nodes with the label.
+         */
+        @Whitelisted
+        public int getOfflineNodes()
+        {
+            return offlineNodes;
+        }
+        
+        /**
+         * @return the number of idle executors on online nodes with the label.
+         */
+        @Whitelisted
+        public int getIdleExecutors()
+        {
+            return idleExecutors;
+        }
+        
+        /**
+         * @return the number of busy executors on nodes with the label.
+         */
+        @Whitelisted
+        public int getBusyExecutors()
+        {
+            return busyExecutors;
+        }
+        
+        /**
+         * @return the number of queued builds whose label contains the label atom
+         *      (or whose label is the label expression).
+         */
+        @Whitelisted
+        public int getQueueLength()
+        {
+            return queueLength;
+        }
+    }
+    
+    private final Map<String, NodeCapacity> nodes;
+    private final Map<String, LabelCapacity> labels;
+    private final Map<String, Integer> queueLengths;
+    private final long timestamp;
+    
+    /**
+     * Capacities computed for label expressions in this snapshot.
+     */
+    private final Map<String, LabelCapacity> expressions = new ConcurrentHashMap<String, LabelCapacity>();
+    
+    /**
+     * @param nodes
+     * @param labels capacities for label atoms.
+     * @param queueLengths the number of queued builds for each label expression.
+     */
+    private CapacitySnapshot(Map<String, NodeCapacity> nodes, Map<String, LabelCapacity> labels, Map<String, Integer> queueLengths)
+    {
+        this.nodes = nodes;
+        this.labels = labels;
+        this.queueLengths = queueLengths;
+        this.timestamp = System.currentTimeMillis();
+    }
+    
+    /**
+     * @return the current snapshot.
+     */
+    public static CapacitySnapshot get()
+    {
+        return current;
+    }
+    
+    /**
+     * @param name the name of the node. blank for the master.
+     * @return the capacity of the node. null if not exists.
+     */
+    @Whitelisted
+    public NodeCapacity getNode(String name)
+    {
+        return nodes.get(name);
+    }
+    
+    /**
+     * @param name the label atom.
+     * @return the capacity of the label. all values are 0 if no nodes have the label.
+     */
+    @Whitelisted
+    public LabelCapacity getLabel(String name)
+    {
+        LabelCapacity label = labels.get(name);
+        return (label != null) ? label : new LabelCapacity(name, 0, 0, 0, 0, 0);
+    }
+    
+    /**
+     * Returns the capacity of nodes matching a label expression.
+     * 
+     * Computed once for each expression in a snapshot.
+     * 
+     * @param expression the label expression.
+     * @return the capacity of nodes matching the expression.
+     * @throws ANTLRException the expression is invalid.
+     */
+    @Whitelisted
+    public LabelCapacity getCapacity(String expression) throws ANTLRException
+    {
+        Label label = LabelCache.parse(expression);
+        if(label instanceof LabelAtom)
+        {
+            return getLabel(label.getName());
+        }
+        LabelCapacity capacity = expressions.get(label.getName());
+        if(capacity != null)
+        {
+            return capacity;
+        }
+        Integer queueLength = queueLengths.get(label.getName());
+        capacity = new LabelCapacity(label.getName(), 0, 0, 0, 0, (queueLength != null) ? queueLength : 0);
+        for(NodeCapacity node: nodes.values())
+        {
+            if(label.matches(node.atoms))
+            {
+                capacity = capacity.add(node, 1);
+            }
+        }
+        expressions.put(label.getName(), capacity);
+        return capacity;
+    }
+    
+    /**
+     * @return names of all nodes.
+     */
+    @Whitelisted
+    public Set<String> getNodeNames()
+    {
+        return Collections.unmodifiableSet(nodes.keySet());
+    }
+    
+    /**
+     * @return all label atoms of nodes.
+     */
+    @Whitelisted
+    public Set<String> getLabelNames()
+    {
+        return Collections.unmodifiableSet(labels.keySet());
+    }
+    
+    /**
+     * @return the time this snapshot is created in milliseconds.
+     */
+    @Whitelisted
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+    
+    /**
+     * @param c
+     * @param online whether the node is online. null to ask the computer.
+     * @param finishingExecutors executors finishing builds, still busy but to be counted as idle.
+     * @return the capacity of the node. null if the node is removed.
+     */
+    private static NodeCapacity createNodeCapacity(Computer c, Boolean online, int finishingExecutors)
+    {
+        Node node = c.getNode();
+        if(node == null)
+        {
+            return null;
+        }
+        boolean isOnline = (online != null) ? online.booleanValue() : c.isOnline();
+        int busy = Math.max(c.countBusy() - finishingExecutors, 0);
+        int idle = isOnline ? Math.max(c.getNumExecutors() - busy, 0) : 0;
+        return new NodeCapacity(
+                c.getName(),
+                isOnline,
+                idle,
+                busy,
+                Collections.unmodifiableSet(node.getAssignedLabels())
+        );
+    }
+    
+    /**
+     * Updates the snapshot for a node.
+     * 
+     * @param c
+     * @param online whether the node is online. null to ask the computer.
+     * @param finishingExecutors executors finishing builds, still busy but to be counted as idle.
+     */
+    static synchronized void update(Computer c, Boolean online, int finishingExecutors)
+    {
+        CapacitySnapshot snapshot = current;
+        NodeCapacity oldNode = snapshot.nodes.get(c.getName());
+        NodeCapacity newNode = createNodeCapacity(c, online, finishingExecutors);
+        
+        Map<String, NodeCapacity> nodes = new HashMap<String, NodeCapacity>(snapshot.nodes);
+        Map<String, LabelCapacity> labels = new HashMap<String, LabelCapacity>(snapshot.labels);
+        if(oldNode != null)
+        {
+            nodes.remove(oldNode.getName());
+            for(String name: oldNode.getLabels())
+            {
+                LabelCapacity label = labels.get(name).add(oldNode, -1);
+                if(label.getOnlineNodes() == 0 && label.getOfflineNodes() == 0 && label.getQueueLength() == 0)
+                {
+                    labels.remove(name);
+                }
+                else
+                {
+                    labels.put(name, label);
+                }
+            }
+        }
+        if(newNode != null)
+        {
+            nodes.put(newNode.getName(), newNode);
+            for(String name: newNode.getLabels())
+            {
+                LabelCapacity label = labels.get(name);
+                if(label == null)
+                {
+                    label = new LabelCapacity(name, 0, 0, 0, 0, 0);
+                }
+                labels.put(name, label.add(newNode, 1));
+            }
+        }
+        current = new CapacitySnapshot(
+                Collections.unmodifiableMap(nodes),
+                Collections.unmodifiableMap(labels),
+                snapshot.queueLengths
+        );
+    }
+    
+    /**
+     * Creates the snapshot from all nodes and the queue.
+     */
+    static synchronized void refresh()
+    {
+        Jenkins jenkins = Jenkins.getInstance();
+        if(jenkins == null)
+        {
+            return;
+        }
+        Map<String, NodeCapacity> nodes = new HashMap<String, NodeCapacity>();
+        Map<String, LabelCapacity> labels = new HashMap<String, LabelCapacity>();
+        for(Computer c: jenkins.getComputers())
+        {
+            NodeCapacity node = createNodeCapacity(c, null, 0);
+            if(node == null)
+            {
+                continue;
+            }
+            nodes.put(node.getName(), node);
+            for(String name: node.getLabels())
+            {
+                LabelCapacity label = labels.get(name);
+                if(label == null)
+                {
+                    label = new LabelCapacity(name, 0, 0, 0, 0, 0);
+                }
+                labels.put(name, label.add(node, 1));
+            }
+        }
+        
+        Map<String, Integer> queueLengths = new HashMap<String, Integer>();
+        Map<String, Integer> atomQueueLengths = new HashMap<String, Integer>();
+        for(Queue.Item item: jenkins.getQueue().getItems())
+        {
+            Label assigned = item.getAssignedLabel();
+            if(assigned == null)
+            {
+                continue;
+            }
+            increment(queueLengths, assigned.getName());
+            for(LabelAtom atom: assigned.listAtoms())
+            {
+                increment(atomQueueLengths, atom.getName());
+            }
+        }
+        for(Map.Entry<String, Integer> e: atomQueueLengths.entrySet())
+        {
+            LabelCapacity label = labels.get(e.getKey());
+            if(label == null)
+            {
+                label = new LabelCapacity(e.getKey(), 0, 0, 0, 0, 0);
+            }
+            labels.put(e.getKey(), label.withQueueLength(e.getValue()));
+        }
+        
+        current = new CapacitySnapshot(
+                Collections.unmodifiableMap(nodes),
+                Collections.unmodifiableMap(labels),
+                Collections.unmodifiableMap(queueLengths)
+        );
+        LOGGER.finest("Refreshed the capacity snapshot");
+    }
+    
+    private static void increment(Map<String, Integer> counts, String key)
+    {
+        Integer count = counts.get(key);
+        counts.put(key, (count != null) ? count + 1 : 1);
+    }
+    
+    /**
+     * Updates the snapshot when nodes go online or offline.
+     */
+    @Extension
+    static public class ComputerListenerImpl extends ComputerListener
+    {
+        /**
+         * @see hudson.slaves.ComputerListener#onOnline(hudson.model.Computer, hudson.model.TaskListener)
+         */
+        @Override
+        public void onOnline(Computer c, TaskListener listener)
+        {
+            update(c, Boolean.TRUE, 0);
+        }
+        
+        /**
+         * @see hudson.slaves.ComputerListener#onOffline(hudson.model.Computer)
+         */
+        @Override
+        public void onOffline(Computer c)
+        {
+            update(c, Boolean.FALSE, 0);
+        }
+        
+        /**
+         * @see hudson.slaves.ComputerListener#onConfigurationChange()
+         */
+        @Override
+        public void onConfigurationChange()
+        {
+            // nodes may be added or removed.
+            refresh();
+        }
+    }
+    
+    /**
+     * Updates the snapshot when builds start and complete.
+     */
+    @Extension
+    static public class RunListenerImpl extends RunListener<Run<?, ?>>
+    {
+        /**
+         * @see hudson.model.listeners.RunListener#onStarted(hudson.model.Run, hudson.model.TaskListener)
+         */
+        @Override
+        public void onStarted(Run<?, ?> r, TaskListener listener)
+        {
+            Executor executor = Executor.currentExecutor();
+            if(executor != null)
+            {
+                update(executor.getOwner(), null, 0);
+            }
+        }
+        
+        /**
+         * @see hudson.model.listeners.RunListener#onCompleted(hudson.model.Run, hudson.model.TaskListener)
+         */
+        @Override
+        public void onCompleted(Run<?, ?> r, TaskListener listener)
+        {
+            Executor executor = Executor.currentExecutor();
+            if(executor != null)
+            {
+                // the executor gets idle just after this.
+                // flyweight tasks (parents of multi-configuration builds) don't use executors.
+                Computer c = executor.getOwner();
+                update(c, null, c.getExecutors().contains(executor) ? 1 : 0);
+            }
+        }
+    }
+    
+    /**
+     * Refreshes the snapshot periodically.
+     */
+    @Extension
+    static public class RefreshWork extends PeriodicWork
+    {
+        /**
+         * @see hudson.model.PeriodicWork#getRecurrencePeriod()
+         */
+        @Override
+        public long getRecurrencePeriod()
+        {
+            return REFRESH_MILLIS;
+        }
+        
+        /**
+         * @see hudson.triggers.SafeTimerTask#doRun()
+         */
+        @Override
+        protected void doRun() throws Exception
+        {
+            refresh();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import org.jvnet.localizer.Localizable;
+
+/**
+ * Stops evaluating a label script failing repeatedly.
+ * 
+ * After the specified number of consecutive failures (or evaluations over the budget),
+ * the breaker opens and builds are decided with a fallback without evaluating the script.
+ * After the cool-down period, one build evaluates the script as a probe:
+ * the breaker closes if it succeeds, and opens again if it fails.
+ * 
+ * Held by each {@link GroovyLabelAssignmentProperty},
+ * and reset when the job is reconfigured.
+ * 
+ * @since 1.2.1
+ */
+public class CircuitBreaker
+{
+    /**
+     * State of a breaker.
+     */
+    public static enum State
+    {
+        /**
+         * Scripts are evaluated.
+         */
+        CLOSED(Messages._CircuitBreaker_State_CLOSED_DisplayName()),
+        /**
+         * Scripts are not evaluated, and the fallback is used.
+         */
+        OPEN(Messages._CircuitBreaker_State_OPEN_DisplayName()),
+        /**
+         * A probe is evaluating the script. Other builds use the fallback.
+         */
+        HALF_OPEN(Messages._CircuitBreaker_State_HALF_OPEN_DisplayName()),
+        ;
+        
+        private final Localizable displayName;
+        
+        private State(Localizable displayName)
+        {
+            this.displayName = displayName;
+        }
+        
+        /**
+         * @return the name to display.
+         */
+        public String getDisplayName()
+        {
+            return displayName.toString();
+        }
+    }
+    
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    
+    /**
+     * When the breaker opened, or the probe started.
+     */
+    private long changedAt = 0;
+    
+    /**
+     * @return the current state.
+     */
+    public synchronized State getState()
+    {
+        return state;
+    }
+    
+    /**
+     * @return the number of failures since the last success.
+     */
+    public synchronized int getConsecutiveFailures()
+    {
+        return consecutiveFailures;
+    }
+    
+    /**
+     * @return the time the breaker opened in milliseconds. 0 if closed.
+     */
+    public synchronized long getOpenedAt()
+    {
+        return (state != State.CLOSED) ? changedAt : 0;
+    }
+    
+    /**
+     * Decides whether to evaluate the script.
+     * 
+     * @param coolDownMillis milliseconds to wait before probing.
+     * @return true to evaluate the script. false to use the fallback.
+     */
+    public synchronized boolean allowEvaluation(long coolDownMillis)
+    {
+        long now = System.currentTimeMillis();
+        switch(state)
+        {
+        case OPEN:
+        case HALF_OPEN:
+            // a probe not finished in the cool-down period is given up.
+            if(now - changedAt < coolDownMillis)
+            {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            changedAt = now;
+            return true;
+        default:
+            return true;
+        }
+    }
+    
+    /**
+     * Records an evaluation succeeded.
+     */
+    public synchronized void recordSuccess()
+    {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        changedAt = 0;
+    }
+    
+    /**
+     * Records an evaluation failed or exceeded the budget.
+     * 
+     * @param threshold the number of consecutive failures to open the breaker. 0 never to open.
+     */
+    public synchronized void recordFailure(int threshold)
+    {
+        ++consecutiveFailures;
+        if(state == State.HALF_OPEN || (threshold > 0 && consecutiveFailures >= threshold))
+        {
+            state = State.OPEN;
+            changedAt = System.currentTimeMillis();
+        }
+    }
+}
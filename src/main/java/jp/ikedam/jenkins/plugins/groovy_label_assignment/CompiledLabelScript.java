@@ -0,0 +1,319 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.RejectedAccessException;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.Whitelist;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.GroovySandbox;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ClasspathEntry;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+
+/**
+ * A label script compiled once and run for each build.
+ * 
+ * {@link SecureGroovyScript#evaluate(ClassLoader, Binding)} parses and compiles
+ * the script every time it is called.
+ * This holds the compiled class instead, and it is reused as long as
+ * the script text, the sandbox flag, classpath entries and the parent class loader
+ * are the same.
+ * 
+ * Approvals are not cached in the compiled class:
+ * they are checked each time the script runs just as {@link SecureGroovyScript} does,
+ * through {@link ApprovalCache}.
+ * 
+ * Class loaders for classpath entries are shared by scripts
+ * with the same classpath entries and the same parent class loader,
+ * and survive recompilation of scripts.
+ * They are released when no compiled script refers to them.
+ * Files in classpath entries are identified with their timestamps and sizes,
+ * and scripts are compiled with new class loaders when files are replaced
+ * or approvals are changed.
+ * 
+ * @since 1.2.1
+ */
+public class CompiledLabelScript
+{
+    static private final AtomicLong hitCount = new AtomicLong();
+    static private final AtomicLong missCount = new AtomicLong();
+    
+    /**
+     * parent class loader -&gt; classpath -&gt; class loader for the classpath.
+     * Class loaders are held by compiled scripts (through their classes).
+     */
+    static private final Map<ClassLoader, Map<List<String>, WeakReference<ClassLoader>>> classpathLoaders
+            = new WeakHashMap<ClassLoader, Map<List<String>, WeakReference<ClassLoader>>>();
+    
+    /**
+     * {@link ApprovalCache#getGeneration()} when {@link #classpathLoaders} are created.
+     */
+    static private long classpathLoadersGeneration = -1;
+    
+    /**
+     * Class loaders created for scripts and not garbage collected yet.
+     */
+    static private final Map<ClassLoader, Boolean> liveLoaders
+            = Collections.synchronizedMap(new WeakHashMap<ClassLoader, Boolean>());
+    
+    private final String script;
+    private final boolean sandbox;
+    private final List<ClasspathEntry> classpath;
+    private final List<String> classpathUrls;
+    private final long approvalGeneration;
+    private final ClassLoader parent;
+    private final Class<? extends Script> scriptClass;
+    
+    private CompiledLabelScript(SecureGroovyScript secureGroovyScript, ClassLoader parent, Class<? extends Script> scriptClass, long approvalGeneration)
+    {
+        this.script = secureGroovyScript.getScript();
+        this.sandbox = secureGroovyScript.isSandbox();
+        this.classpath = Collections.unmodifiableList(new ArrayList<ClasspathEntry>(secureGroovyScript.getClasspath()));
+        this.classpathUrls = toUrlStrings(this.classpath);
+        this.approvalGeneration = approvalGeneration;
+        this.parent = parent;
+        this.scriptClass = scriptClass;
+    }
+    
+    /**
+     * @param classpath
+     * @return URLs of classpath entries, with timestamps and sizes for files.
+     */
+    private static List<String> toUrlStrings(List<ClasspathEntry> classpath)
+    {
+        List<String> urls = new ArrayList<String>(classpath.size());
+        for(ClasspathEntry entry: classpath)
+        {
+            String key = ApprovalCache.getKey(entry.getURL());
+            urls.add((key != null) ? key : entry.getURL().toExternalForm());
+        }
+        return urls;
+    }
+    
+    /**
+     * Returns a compiled script for the script.
+     * 
+     * @param cached the script previously compiled. may be null.
+     * @param secureGroovyScript the script to run.
+     * @param parent the class loader to load classes the script refers.
+     * @return <code>cached</code> if it is still applicable, or a newly compiled script.
+     * @throws Exception the script is not approved or fails to be compiled.
+     */
+    public static CompiledLabelScript get(CompiledLabelScript cached, SecureGroovyScript secureGroovyScript, ClassLoader parent)
+            throws Exception
+    {
+        if(cached != null && cached.isCompiledFrom(secureGroovyScript, parent))
+        {
+            hitCount.incrementAndGet();
+            EvaluationTimings.recordCompilation(false);
+            return cached;
+        }
+        missCount.incrementAndGet();
+        EvaluationTimings.recordCompilation(true);
+        return compile(secureGroovyScript, parent);
+    }
+    
+    /**
+     * Compiles the script.
+     * 
+     * @param secureGroovyScript the script to compile.
+     * @param parent the class loader to load classes the script refers.
+     * @return the compiled script
+     * @throws Exception the script is not approved or fails to be compiled.
+     */
+    public static CompiledLabelScript compile(SecureGroovyScript secureGroovyScript, ClassLoader parent)
+            throws Exception
+    {
+        ClassLoader loader = parent;
+        // read before checking approvals not to miss changes while compiling.
+        long approvalGeneration = ApprovalCache.getGeneration();
+        List<ClasspathEntry> cp = secureGroovyScript.getClasspath();
+        if(!cp.isEmpty())
+        {
+            for(ClasspathEntry entry: cp)
+            {
+                ApprovalCache.using(entry);
+            }
+            loader = getClasspathLoader(cp, parent, approvalGeneration);
+        }
+        
+        GroovyShell shell;
+        if(secureGroovyScript.isSandbox())
+        {
+            shell = new GroovyShell(loader, new Binding(), GroovySandbox.createSecureCompilerConfiguration());
+        }
+        else
+        {
+            // never compile scripts not approved.
+            ApprovalCache.using(secureGroovyScript.getScript());
+            shell = new GroovyShell(loader, new Binding());
+        }
+        
+        liveLoaders.put(shell.getClassLoader(), Boolean.TRUE);
+        
+        Class<? extends Script> scriptClass = shell.parse(secureGroovyScript.getScript()).getClass();
+        return new CompiledLabelScript(secureGroovyScript, parent, scriptClass, approvalGeneration);
+    }
+    
+    /**
+     * Returns the class loader for classpath entries,
+     * creating it if no script uses the same classpath.
+     * 
+     * @param classpath
+     * @param parent
+     * @param approvalGeneration {@link ApprovalCache#getGeneration()} before approvals are checked.
+     * @return the class loader for the classpath.
+     */
+    private static ClassLoader getClasspathLoader(List<ClasspathEntry> classpath, ClassLoader parent, long approvalGeneration)
+    {
+        List<String> key = toUrlStrings(classpath);
+        synchronized(classpathLoaders)
+        {
+            if(classpathLoadersGeneration < approvalGeneration)
+            {
+                // approvals are changed. don't share loaders created before.
+                classpathLoaders.clear();
+                classpathLoadersGeneration = approvalGeneration;
+            }
+            Map<List<String>, WeakReference<ClassLoader>> loaders = classpathLoaders.get(parent);
+            if(loaders == null)
+            {
+                loaders = new HashMap<List<String>, WeakReference<ClassLoader>>();
+                classpathLoaders.put(parent, loaders);
+            }
+            for(Iterator<WeakReference<ClassLoader>> it = loaders.values().iterator(); it.hasNext(); )
+            {
+                if(it.next().get() == null)
+                {
+                    // no longer used.
+                    it.remove();
+                }
+            }
+            WeakReference<ClassLoader> ref = loaders.get(key);
+            ClassLoader loader = (ref != null) ? ref.get() : null;
+            if(loader == null)
+            {
+                List<URL> urlList = new ArrayList<URL>(classpath.size());
+                for(ClasspathEntry entry: classpath)
+                {
+                    urlList.add(entry.getURL());
+                }
+                loader = new URLClassLoader(urlList.toArray(new URL[urlList.size()]), parent);
+                loaders.put(key, new WeakReference<ClassLoader>(loader));
+                liveLoaders.put(loader, Boolean.TRUE);
+            }
+            return loader;
+        }
+    }
+    
+    /**
+     * @param secureGroovyScript
+     * @param parent
+     * @return whether this is compiled from the script with the class loader.
+     */
+    public boolean isCompiledFrom(SecureGroovyScript secureGroovyScript, ClassLoader parent)
+    {
+        return this.parent == parent
+                && this.sandbox == secureGroovyScript.isSandbox()
+                && this.script.equals(secureGroovyScript.getScript())
+                && (this.classpath.isEmpty() || this.approvalGeneration == ApprovalCache.getGeneration())
+                && this.classpathUrls.equals(toUrlStrings(secureGroovyScript.getClasspath()));
+    }
+    
+    /**
+     * Runs the script.
+     * 
+     * @param binding variables for the script.
+     * @return the value returned from the script.
+     * @throws Exception the script is not approved or fails.
+     */
+    public Object run(Binding binding) throws Exception
+    {
+        for(ClasspathEntry entry: classpath)
+        {
+            ApprovalCache.using(entry);
+        }
+        
+        if(sandbox)
+        {
+            Script s = InvokerHelper.createScript(scriptClass, binding);
+            try
+            {
+                return GroovySandbox.run(s, Whitelist.all());
+            }
+            catch(RejectedAccessException e)
+            {
+                throw ScriptApproval.get().accessRejected(e, ApprovalContext.create());
+            }
+        }
+        
+        ApprovalCache.using(script);
+        return InvokerHelper.createScript(scriptClass, binding).run();
+    }
+    
+    /**
+     * @return the number of times a compiled script is reused.
+     */
+    public static long getHitCount()
+    {
+        return hitCount.get();
+    }
+    
+    /**
+     * @return the number of times a script is compiled.
+     */
+    public static long getMissCount()
+    {
+        return missCount.get();
+    }
+    
+    /**
+     * Returns the number of class loaders created for scripts and still alive.
+     * 
+     * Includes class loaders not garbage collected yet even if no longer used.
+     * 
+     * @return the number of class loaders.
+     */
+    public static int getLiveClassLoaderCount()
+    {
+        return liveLoaders.size();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.codehaus.groovy.ast.ModuleNode;
+import org.codehaus.groovy.ast.expr.BinaryExpression;
+import org.codehaus.groovy.ast.expr.ConstantExpression;
+import org.codehaus.groovy.ast.expr.Expression;
+import org.codehaus.groovy.ast.expr.GStringExpression;
+import org.codehaus.groovy.ast.stmt.ExpressionStatement;
+import org.codehaus.groovy.ast.stmt.ReturnStatement;
+import org.codehaus.groovy.ast.stmt.Statement;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.syntax.Types;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+
+/**
+ * A script that always returns the same value.
+ * 
+ * Scripts are analyzed with their syntax trees,
+ * and only following forms are treated as constants:
+ * <ul>
+ *   <li>an empty script (returns <code>null</code>).</li>
+ *   <li>a single statement (optionally with <code>return</code>) of:
+ *     <ul>
+ *       <li>a literal (string, number, boolean, <code>null</code>).</li>
+ *       <li>a string with <code>${...}</code> containing only string literals.</li>
+ *       <li>concatenation of strings above with <code>+</code>.</li>
+ *     </ul>
+ *   </li>
+ * </ul>
+ * Those never call methods nor read variables,
+ * and the result is the same with or without the sandbox.
+ * 
+ * @since 1.2.1
+ */
+public class ConstantLabelScript
+{
+    static private final Logger LOGGER = Logger.getLogger(ConstantLabelScript.class.getName());
+    
+    /**
+     * Returned from {@link #fold(Expression)} for non-constant expressions.
+     */
+    static private final Object NOT_CONSTANT = new Object();
+    
+    private final String script;
+    private final boolean sandbox;
+    private final Object value;
+    
+    private ConstantLabelScript(SecureGroovyScript secureGroovyScript, Object value)
+    {
+        this.script = secureGroovyScript.getScript();
+        this.sandbox = secureGroovyScript.isSandbox();
+        this.value = value;
+    }
+    
+    /**
+     * Analyzes the script.
+     * 
+     * @param secureGroovyScript
+     * @return the constant script. null if the script is not a constant.
+     */
+    public static ConstantLabelScript analyze(SecureGroovyScript secureGroovyScript)
+    {
+        if(secureGroovyScript == null || secureGroovyScript.getScript() == null
+                || !secureGroovyScript.getClasspath().isEmpty())
+        {
+            return null;
+        }
+        
+        Object value;
+        try
+        {
+            value = fold(secureGroovyScript.getScript());
+        }
+        catch(CompilationFailedException e)
+        {
+            // reported when the script is actually compiled.
+            return null;
+        }
+        catch(RuntimeException e)
+        {
+            LOGGER.log(Level.WARNING, "Failed to analyze the script", e);
+            return null;
+        }
+        
+        if(value == NOT_CONSTANT)
+        {
+            return null;
+        }
+        return new ConstantLabelScript(secureGroovyScript, value);
+    }
+    
+    private static Object fold(String script)
+    {
+        CompilationUnit unit = new CompilationUnit();
+        unit.addSource("Script.groovy", script);
+        unit.compile(Phases.CONVERSION);
+        
+        ModuleNode module = unit.getAST().getModules().get(0);
+        if(!module.getMethods().isEmpty() || module.getClasses().size() > 1)
+        {
+            // defines methods or classes.
+            return NOT_CONSTANT;
+        }
+        
+        List<Statement> statements = module.getStatementBlock().getStatements();
+        if(statements.isEmpty())
+        {
+            return null;
+        }
+        if(statements.size() > 1)
+        {
+            return NOT_CONSTANT;
+        }
+        
+        Statement statement = statements.get(0);
+        if(statement instanceof ReturnStatement)
+        {
+            return fold(((ReturnStatement)statement).getExpression());
+        }
+        if(statement instanceof ExpressionStatement)
+        {
+            return fold(((ExpressionStatement)statement).getExpression());
+        }
+        return NOT_CONSTANT;
+    }
+    
+    private static Object fold(Expression expression)
+    {
+        if(expression.getClass() == ConstantExpression.class)
+        {
+            return ((ConstantExpression)expression).getValue();
+        }
+        
+        if(expression instanceof GStringExpression)
+        {
+            GStringExpression gstring = (GStringExpression)expression;
+            StringBuilder sb = new StringBuilder();
+            Iterator<ConstantExpression> strings = gstring.getStrings().iterator();
+            Iterator<Expression> values = gstring.getValues().iterator();
+            while(strings.hasNext())
+            {
+                sb.append(strings.next().getValue());
+                if(values.hasNext())
+                {
+                    Object value = fold(values.next());
+                    if(!(value instanceof String))
+                    {
+                        return NOT_CONSTANT;
+                    }
+                    sb.append(value);
+                }
+            }
+            if(values.hasNext())
+            {
+                return NOT_CONSTANT;
+            }
+            return sb.toString();
+        }
+        
+        if(expression instanceof BinaryExpression)
+        {
+            BinaryExpression binary = (BinaryExpression)expression;
+            if(binary.getOperation().getType() != Types.PLUS)
+            {
+                return NOT_CONSTANT;
+            }
+            Object left = fold(binary.getLeftExpression());
+            Object right = fold(binary.getRightExpression());
+            if(!(left instanceof String) || !(right instanceof String))
+            {
+                return NOT_CONSTANT;
+            }
+            return (String)left + (String)right;
+        }
+        
+        return NOT_CONSTANT;
+    }
+    
+    /**
+     * Returns the value the script returns.
+     * 
+     * @return the value. may be null.
+     * @throws Exception the script is not approved.
+     */
+    public Object evaluate() throws Exception
+    {
+        if(!sandbox)
+        {
+            // scripts not approved must not be used even if they are constants.
+            ApprovalCache.using(script);
+        }
+        return value;
+    }
+}
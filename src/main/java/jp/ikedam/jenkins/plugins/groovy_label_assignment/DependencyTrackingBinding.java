@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import groovy.lang.Binding;
+
+/**
+ * {@link Binding} that records which variables a script reads.
+ * 
+ * Each variable is recorded with the value it had when the script read it first,
+ * unless the script assigned it before reading.
+ * Reading the whole variable map (e.g. iterating it) is recorded
+ * as {@link #isAllVariablesRead()}.
+ * 
+ * Variables are read from the wrapped binding one by one,
+ * so that a {@link LazyBinding} loads variables only when the script reads them.
+ * 
+ * @since 1.2.1
+ */
+public class DependencyTrackingBinding extends Binding
+{
+    /**
+     * Recorded as the value of variables not defined.
+     */
+    public static final Object ABSENT = new Object()
+    {
+        @Override
+        public String toString()
+        {
+            return "(absent)";
+        }
+    };
+    
+    private final Map<String, Object> reads = new TreeMap<String, Object>();
+    private final Set<String> written = new HashSet<String>();
+    private boolean allVariablesRead = false;
+    private final Binding delegate;
+    
+    /**
+     * @param variables variables to bind. This is not copied.
+     */
+    @SuppressWarnings("rawtypes")
+    public DependencyTrackingBinding(Map variables)
+    {
+        this(new Binding(variables));
+    }
+    
+    /**
+     * @param delegate the binding to read and write variables.
+     */
+    public DependencyTrackingBinding(Binding delegate)
+    {
+        this.delegate = delegate;
+    }
+    
+    private synchronized void recordRead(Object name)
+    {
+        if(!(name instanceof String))
+        {
+            allVariablesRead = true;
+            return;
+        }
+        String key = (String)name;
+        EvaluationTimings.recordVariableRead(key);
+        if(written.contains(key) || reads.containsKey(key))
+        {
+            return;
+        }
+        reads.put(key, delegate.hasVariable(key) ? delegate.getVariable(key) : ABSENT);
+    }
+    
+    private synchronized void recordWrite(Object name)
+    {
+        if(name instanceof String)
+        {
+            written.add((String)name);
+        }
+    }
+    
+    /**
+     * @see groovy.lang.Binding#getVariable(java.lang.String)
+     */
+    @Override
+    public Object getVariable(String name)
+    {
+        recordRead(name);
+        return delegate.getVariable(name);
+    }
+    
+    /**
+     * @see groovy.lang.Binding#hasVariable(java.lang.String)
+     */
+    @Override
+    public boolean hasVariable(String name)
+    {
+        recordRead(name);
+        return delegate.hasVariable(name);
+    }
+    
+    /**
+     * @see groovy.lang.Binding#setVariable(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public void setVariable(String name, Object value)
+    {
+        recordWrite(name);
+        delegate.setVariable(name, value);
+    }
+    
+    /**
+     * @see groovy.lang.Binding#getVariables()
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Map getVariables()
+    {
+        return new TrackingMap(delegate.getVariables());
+    }
+    
+    /**
+     * @return variables the script read and their values when they were read.
+     */
+    public synchronized Map<String, Object> getReadVariables()
+    {
+        return Collections.unmodifiableMap(new TreeMap<String, Object>(reads));
+    }
+    
+    /**
+     * @return whether the script accessed all variables at once.
+     */
+    public synchronized boolean isAllVariablesRead()
+    {
+        return allVariablesRead;
+    }
+    
+    /**
+     * Map passed to scripts calling {@link Binding#getVariables()}.
+     * Only lookups with names are tracked.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private class TrackingMap extends AbstractMap
+    {
+        private final Map variables;
+        
+        public TrackingMap(Map variables)
+        {
+            this.variables = variables;
+        }
+        
+        @Override
+        public Object get(Object key)
+        {
+            recordRead(key);
+            return variables.get(key);
+        }
+        
+        @Override
+        public boolean containsKey(Object key)
+        {
+            recordRead(key);
+            return variables.containsKey(key);
+        }
+        
+        @Override
+        public Object put(Object key, Object value)
+        {
+            recordWrite(key);
+            return variables.put(key, value);
+        }
+        
+        @Override
+        public Object remove(Object key)
+        {
+            recordWrite(key);
+            return variables.remove(key);
+        }
+        
+        @Override
+        public Set entrySet()
+        {
+            synchronized(DependencyTrackingBinding.this)
+            {
+                allVariablesRead = true;
+            }
+            return variables.entrySet();
+        }
+    }
+}
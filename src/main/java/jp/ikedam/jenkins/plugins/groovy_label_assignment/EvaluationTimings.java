@@ -0,0 +1,365 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import hudson.Util;
+import hudson.model.AbstractProject;
+
+/**
+ * Time spent in each phase of deciding the label for a build.
+ * 
+ * An instance is recorded for the thread deciding the label
+ * between {@link #start()} and {@link #finish()},
+ * and phases recorded to {@link LabelAssignmentMetrics} in the meantime are summed up also here.
+ * A snapshot is stored in {@link GroovyLabelAssignmentAction},
+ * so fields are kept small as they are saved with every build.
+ * Phases are also passed to {@link LabelEvaluationListener}s.
+ * 
+ * @since 1.2.1
+ */
+public class EvaluationTimings
+{
+    /**
+     * How the compiled script was retrieved.
+     */
+    public static enum Compilation
+    {
+        /**
+         * The script was not compiled (e.g. memoized results or decision tables).
+         */
+        NONE,
+        /**
+         * The script compiled before was used.
+         */
+        CACHED,
+        /**
+         * The script was compiled for the build.
+         */
+        COMPILED,
+    }
+    
+    /**
+     * Maximum number of variable names to record.
+     */
+    static private final int MAX_VARIABLES = 32;
+    
+    static private final ThreadLocal<EvaluationTimings> current = new ThreadLocal<EvaluationTimings>();
+    
+    private long bindingMicros;
+    private long compileMicros;
+    private long runMicros;
+    private long parseMicros;
+    private Compilation compilation;
+    
+    /**
+     * Names of variables the script read, separated with commas.
+     */
+    private String variables;
+    
+    private transient Set<String> readVariables;
+    
+    private transient AbstractProject<?, ?> project;
+    
+    /**
+     * Whether the result depends only on the submission.
+     */
+    private transient boolean reusable;
+    
+    private EvaluationTimings()
+    {
+    }
+    
+    /**
+     * Starts recording for the current thread.
+     * 
+     * @param project the job to decide the label for.
+     * @return the instance to record to.
+     */
+    public static EvaluationTimings start(AbstractProject<?, ?> project)
+    {
+        EvaluationTimings timings = new EvaluationTimings();
+        timings.project = project;
+        timings.reusable = true;
+        timings.compilation = Compilation.NONE;
+        timings.readVariables = new TreeSet<String>();
+        current.set(timings);
+        return timings;
+    }
+    
+    /**
+     * Stops recording for the current thread.
+     */
+    public static void finish()
+    {
+        current.remove();
+    }
+    
+    /**
+     * @return the instance recording for the current thread. null if not recording.
+     */
+    public static EvaluationTimings current()
+    {
+        return current.get();
+    }
+    
+    /**
+     * Records to the instance in the current thread.
+     * 
+     * Used to record from other threads running the script for the recording thread.
+     * 
+     * @param timings the instance to record to. null to stop recording.
+     */
+    public static void attach(EvaluationTimings timings)
+    {
+        if(timings != null)
+        {
+            current.set(timings);
+        }
+        else
+        {
+            current.remove();
+        }
+    }
+    
+    /**
+     * @param phase
+     * @param nanos
+     */
+    static void recordPhase(LabelAssignmentMetrics.Phase phase, long nanos)
+    {
+        EvaluationTimings timings = current();
+        if(timings == null)
+        {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        synchronized(timings)
+        {
+            switch(phase)
+            {
+            case BINDING:
+                timings.bindingMicros += micros;
+                break;
+            case COMPILE:
+                timings.compileMicros += micros;
+                break;
+            case RUN:
+                timings.runMicros += micros;
+                break;
+            case PARSE:
+                timings.parseMicros += micros;
+                break;
+            }
+        }
+        LabelEvaluationListener.firePhase(timings.project, phase, nanos);
+    }
+    
+    /**
+     * Adds timings recorded in another thread, e.g. evaluations in advance.
+     * 
+     * Phases are not passed to {@link LabelEvaluationListener}s again.
+     * 
+     * @param other timings to add. null to do nothing.
+     */
+    static void recordAll(EvaluationTimings other)
+    {
+        EvaluationTimings timings = current();
+        if(timings == null || other == null)
+        {
+            return;
+        }
+        synchronized(timings)
+        {
+            timings.bindingMicros += other.getBindingMicros();
+            timings.compileMicros += other.getCompileMicros();
+            timings.runMicros += other.getRunMicros();
+            timings.parseMicros += other.getParseMicros();
+            if(other.getCompilation() != Compilation.NONE
+                    && (timings.compilation == Compilation.NONE || other.getCompilation() == Compilation.COMPILED))
+            {
+                timings.compilation = other.getCompilation();
+            }
+            for(String name: other.getVariables())
+            {
+                if(timings.readVariables.size() < MAX_VARIABLES)
+                {
+                    timings.readVariables.add(name);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param compiled whether the script was compiled, not cached.
+     */
+    static void recordCompilation(boolean compiled)
+    {
+        EvaluationTimings timings = current();
+        if(timings == null)
+        {
+            return;
+        }
+        synchronized(timings)
+        {
+            if(compiled || timings.compilation == Compilation.NONE)
+            {
+                timings.compilation = compiled ? Compilation.COMPILED : Compilation.CACHED;
+            }
+        }
+    }
+    
+    /**
+     * @param name the name of the variable the script read.
+     */
+    static void recordVariableRead(String name)
+    {
+        EvaluationTimings timings = current();
+        if(timings == null || name == null)
+        {
+            return;
+        }
+        synchronized(timings)
+        {
+            if(CapacitySnapshot.VARIABLE_NAME.equals(name))
+            {
+                // depends on the current load.
+                timings.reusable = false;
+            }
+            if(timings.readVariables.size() < MAX_VARIABLES)
+            {
+                timings.readVariables.add(name);
+            }
+        }
+    }
+    
+    /**
+     * Records that the result depends on other than the submission,
+     * e.g. the current load or fallbacks.
+     */
+    static void recordNotReusable()
+    {
+        EvaluationTimings timings = current();
+        if(timings == null)
+        {
+            return;
+        }
+        synchronized(timings)
+        {
+            timings.reusable = false;
+        }
+    }
+    
+    /**
+     * @return whether the decided label can be reused for the same submission.
+     */
+    public synchronized boolean isReusable()
+    {
+        return reusable;
+    }
+    
+    /**
+     * @return a copy not modified any more, to store in the build.
+     */
+    public synchronized EvaluationTimings snapshot()
+    {
+        EvaluationTimings copy = new EvaluationTimings();
+        copy.bindingMicros = bindingMicros;
+        copy.compileMicros = compileMicros;
+        copy.runMicros = runMicros;
+        copy.parseMicros = parseMicros;
+        copy.compilation = compilation;
+        copy.variables = (readVariables != null && !readVariables.isEmpty())
+                ? Util.intern(StringUtils.join(readVariables, ","))
+                : variables;
+        return copy;
+    }
+    
+    private Object readResolve()
+    {
+        variables = Util.intern(variables);
+        return this;
+    }
+    
+    /**
+     * @return microseconds spent creating variables.
+     */
+    public long getBindingMicros()
+    {
+        return bindingMicros;
+    }
+    
+    /**
+     * @return microseconds spent retrieving the compiled script.
+     */
+    public long getCompileMicros()
+    {
+        return compileMicros;
+    }
+    
+    /**
+     * @return microseconds spent running the script, excluding creating variables.
+     */
+    public long getRunMicros()
+    {
+        return runMicros;
+    }
+    
+    /**
+     * @return microseconds spent validating the label expression.
+     */
+    public long getParseMicros()
+    {
+        return parseMicros;
+    }
+    
+    /**
+     * @return microseconds spent in all phases.
+     */
+    public long getTotalMicros()
+    {
+        return bindingMicros + compileMicros + runMicros + parseMicros;
+    }
+    
+    /**
+     * @return how the compiled script was retrieved.
+     */
+    public Compilation getCompilation()
+    {
+        return (compilation != null) ? compilation : Compilation.NONE;
+    }
+    
+    /**
+     * @return names of variables the script read, sorted.
+     */
+    public String[] getVariables()
+    {
+        return StringUtils.isEmpty(variables) ? new String[0] : variables.split(",");
+    }
+}
@@ -23,7 +23,11 @@
  */
 package jp.ikedam.jenkins.plugins.groovy_label_assignment;
 
-import jenkins.model.Jenkins;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import hudson.Util;
 import hudson.model.Label;
 import hudson.model.labels.LabelAssignmentAction;
 import hudson.model.queue.SubTask;
@@ -36,7 +40,39 @@ public class GroovyLabelAssignmentAction implements LabelAssignmentAction
     @Deprecated
     transient private Label label;
     
-    private final String labelString;
+    private volatile String labelString;
+    
+    /**
+     * Candidates {@link #labelString} is chosen from.
+     * null if the script returned a single label.
+     */
+    private volatile List<LabelCandidate> candidates;
+    
+    /**
+     * Time spent to decide the label. null if not recorded.
+     */
+    private volatile EvaluationTimings timings;
+    
+    /**
+     * {@link Boolean#TRUE} if the label is being decided asynchronously.
+     * Kept in the queue over restarts so that the evaluation is started again.
+     * null when decided not to be saved in every build.
+     */
+    private volatile Boolean pending;
+    
+    private transient volatile boolean failed;
+    
+    private transient Future<?> evaluation;
+    
+    /**
+     * The label resolved for {@link #labelString}.
+     */
+    private transient volatile Label resolvedLabel;
+    
+    /**
+     * {@link LabelCache#getGeneration()} when {@link #resolvedLabel} is resolved.
+     */
+    private transient volatile long resolvedGeneration;
     
     /**
      * Constructor
@@ -46,7 +82,35 @@ public class GroovyLabelAssignmentAction implements LabelAssignmentAction
      */
     public GroovyLabelAssignmentAction(String labelString)
     {
-        this.labelString = labelString;
+        this(labelString, null);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param labelString assigned label expression.
+     * @param candidates candidates labelString is chosen from. null if the script returned a single label.
+     * @since 1.2.1
+     */
+    public GroovyLabelAssignmentAction(String labelString, List<LabelCandidate> candidates)
+    {
+        // only a few distinct labels are used in many builds.
+        this.labelString = Util.intern(labelString);
+        this.candidates = candidates;
+        this.pending = null;
+    }
+    
+    /**
+     * Creates an action whose label is decided later.
+     * 
+     * @return an action whose label is not decided yet.
+     * @since 1.2.1
+     */
+    public static GroovyLabelAssignmentAction pending()
+    {
+        GroovyLabelAssignmentAction action = new GroovyLabelAssignmentAction((String)null);
+        action.pending = Boolean.TRUE;
+        return action;
     }
     
     /**
@@ -65,9 +129,86 @@ public class GroovyLabelAssignmentAction implements LabelAssignmentAction
         {
             return new GroovyLabelAssignmentAction(label.getExpression());
         }
+        labelString = Util.intern(labelString);
+        if(!Boolean.TRUE.equals(pending))
+        {
+            // saved by older versions.
+            pending = null;
+        }
         return this;
     }
     
+    /**
+     * @return whether the label is being decided asynchronously.
+     * @since 1.2.1
+     */
+    public boolean isPending()
+    {
+        return Boolean.TRUE.equals(pending);
+    }
+    
+    /**
+     * @return whether the asynchronous evaluation failed and the build should not run.
+     * @since 1.2.1
+     */
+    public boolean isFailed()
+    {
+        return failed;
+    }
+    
+    /**
+     * Sets the label decided asynchronously.
+     * 
+     * @param labelString the label expression. null not to modify the label.
+     * @since 1.2.1
+     */
+    public void resolve(String labelString)
+    {
+        resolve(labelString, null);
+    }
+    
+    /**
+     * Sets the label chosen from candidates asynchronously.
+     * 
+     * @param labelString the label expression. null not to modify the label.
+     * @param candidates candidates labelString is chosen from. null if the script returned a single label.
+     * @since 1.2.1
+     */
+    public void resolve(String labelString, List<LabelCandidate> candidates)
+    {
+        this.resolvedLabel = null;
+        this.labelString = Util.intern(labelString);
+        this.candidates = candidates;
+        this.pending = null;
+    }
+    
+    /**
+     * Marks that the asynchronous evaluation failed.
+     * 
+     * @since 1.2.1
+     */
+    public void fail()
+    {
+        this.failed = true;
+    }
+    
+    /**
+     * Records the running evaluation unless one is already running.
+     * 
+     * @param evaluation
+     * @return false if an evaluation is already running.
+     * @since 1.2.1
+     */
+    public synchronized boolean startEvaluation(Callable<?> evaluation)
+    {
+        if(this.evaluation != null)
+        {
+            return false;
+        }
+        this.evaluation = LabelEvaluationExecutor.submit(evaluation);
+        return true;
+    }
+    
     /**
      * @return null not for being displayed in the side menu of builds.
      * @see hudson.model.Action#getIconFileName()
@@ -121,12 +262,22 @@ public class GroovyLabelAssignmentAction implements LabelAssignmentAction
      * Returns the label which specifies nodes where this job should run.
      * 
      * Implemented as getter.
+     * The label is resolved once, and resolved again when nodes are reconfigured.
      * 
      * @return an assigned label.
      */
     public Label getAssignedLabel()
     {
-        return Jenkins.getInstance().getLabel(getLabelString());
+        long generation = LabelCache.getGeneration();
+        Label label = resolvedLabel;
+        if(label != null && resolvedGeneration == generation)
+        {
+            return label;
+        }
+        label = LabelCache.resolve(getLabelString());
+        resolvedGeneration = generation;
+        resolvedLabel = label;
+        return label;
     }
     
     /**
@@ -137,4 +288,31 @@ public class GroovyLabelAssignmentAction implements LabelAssignmentAction
     {
         return labelString;
     }
+    
+    /**
+     * @return candidates the label is chosen from. null if the script returned a single label.
+     * @since 1.2.1
+     */
+    public List<LabelCandidate> getCandidates()
+    {
+        return candidates;
+    }
+    
+    /**
+     * @return time spent to decide the label. null if not recorded.
+     * @since 1.2.1
+     */
+    public EvaluationTimings getTimings()
+    {
+        return timings;
+    }
+    
+    /**
+     * @param timings time spent to decide the label.
+     * @since 1.2.1
+     */
+    public void setTimings(EvaluationTimings timings)
+    {
+        this.timings = timings;
+    }
 }
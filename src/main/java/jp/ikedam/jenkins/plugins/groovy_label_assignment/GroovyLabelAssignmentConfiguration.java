@@ -0,0 +1,338 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+
+import hudson.Extension;
+
+/**
+ * System-wide configuration for Groovy Label Assignment.
+ * 
+ * @since 1.2.1
+ */
+@Extension
+public class GroovyLabelAssignmentConfiguration extends GlobalConfiguration
+{
+    static private final Logger LOGGER = Logger.getLogger(GroovyLabelAssignmentConfiguration.class.getName());
+    
+    private long timeoutSeconds = 0;
+    
+    private TimeoutPolicy timeoutPolicy = TimeoutPolicy.FAIL;
+    
+    private int circuitBreakerThreshold = 0;
+    
+    private long circuitBreakerCoolDownSeconds = 60;
+    
+    private long circuitBreakerBudgetMillis = 0;
+    
+    private TimeoutPolicy circuitBreakerPolicy = TimeoutPolicy.FAIL;
+    
+    private long recentSubmissionWindowMillis = 0;
+    
+    private List<SharedLabelScript> sharedScripts = new ArrayList<SharedLabelScript>();
+    
+    /**
+     * {@link #sharedScripts} indexed by names.
+     * Replaced at once when reconfigured.
+     */
+    private transient volatile Map<String, SharedLabelScript> sharedScriptMap = Collections.emptyMap();
+    
+    public GroovyLabelAssignmentConfiguration()
+    {
+        try
+        {
+            load();
+            setSharedScripts(sharedScripts);
+        }
+        catch(RuntimeException e)
+        {
+            // don't prevent Jenkins from starting.
+            // scripts are still displayed to be fixed, but not used by jobs.
+            LOGGER.log(Level.SEVERE, "Failed to load the configuration: shared label scripts are not available", e);
+            if(sharedScripts == null)
+            {
+                sharedScripts = new ArrayList<SharedLabelScript>();
+            }
+        }
+    }
+    
+    /**
+     * @return the configuration. null if Jenkins is not running.
+     */
+    public static GroovyLabelAssignmentConfiguration get()
+    {
+        if(Jenkins.getInstance() == null)
+        {
+            return null;
+        }
+        return GlobalConfiguration.all().get(GroovyLabelAssignmentConfiguration.class);
+    }
+    
+    /**
+     * @return seconds a label script can run. 0 for no limit.
+     */
+    public long getTimeoutSeconds()
+    {
+        return timeoutSeconds;
+    }
+    
+    /**
+     * @param timeoutSeconds seconds a label script can run. 0 for no limit.
+     */
+    public void setTimeoutSeconds(long timeoutSeconds)
+    {
+        this.timeoutSeconds = Math.max(timeoutSeconds, 0);
+    }
+    
+    /**
+     * @return what to do when a label script exceeds the time limit.
+     */
+    public TimeoutPolicy getTimeoutPolicy()
+    {
+        return (timeoutPolicy != null) ? timeoutPolicy : TimeoutPolicy.FAIL;
+    }
+    
+    /**
+     * @param timeoutPolicy what to do when a label script exceeds the time limit.
+     */
+    public void setTimeoutPolicy(TimeoutPolicy timeoutPolicy)
+    {
+        this.timeoutPolicy = timeoutPolicy;
+    }
+    
+    /**
+     * @return the number of consecutive failures to stop evaluating a label script. 0 never to stop.
+     * @since 1.2.1
+     */
+    public int getCircuitBreakerThreshold()
+    {
+        return circuitBreakerThreshold;
+    }
+    
+    /**
+     * @param circuitBreakerThreshold the number of consecutive failures to stop evaluating a label script. 0 never to stop.
+     * @since 1.2.1
+     */
+    public void setCircuitBreakerThreshold(int circuitBreakerThreshold)
+    {
+        this.circuitBreakerThreshold = Math.max(circuitBreakerThreshold, 0);
+    }
+    
+    /**
+     * @return seconds to stop evaluating a failing label script before trying again.
+     * @since 1.2.1
+     */
+    public long getCircuitBreakerCoolDownSeconds()
+    {
+        return circuitBreakerCoolDownSeconds;
+    }
+    
+    /**
+     * @param circuitBreakerCoolDownSeconds seconds to stop evaluating a failing label script before trying again.
+     * @since 1.2.1
+     */
+    public void setCircuitBreakerCoolDownSeconds(long circuitBreakerCoolDownSeconds)
+    {
+        this.circuitBreakerCoolDownSeconds = Math.max(circuitBreakerCoolDownSeconds, 0);
+    }
+    
+    /**
+     * @return milliseconds an evaluation can take before counted as a failure. 0 to use the timeout.
+     * @since 1.2.1
+     */
+    public long getCircuitBreakerBudgetMillis()
+    {
+        return circuitBreakerBudgetMillis;
+    }
+    
+    /**
+     * @param circuitBreakerBudgetMillis milliseconds an evaluation can take before counted as a failure. 0 to use the timeout.
+     * @since 1.2.1
+     */
+    public void setCircuitBreakerBudgetMillis(long circuitBreakerBudgetMillis)
+    {
+        this.circuitBreakerBudgetMillis = Math.max(circuitBreakerBudgetMillis, 0);
+    }
+    
+    /**
+     * @return what to do with builds while a label script is not evaluated.
+     * @since 1.2.1
+     */
+    public TimeoutPolicy getCircuitBreakerPolicy()
+    {
+        return (circuitBreakerPolicy != null) ? circuitBreakerPolicy : TimeoutPolicy.FAIL;
+    }
+    
+    /**
+     * @param circuitBreakerPolicy what to do with builds while a label script is not evaluated.
+     * @since 1.2.1
+     */
+    public void setCircuitBreakerPolicy(TimeoutPolicy circuitBreakerPolicy)
+    {
+        this.circuitBreakerPolicy = circuitBreakerPolicy;
+    }
+    
+    /**
+     * @return milliseconds to reuse labels decided for the same submissions. 0 not to reuse.
+     * @see RecentSubmissions
+     * @since 1.2.1
+     */
+    public long getRecentSubmissionWindowMillis()
+    {
+        return recentSubmissionWindowMillis;
+    }
+    
+    /**
+     * @param recentSubmissionWindowMillis milliseconds to reuse labels decided for the same submissions. 0 not to reuse.
+     * @see RecentSubmissions
+     * @since 1.2.1
+     */
+    public void setRecentSubmissionWindowMillis(long recentSubmissionWindowMillis)
+    {
+        this.recentSubmissionWindowMillis = Math.max(recentSubmissionWindowMillis, 0);
+    }
+    
+    /**
+     * @return label scripts shared by jobs.
+     * @since 1.2.1
+     */
+    public List<SharedLabelScript> getSharedScripts()
+    {
+        return Collections.unmodifiableList(sharedScripts);
+    }
+    
+    /**
+     * @param sharedScripts label scripts shared by jobs.
+     * @throws IllegalArgumentException names are blank or duplicated.
+     * @since 1.2.1
+     */
+    public void setSharedScripts(List<SharedLabelScript> sharedScripts)
+    {
+        setSharedScriptMap(indexSharedScripts(sharedScripts));
+    }
+    
+    /**
+     * @param sharedScripts
+     * @return sharedScripts indexed by names.
+     * @throws IllegalArgumentException names are blank or duplicated.
+     */
+    private static Map<String, SharedLabelScript> indexSharedScripts(List<SharedLabelScript> sharedScripts)
+    {
+        Map<String, SharedLabelScript> map = new LinkedHashMap<String, SharedLabelScript>();
+        if(sharedScripts != null)
+        {
+            for(SharedLabelScript script: sharedScripts)
+            {
+                if(StringUtils.isEmpty(script.getName()))
+                {
+                    throw new IllegalArgumentException(Messages.GroovyLabelAssignmentConfiguration_sharedScripts_nameRequired());
+                }
+                if(map.containsKey(script.getName()))
+                {
+                    throw new IllegalArgumentException(Messages.GroovyLabelAssignmentConfiguration_sharedScripts_duplicated(script.getName()));
+                }
+                map.put(script.getName(), script);
+            }
+        }
+        return map;
+    }
+    
+    private void setSharedScriptMap(Map<String, SharedLabelScript> map)
+    {
+        this.sharedScripts = new ArrayList<SharedLabelScript>(map.values());
+        this.sharedScriptMap = Collections.unmodifiableMap(map);
+    }
+    
+    /**
+     * @param name
+     * @return the shared label script. null if not defined.
+     * @since 1.2.1
+     */
+    public SharedLabelScript getSharedScript(String name)
+    {
+        return sharedScriptMap.get(name);
+    }
+    
+    /**
+     * @see hudson.model.Descriptor#configure(org.kohsuke.stapler.StaplerRequest, net.sf.json.JSONObject)
+     */
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException
+    {
+        // validate all before modifying not to leave the configuration half applied.
+        TimeoutPolicy timeoutPolicy;
+        try
+        {
+            timeoutPolicy = TimeoutPolicy.valueOf(json.optString("timeoutPolicy", TimeoutPolicy.FAIL.name()));
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new FormException(e, "timeoutPolicy");
+        }
+        TimeoutPolicy circuitBreakerPolicy;
+        try
+        {
+            circuitBreakerPolicy = TimeoutPolicy.valueOf(json.optString("circuitBreakerPolicy", TimeoutPolicy.FAIL.name()));
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new FormException(e, "circuitBreakerPolicy");
+        }
+        Map<String, SharedLabelScript> scripts;
+        try
+        {
+            scripts = indexSharedScripts(req.bindJSONToList(SharedLabelScript.class, json.opt("sharedScripts")));
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new FormException(e.getMessage(), "sharedScripts");
+        }
+        
+        setTimeoutSeconds(json.optLong("timeoutSeconds", 0));
+        setTimeoutPolicy(timeoutPolicy);
+        setCircuitBreakerThreshold(json.optInt("circuitBreakerThreshold", 0));
+        setCircuitBreakerCoolDownSeconds(json.optLong("circuitBreakerCoolDownSeconds", 60));
+        setCircuitBreakerBudgetMillis(json.optLong("circuitBreakerBudgetMillis", 0));
+        setCircuitBreakerPolicy(circuitBreakerPolicy);
+        setRecentSubmissionWindowMillis(json.optLong("recentSubmissionWindowMillis", 0));
+        setSharedScriptMap(scripts);
+        save();
+        return true;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.RootAction;
+
+/**
+ * Exposes {@link LabelAssignmentMetrics}.
+ * 
+ * <dl>
+ *   <dt>/groovy-label-assignment-metrics/api/json</dt>
+ *   <dd>metrics in JSON (also in XML and Python as other remote APIs)</dd>
+ *   <dt>/groovy-label-assignment-metrics/prometheus</dt>
+ *   <dd>metrics in Prometheus text exposition format</dd>
+ * </dl>
+ * 
+ * Both requires the administer permission,
+ * as metrics contain names of jobs.
+ * 
+ * @since 1.2.1
+ */
+@Extension
+@ExportedBean
+public class GroovyLabelAssignmentMetricsAction implements RootAction
+{
+    static private final String PREFIX = "groovy_label_assignment_";
+    
+    /**
+     * @return null not to be displayed in the side panel.
+     * @see hudson.model.Action#getIconFileName()
+     */
+    @Override
+    public String getIconFileName()
+    {
+        return null;
+    }
+    
+    /**
+     * @see hudson.model.Action#getDisplayName()
+     */
+    @Override
+    public String getDisplayName()
+    {
+        return Messages.GroovyLabelAssignmentMetricsAction_DisplayName();
+    }
+    
+    /**
+     * @see hudson.model.Action#getUrlName()
+     */
+    @Override
+    public String getUrlName()
+    {
+        return "groovy-label-assignment-metrics";
+    }
+    
+    /**
+     * @return remote API.
+     */
+    public Api getApi()
+    {
+        checkPermission();
+        return new Api(this);
+    }
+    
+    /**
+     * @return statistics for each job.
+     */
+    @Exported
+    public List<LabelAssignmentMetrics.JobMetrics> getJobs()
+    {
+        return LabelAssignmentMetrics.get().getJobs();
+    }
+    
+    /**
+     * @return upper bounds of histogram buckets in milliseconds.
+     */
+    @Exported
+    public long[] getBucketBoundsMillis()
+    {
+        return LabelAssignmentMetrics.getBucketBoundsMillis();
+    }
+    
+    /**
+     * @return the number of times compiled scripts are reused.
+     */
+    @Exported
+    public long getCompiledScriptHits()
+    {
+        return CompiledLabelScript.getHitCount();
+    }
+    
+    /**
+     * @return the number of times scripts are compiled.
+     */
+    @Exported
+    public long getCompiledScriptMisses()
+    {
+        return CompiledLabelScript.getMissCount();
+    }
+    
+    /**
+     * @return the number of class loaders created for scripts and not garbage collected yet.
+     */
+    @Exported
+    public int getLiveClassLoaders()
+    {
+        return CompiledLabelScript.getLiveClassLoaderCount();
+    }
+    
+    /**
+     * @return the number of times approvals are answered from the cache.
+     */
+    @Exported
+    public long getApprovalCacheHits()
+    {
+        return ApprovalCache.getHitCount();
+    }
+    
+    /**
+     * @return the number of times approvals are checked with script-security.
+     */
+    @Exported
+    public long getApprovalCacheMisses()
+    {
+        return ApprovalCache.getMissCount();
+    }
+    
+    /**
+     * @return the number of times parsed labels are reused.
+     */
+    @Exported
+    public long getLabelCacheHits()
+    {
+        return LabelCache.getHitCount();
+    }
+    
+    /**
+     * @return the number of times labels are parsed.
+     */
+    @Exported
+    public long getLabelCacheMisses()
+    {
+        return LabelCache.getMissCount();
+    }
+    
+    /**
+     * @return the number of labels cached.
+     */
+    @Exported
+    public int getLabelCacheSize()
+    {
+        return LabelCache.size();
+    }
+    
+    /**
+     * @return the number of times memoized labels are used.
+     */
+    @Exported
+    public long getMemoHits()
+    {
+        return LabelScriptMemo.getHitCount();
+    }
+    
+    /**
+     * @return the number of times deterministic scripts are run.
+     */
+    @Exported
+    public long getMemoMisses()
+    {
+        return LabelScriptMemo.getMissCount();
+    }
+    
+    /**
+     * @return the number of times labels decided for the same submissions are reused.
+     */
+    @Exported
+    public long getRecentSubmissionHits()
+    {
+        return RecentSubmissions.getHitCount();
+    }
+    
+    /**
+     * @return the number of times submissions are not found in recent ones.
+     */
+    @Exported
+    public long getRecentSubmissionMisses()
+    {
+        return RecentSubmissions.getMissCount();
+    }
+    
+    /**
+     * @return the number of scripts timed out in all jobs.
+     */
+    @Exported
+    public long getTimeouts()
+    {
+        return LabelEvaluationExecutor.getTimeoutCount();
+    }
+    
+    /**
+     * Writes metrics in Prometheus text exposition format.
+     * 
+     * @param req
+     * @param rsp
+     * @throws IOException
+     */
+    public void doPrometheus(StaplerRequest req, StaplerResponse rsp) throws IOException
+    {
+        checkPermission();
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter w = rsp.getWriter();
+        writePrometheus(w);
+        w.flush();
+    }
+    
+    /**
+     * @param w
+     */
+    void writePrometheus(PrintWriter w)
+    {
+        List<LabelAssignmentMetrics.JobMetrics> jobs = getJobs();
+        
+        header(w, "evaluations_total", "counter", "Number of label script evaluations.");
+        for(LabelAssignmentMetrics.JobMetrics job: jobs)
+        {
+            sample(w, "evaluations_total", jobLabel(job), job.getEvaluations());
+        }
+        header(w, "failures_total", "counter", "Number of label script evaluations failed.");
+        for(LabelAssignmentMetrics.JobMetrics job: jobs)
+        {
+            sample(w, "failures_total", jobLabel(job), job.getFailures());
+        }
+        header(w, "invalid_labels_total", "counter", "Number of invalid label expressions returned from scripts.");
+        for(LabelAssignmentMetrics.JobMetrics job: jobs)
+        {
+            sample(w, "invalid_labels_total", jobLabel(job), job.getInvalidLabels());
+        }
+        header(w, "timeouts_total", "counter", "Number of label script evaluations timed out.");
+        for(LabelAssignmentMetrics.JobMetrics job: jobs)
+        {
+            sample(w, "timeouts_total", jobLabel(job), job.getTimeouts());
+        }
+        header(w, "short_circuits_total", "counter", "Number of builds decided without evaluating scripts as circuit breakers were open.");
+        for(LabelAssignmentMetrics.JobMetrics job: jobs)
+        {
+            sample(w, "short_circuits_total", jobLabel(job), job.getShortCircuits());
+        }
+        header(w, "circuit_open", "gauge", "1 if the circuit breaker is open or probing.");
+        for(LabelAssignmentMetrics.JobMetrics job: jobs)
+        {
+            sample(w, "circuit_open", jobLabel(job), (job.getCircuitState() != CircuitBreaker.State.CLOSED) ? 1 : 0);
+        }
+        
+        long[] bounds = LabelAssignmentMetrics.getBucketBoundsMillis();
+        header(w, "phase_seconds", "histogram", "Time spent in each phase of label evaluations.");
+        for(LabelAssignmentMetrics.JobMetrics job: jobs)
+        {
+            for(LabelAssignmentMetrics.Histogram histogram: job.getPhases())
+            {
+                String labels = String.format("%s,phase=\"%s\"", jobLabel(job), histogram.getPhase());
+                long[] buckets = histogram.getBuckets();
+                long cumulative = 0;
+                for(int i = 0; i < bounds.length; ++i)
+                {
+                    cumulative += buckets[i];
+                    sample(w, "phase_seconds_bucket", String.format("%s,le=\"%s\"", labels, bounds[i] / 1000.0), cumulative);
+                }
+                cumulative += buckets[bounds.length];
+                sample(w, "phase_seconds_bucket", String.format("%s,le=\"+Inf\"", labels), cumulative);
+                w.println(String.format("%sphase_seconds_sum{%s} %s", PREFIX, labels, histogram.getSumMillis() / 1000.0));
+                sample(w, "phase_seconds_count", labels, histogram.getCount());
+            }
+        }
+        
+        header(w, "cache_hits_total", "counter", "Number of cache hits.");
+        sample(w, "cache_hits_total", "cache=\"approval\"", getApprovalCacheHits());
+        sample(w, "cache_hits_total", "cache=\"compiled_script\"", getCompiledScriptHits());
+        sample(w, "cache_hits_total", "cache=\"label\"", getLabelCacheHits());
+        sample(w, "cache_hits_total", "cache=\"memo\"", getMemoHits());
+        sample(w, "cache_hits_total", "cache=\"recent_submission\"", getRecentSubmissionHits());
+        header(w, "cache_misses_total", "counter", "Number of cache misses.");
+        sample(w, "cache_misses_total", "cache=\"approval\"", getApprovalCacheMisses());
+        sample(w, "cache_misses_total", "cache=\"compiled_script\"", getCompiledScriptMisses());
+        sample(w, "cache_misses_total", "cache=\"label\"", getLabelCacheMisses());
+        sample(w, "cache_misses_total", "cache=\"memo\"", getMemoMisses());
+        sample(w, "cache_misses_total", "cache=\"recent_submission\"", getRecentSubmissionMisses());
+        header(w, "label_cache_size", "gauge", "Number of label expressions cached.");
+        sample(w, "label_cache_size", null, getLabelCacheSize());
+        header(w, "live_class_loaders", "gauge", "Number of class loaders created for scripts and not garbage collected yet.");
+        sample(w, "live_class_loaders", null, getLiveClassLoaders());
+    }
+    
+    private static void header(PrintWriter w, String name, String type, String help)
+    {
+        w.println(String.format("# HELP %s%s %s", PREFIX, name, help));
+        w.println(String.format("# TYPE %s%s %s", PREFIX, name, type));
+    }
+    
+    private static void sample(PrintWriter w, String name, String labels, long value)
+    {
+        if(labels == null)
+        {
+            w.println(String.format("%s%s %d", PREFIX, name, value));
+            return;
+        }
+        w.println(String.format("%s%s{%s} %d", PREFIX, name, labels, value));
+    }
+    
+    private static String jobLabel(LabelAssignmentMetrics.JobMetrics job)
+    {
+        return String.format("job=\"%s\"", escape(job.getName()));
+    }
+    
+    /**
+     * Escapes a label value as Prometheus requires.
+     * 
+     * @param value
+     * @return escaped value.
+     */
+    static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    private static void checkPermission()
+    {
+        Jenkins jenkins = Jenkins.getInstance();
+        if(jenkins != null)
+        {
+            jenkins.checkPermission(Jenkins.ADMINISTER);
+        }
+    }
+}
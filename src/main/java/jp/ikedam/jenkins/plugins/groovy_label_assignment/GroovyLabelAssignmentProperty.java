@@ -23,9 +23,18 @@
  */
 package jp.ikedam.jenkins.plugins.groovy_label_assignment;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,6 +55,7 @@ import hudson.Extension;
 import hudson.Util;
 import hudson.matrix.Axis;
 import hudson.matrix.AxisList;
+import hudson.matrix.Combination;
 import hudson.matrix.MatrixConfiguration;
 import hudson.matrix.MatrixProject;
 import hudson.model.AbstractProject;
@@ -53,8 +63,8 @@ import hudson.model.Action;
 import hudson.model.EnvironmentContributingAction;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
-import hudson.model.labels.LabelAssignmentAction;
-import hudson.model.labels.LabelExpression;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 
 /**
  * JobProperty that holds configuration for GroovyLabelAssignment.
@@ -73,6 +83,57 @@ public class GroovyLabelAssignmentProperty extends JobProperty<AbstractProject<?
     
     private final SecureGroovyScript secureGroovyScript;
     
+    private final boolean deterministic;
+    
+    private final boolean matrixBatch;
+    
+    private final boolean matrixPreEvaluation;
+    
+    private final long timeoutSeconds;
+    
+    private final String timeoutPolicy;
+    
+    private final boolean asynchronous;
+    
+    private final LabelDecisionTable decisionTable;
+    
+    private final LabelTemplate labelTemplate;
+    
+    private final String sharedScriptName;
+    
+    /**
+     * The script compiled last time.
+     * A new instance is created when the job is reconfigured,
+     * and this is discarded at that time.
+     */
+    private transient volatile CompiledLabelScript compiledScript;
+    
+    private transient LabelScriptMemo memo;
+    
+    /**
+     * The shared script {@link #memo} is for.
+     */
+    private transient SharedLabelScript memoSharedScript;
+    
+    private transient RecentSubmissions recentSubmissions;
+    
+    /**
+     * Reset when the job is reconfigured, as a new instance is created.
+     */
+    private transient CircuitBreaker circuitBreaker;
+    
+    /**
+     * Set when the script always returns the same value.
+     * Analyzed when the property is created or loaded.
+     */
+    private transient ConstantLabelScript constantScript;
+    
+    /**
+     * Labels decided last time for each project (configurations for multi-configuration projects).
+     * Blank for not modified.
+     */
+    private transient Map<String, String> lastGoodLabelStrings;
+    
     /**
      * @return the Groovy Script
      * @deprecated use {@link #getSecureGroovyScript()} instead
@@ -92,16 +153,166 @@ public class GroovyLabelAssignmentProperty extends JobProperty<AbstractProject<?
         return secureGroovyScript;
     }
     
+    /**
+     * @return whether the script is a deterministic function of variables it reads.
+     * @since 1.2.1
+     */
+    public boolean isDeterministic()
+    {
+        return deterministic;
+    }
+    
+    /**
+     * @return whether the script decides labels for all configurations of a multi-configuration project at once.
+     * @since 1.2.1
+     */
+    public boolean isMatrixBatch()
+    {
+        return matrixBatch;
+    }
+    
+    /**
+     * @return whether to evaluate the script for all configurations in parallel when the parent build is scheduled.
+     * @since 1.2.1
+     */
+    public boolean isMatrixPreEvaluation()
+    {
+        return matrixPreEvaluation;
+    }
+    
+    /**
+     * @return seconds the script can run. 0 to use the global setting.
+     * @since 1.2.1
+     */
+    public long getTimeoutSeconds()
+    {
+        return timeoutSeconds;
+    }
+    
+    /**
+     * @return the name of {@link TimeoutPolicy}. blank to use the global setting.
+     * @since 1.2.1
+     */
+    public String getTimeoutPolicy()
+    {
+        return timeoutPolicy;
+    }
+    
+    /**
+     * @return whether to decide labels out of the thread scheduling builds.
+     * @since 1.2.1
+     */
+    public boolean isAsynchronous()
+    {
+        return asynchronous;
+    }
+    
+    /**
+     * @return the decision table used instead of the script. null to use the script.
+     * @since 1.2.1
+     */
+    public LabelDecisionTable getDecisionTable()
+    {
+        return decisionTable;
+    }
+    
+    /**
+     * @return the label template used instead of the script. null to use the script.
+     * @since 1.2.1
+     */
+    public LabelTemplate getLabelTemplate()
+    {
+        return labelTemplate;
+    }
+    
+    /**
+     * @return the script analyzed as a constant. null if the script is not a constant.
+     * @since 1.2.1
+     */
+    public ConstantLabelScript getConstantScript()
+    {
+        if(getSharedScriptName() != null)
+        {
+            SharedLabelScript shared = getSharedScript();
+            return (shared != null) ? shared.getConstantScript() : null;
+        }
+        return constantScript;
+    }
+    
+    /**
+     * @return the name of {@link SharedLabelScript} used instead of the script. null to use the script.
+     * @since 1.2.1
+     */
+    public String getSharedScriptName()
+    {
+        return sharedScriptName;
+    }
+    
+    /**
+     * @return the shared script used instead of the script.
+     *      null if not configured to use a shared script, or it is not defined.
+     * @since 1.2.1
+     */
+    public SharedLabelScript getSharedScript()
+    {
+        if(getSharedScriptName() == null)
+        {
+            return null;
+        }
+        GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+        return (config != null) ? config.getSharedScript(getSharedScriptName()) : null;
+    }
+    
     /**
      * Constructor from the form input.
      * 
      * @param secureGroovyScript
-     * @since 1.2.0
+     * @param deterministic whether to memoize the results of the script.
+     * @param matrixBatch whether the script decides labels for all configurations at once.
+     * @param matrixPreEvaluation whether to evaluate the script for all configurations in parallel
+     *      when the parent build is scheduled.
+     * @param timeoutSeconds seconds the script can run. 0 to use the global setting.
+     * @param timeoutPolicy the name of {@link TimeoutPolicy}. blank to use the global setting.
+     * @param asynchronous whether to decide labels out of the thread scheduling builds.
+     * @param decisionTable the decision table used instead of the script. null to use the script.
+     * @param labelTemplate the label template used instead of the script. null to use the script.
+     * @param sharedScriptName the name of {@link SharedLabelScript} used instead of the script. blank to use the script.
+     * @since 1.2.1
      */
     @DataBoundConstructor
-    public GroovyLabelAssignmentProperty(SecureGroovyScript secureGroovyScript)
+    public GroovyLabelAssignmentProperty(
+            SecureGroovyScript secureGroovyScript,
+            boolean deterministic,
+            boolean matrixBatch,
+            boolean matrixPreEvaluation,
+            long timeoutSeconds,
+            String timeoutPolicy,
+            boolean asynchronous,
+            LabelDecisionTable decisionTable,
+            LabelTemplate labelTemplate,
+            String sharedScriptName
+    )
     {
         this.secureGroovyScript = (secureGroovyScript != null) ? secureGroovyScript.configuringWithNonKeyItem() : null;
+        this.deterministic = deterministic;
+        this.matrixBatch = matrixBatch;
+        this.matrixPreEvaluation = matrixPreEvaluation;
+        this.timeoutSeconds = Math.max(timeoutSeconds, 0);
+        this.timeoutPolicy = Util.fixEmptyAndTrim(timeoutPolicy);
+        this.asynchronous = asynchronous;
+        this.decisionTable = decisionTable;
+        this.labelTemplate = labelTemplate;
+        this.sharedScriptName = Util.fixEmptyAndTrim(sharedScriptName);
+        this.constantScript = isScriptUsed() ? ConstantLabelScript.analyze(this.secureGroovyScript) : null;
+    }
+    
+    /**
+     * @param secureGroovyScript
+     * @since 1.2.0
+     */
+    public GroovyLabelAssignmentProperty(SecureGroovyScript secureGroovyScript)
+    {
+        this(secureGroovyScript, false, false, false, 0, null, false, null, null, null);
     }
     
     public GroovyLabelAssignmentProperty(String groovyScript)
@@ -115,12 +326,44 @@ public class GroovyLabelAssignmentProperty extends JobProperty<AbstractProject<?
             // < 1.2.0
             return new GroovyLabelAssignmentProperty(groovyScript);
         }
+        constantScript = isScriptUsed() ? ConstantLabelScript.analyze(secureGroovyScript) : null;
         return this;
     }
     
+    /**
+     * @return whether the script is used, not replaced with a decision table or a label template.
+     */
+    private boolean isScriptUsed()
+    {
+        return decisionTable == null && labelTemplate == null;
+    }
+    
+    /**
+     * @return whether builds run a compiled script.
+     */
+    boolean isCompiledScriptUsed()
+    {
+        return isScriptUsed()
+                && (getSecureGroovyScript() != null || getSharedScriptName() != null)
+                && getConstantScript() == null;
+    }
+    
+    /**
+     * @return the page showing time spent to decide labels for recent builds.
+     * @see hudson.model.JobProperty#getJobActions(hudson.model.Job)
+     */
+    @Override
+    public Collection<? extends Action> getJobActions(AbstractProject<?, ?> job)
+    {
+        return Collections.singleton(new LabelEvaluationTrendAction(job));
+    }
+    
     /**
      * Decide label of nodes where the job will run.
      * 
+     * When {@link #isAsynchronous()}, this only adds a pending {@link GroovyLabelAssignmentAction},
+     * and the label is decided in background.
+     * 
      * @param project The job. This may not be the owner job if it is MatrixConfiguration.
      * @param actions actions of job. and add LabelAssignmentAction.
      * 
@@ -128,7 +371,285 @@ public class GroovyLabelAssignmentProperty extends JobProperty<AbstractProject<?
      */
     public boolean assignLabel(AbstractProject<?, ?> project, List<Action> actions)
     {
-        if(getSecureGroovyScript() == null)
+        String signature = getSubmissionSignature(project, actions);
+        if(signature != null)
+        {
+            RecentSubmissions.Entry recent = getRecentSubmissions().lookup(signature, getSharedScript());
+            if(recent != null)
+            {
+                LOGGER.fine(String.format("%s: use the label decided for the same submission", project.getName()));
+                return applyLabel(project, recent.getLabelString(), actions);
+            }
+        }
+        
+        if(isAsynchronous() && (getSecureGroovyScript() != null || getSharedScriptName() != null)
+                && getConstantScript() == null && isScriptUsed()
+                && !(project instanceof MatrixProject && (isMatrixBatch() || isMatrixPreEvaluation())))
+        {
+            // Parents of multi-configuration projects deciding labels for configurations
+            // need to add actions to the build, and are processed synchronously.
+            // Constant scripts, decision tables and label templates
+            // are fast enough to be processed synchronously.
+            GroovyLabelAssignmentAction labelAction = GroovyLabelAssignmentAction.pending();
+            startEvaluation(project, new ArrayList<Action>(actions), labelAction);
+            actions.add(0, labelAction);
+            LOGGER.fine(String.format("%s: label will be decided asynchronously", project.getName()));
+            return true;
+        }
+        return assignLabelSynchronously(project, actions);
+    }
+    
+    /**
+     * Starts deciding the label in background.
+     * 
+     * The result is set to labelAction.
+     * This does nothing if the evaluation is already started.
+     * 
+     * @param project the job.
+     * @param actions actions of the job, not including labelAction.
+     * @param labelAction the pending action to set the label.
+     * @since 1.2.1
+     */
+    public void startEvaluation(
+            final AbstractProject<?, ?> project,
+            final List<Action> actions,
+            final GroovyLabelAssignmentAction labelAction
+    )
+    {
+        labelAction.startEvaluation(new Callable<Void>() {
+            public Void call() throws Exception
+            {
+                List<Action> result = new ArrayList<Action>(actions);
+                long start = System.nanoTime();
+                boolean succeeded;
+                try
+                {
+                    succeeded = assignLabelSynchronously(project, result);
+                }
+                catch(RuntimeException e)
+                {
+                    LOGGER.log(Level.SEVERE, String.format("%s: Failed to decide the label", project.getName()), e);
+                    succeeded = false;
+                }
+                
+                if(succeeded)
+                {
+                    GroovyLabelAssignmentAction decided = null;
+                    for(GroovyLabelAssignmentAction a: Util.filter(result, GroovyLabelAssignmentAction.class))
+                    {
+                        if(!actions.contains(a))
+                        {
+                            decided = a;
+                            break;
+                        }
+                    }
+                    if(decided != null)
+                    {
+                        labelAction.resolve(decided.getLabelString(), decided.getCandidates());
+                        labelAction.setTimings(decided.getTimings());
+                    }
+                    else
+                    {
+                        labelAction.resolve(null);
+                    }
+                    LabelEvaluationListener.fireDecided(
+                            project,
+                            labelAction.getLabelString(),
+                            (labelAction.getLabelString() != null)
+                                    ? LabelEvaluationListener.Outcome.ASSIGNED
+                                    : LabelEvaluationListener.Outcome.NOT_MODIFIED,
+                            System.nanoTime() - start
+                    );
+                }
+                else
+                {
+                    labelAction.fail();
+                    GroovyLabelAssignmentQueueTaskDispatcher.cancel(labelAction);
+                    LabelEvaluationListener.fireDecided(project, null, LabelEvaluationListener.Outcome.REJECTED, System.nanoTime() - start);
+                }
+                
+                Jenkins jenkins = Jenkins.getInstance();
+                if(jenkins != null)
+                {
+                    jenkins.getQueue().scheduleMaintenance();
+                }
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Decide label of nodes where the job will run in the current thread.
+     * 
+     * @param project The job. This may not be the owner job if it is MatrixConfiguration.
+     * @param actions actions of job. and add LabelAssignmentAction.
+     * 
+     * @return returns properly evaluate script and add label.
+     * @since 1.2.1
+     */
+    protected boolean assignLabelSynchronously(AbstractProject<?, ?> project, List<Action> actions)
+    {
+        EvaluationTimings.start(project);
+        try
+        {
+            return assignLabelWithCircuitBreaker(project, actions);
+        }
+        finally
+        {
+            EvaluationTimings.finish();
+        }
+    }
+    
+    /**
+     * Decides the label unless the circuit breaker is open.
+     * 
+     * @param project
+     * @param actions
+     * @return false if failed.
+     */
+    private boolean assignLabelWithCircuitBreaker(AbstractProject<?, ?> project, List<Action> actions)
+    {
+        String signature = getSubmissionSignature(project, actions);
+        // read before deciding not to reuse labels decided with revoked approvals.
+        long approvalGeneration = ApprovalCache.getGeneration();
+        SharedLabelScript shared = getSharedScript();
+        int size = actions.size();
+        GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+        int threshold = (config != null) ? config.getCircuitBreakerThreshold() : 0;
+        if(threshold <= 0 || getConstantScript() != null)
+        {
+            if(!decideLabel(project, actions))
+            {
+                return false;
+            }
+        }
+        else
+        {
+            CircuitBreaker breaker = getCircuitBreaker();
+            LabelAssignmentMetrics.JobMetrics metrics = LabelAssignmentMetrics.get().getJobMetrics(project);
+            if(!breaker.allowEvaluation(config.getCircuitBreakerCoolDownSeconds() * 1000))
+            {
+                metrics.recordShortCircuit();
+                metrics.recordCircuitState(breaker.getState());
+                // fallback is not worth remembering as the submission.
+                return handleShortCircuit(project, actions, config.getCircuitBreakerPolicy());
+            }
+            long start = System.currentTimeMillis();
+            boolean succeeded = decideLabel(project, actions);
+            long elapsed = System.currentTimeMillis() - start;
+            long budgetMillis = (config.getCircuitBreakerBudgetMillis() > 0)
+                    ? config.getCircuitBreakerBudgetMillis()
+                    : getEffectiveTimeoutSeconds() * 1000;
+            if(!succeeded || (budgetMillis > 0 && elapsed >= budgetMillis))
+            {
+                breaker.recordFailure(threshold);
+                if(breaker.getState() != CircuitBreaker.State.CLOSED)
+                {
+                    LOGGER.warning(String.format("%s: Script failed %d times: stop evaluating for %d seconds", project.getName(), breaker.getConsecutiveFailures(), config.getCircuitBreakerCoolDownSeconds()));
+                }
+            }
+            else
+            {
+                breaker.recordSuccess();
+            }
+            metrics.recordCircuitState(breaker.getState());
+            if(!succeeded)
+            {
+                return false;
+            }
+        }
+        EvaluationTimings timings = EvaluationTimings.current();
+        if(signature != null && timings != null && timings.isReusable())
+        {
+            // applyLabel adds the action to the head.
+            String labelString = (actions.size() > size && actions.get(0) instanceof GroovyLabelAssignmentAction)
+                    ? ((GroovyLabelAssignmentAction)actions.get(0)).getLabelString()
+                    : null;
+            getRecentSubmissions().record(signature, shared, labelString, approvalGeneration);
+        }
+        return true;
+    }
+    
+    /**
+     * Decides what to do with a build while the circuit breaker is open.
+     * 
+     * @param project
+     * @param actions
+     * @param policy
+     * @return false to reject the build.
+     */
+    private boolean handleShortCircuit(AbstractProject<?, ?> project, List<Action> actions, TimeoutPolicy policy)
+    {
+        EvaluationTimings.recordNotReusable();
+        switch(policy)
+        {
+        case STATIC_LABEL:
+            LOGGER.fine(String.format("%s: Script is not evaluated: label is not modified.", project.getName()));
+            return true;
+        case LAST_GOOD_LABEL:
+            String labelString = getLastGoodLabelStrings().get(project.getFullName());
+            if(labelString != null)
+            {
+                LOGGER.fine(String.format("%s: Script is not evaluated: use the last label %s", project.getName(), labelString));
+                return applyLabel(project, labelString, actions);
+            }
+            LOGGER.fine(String.format("%s: Script is not evaluated and no label is decided before", project.getName()));
+            return false;
+        default:
+            LOGGER.fine(String.format("%s: Script is not evaluated", project.getName()));
+            return false;
+        }
+    }
+    
+    /**
+     * @return the circuit breaker for this job.
+     * @since 1.2.1
+     */
+    public synchronized CircuitBreaker getCircuitBreaker()
+    {
+        if(circuitBreaker == null)
+        {
+            circuitBreaker = new CircuitBreaker();
+        }
+        return circuitBreaker;
+    }
+    
+    /**
+     * @param project
+     * @param actions
+     * @return the signature of the submission to reuse the label. null not to reuse.
+     */
+    private String getSubmissionSignature(AbstractProject<?, ?> project, List<Action> actions)
+    {
+        if(getConstantScript() != null)
+        {
+            // nothing to save.
+            return null;
+        }
+        if(isScriptUsed() && !isDeterministic())
+        {
+            // the script may return different labels for the same submission.
+            return null;
+        }
+        if((isMatrixBatch() || isMatrixPreEvaluation())
+                && (project instanceof MatrixProject || project instanceof MatrixConfiguration))
+        {
+            // labels are passed from parents to configurations with actions.
+            return null;
+        }
+        return RecentSubmissions.signatureOf(project, actions);
+    }
+    
+    /**
+     * Decides the label and adds {@link GroovyLabelAssignmentAction}.
+     * 
+     * @param project
+     * @param actions
+     * @return false if failed.
+     */
+    private boolean decideLabel(AbstractProject<?, ?> project, List<Action> actions)
+    {
+        if(getSecureGroovyScript() == null && getSharedScriptName() == null && isScriptUsed())
         {
             // groovyScript is not configured collectlt.
             LOGGER.severe(String.format("%s: GroovyScript is not configured.", project.getName()));
@@ -142,52 +663,624 @@ public class GroovyLabelAssignmentProperty extends JobProperty<AbstractProject<?
             cl = Thread.currentThread().getContextClassLoader();
         }
         
+        if((isMatrixBatch() || isMatrixPreEvaluation()) && project instanceof MatrixConfiguration)
+        {
+            MatrixConfiguration child = (MatrixConfiguration)project;
+            MatrixLabelAssignmentAction matrixAction = MatrixLabelAssignmentAction.findFor(child, actions);
+            if(matrixAction != null && matrixAction.isDecided(child.getCombination()))
+            {
+                // decided when the parent build was scheduled.
+                try
+                {
+                    String labelString = matrixAction.getLabelString(child.getCombination());
+                    EvaluationTimings.recordAll(matrixAction.takeTimings(child.getCombination()));
+                    return applyLabel(project, labelString, actions);
+                }
+                catch(TimeoutException e)
+                {
+                    // not to hold the queue long.
+                    LOGGER.fine(String.format("%s: evaluation in advance didn't finish in %d ms", project.getName(), MatrixLabelAssignmentAction.WAIT_MILLIS));
+                }
+                catch(ExecutionException e)
+                {
+                    if(e.getCause() instanceof LabelScriptTimeoutException)
+                    {
+                        return handleTimeout(project, actions, (LabelScriptTimeoutException)e.getCause());
+                    }
+                    if(e.getCause() instanceof CancellationException)
+                    {
+                        LOGGER.fine(String.format("%s: evaluation in advance was skipped: %s", project.getName(), e.getCause().getMessage()));
+                    }
+                    else
+                    {
+                        LabelAssignmentMetrics.get().getJobMetrics(project).recordFailure();
+                        LOGGER.log(Level.SEVERE, String.format("%s: Failed to run script", project.getName()), e.getCause());
+                        return false;
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    LOGGER.log(Level.WARNING, String.format("%s: Interrupted while waiting for the label", project.getName()), e);
+                    return false;
+                }
+            }
+            LOGGER.fine(String.format("%s: labels are not decided in the parent build", project.getName()));
+        }
+        
         // Run groovy script.
+        ConstantLabelScript constant = getConstantScript();
         Object out;
         try
         {
-            Binding binding = createBinding(project, actions);
-            out = getSecureGroovyScript().evaluate(cl, binding);
+            if(constant != null)
+            {
+                // no need to run the script.
+                LabelAssignmentMetrics.get().getJobMetrics(project).recordEvaluation();
+                out = constant.evaluate();
+            }
+            else if(getLabelTemplate() != null)
+            {
+                out = expandLabelTemplate(project, actions);
+            }
+            else
+            {
+                Binding binding = createBinding(project, actions);
+                if(isMatrixBatch() && project instanceof MatrixProject)
+                {
+                    binding.setVariable("combinations", getCombinations((MatrixProject)project));
+                }
+                out = evaluate(project, cl, binding);
+            }
+        }
+        catch(LabelScriptTimeoutException e)
+        {
+            return handleTimeout(project, actions, e);
         }
         catch(Exception e)
         {
+            LabelAssignmentMetrics.get().getJobMetrics(project).recordFailure();
             LOGGER.log(Level.SEVERE, String.format("%s: Failed to run script", project.getName()), e);
             return false;
         }
         
+        if(isMatrixBatch() && project instanceof MatrixProject && out instanceof Map<?, ?>)
+        {
+            return assignMatrixLabels(project, (Map<?, ?>)out, actions);
+        }
+        
+        List<LabelCandidate> candidates = null;
         String labelString = (out != null)?out.toString():null;
+        if(LabelCandidate.isCandidates(out))
+        {
+            try
+            {
+                candidates = LabelCandidate.choose(out);
+            }
+            catch(ANTLRException e)
+            {
+                LabelAssignmentMetrics.get().getJobMetrics(project).recordInvalidLabel();
+                LOGGER.log(Level.SEVERE, String.format("%s: Invalid candidate label: %s", project.getName(), out), e);
+                return false;
+            }
+            catch(IllegalArgumentException e)
+            {
+                LabelAssignmentMetrics.get().getJobMetrics(project).recordFailure();
+                LOGGER.log(Level.SEVERE, String.format("%s: Invalid candidates: %s", project.getName(), out), e);
+                return false;
+            }
+            labelString = LabelCandidate.getChosen(candidates);
+            LOGGER.fine(String.format("%s: chose %s from %s", project.getName(), labelString, out));
+        }
+        
+        if(!applyLabel(project, labelString, candidates, actions))
+        {
+            return false;
+        }
+        
+        if(isMatrixPreEvaluation() && project instanceof MatrixProject && constant == null && getLabelTemplate() == null)
+        {
+            // configurations of constant scripts and label templates decide labels quickly by themselves.
+            preEvaluateConfigurations((MatrixProject)project, cl, actions);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Expands the label template, looking up only variables it refers.
+     * 
+     * @param project
+     * @param actions
+     * @return the label expression.
+     * @throws Exception
+     */
+    private String expandLabelTemplate(final AbstractProject<?, ?> project, final List<Action> actions) throws Exception
+    {
+        LabelAssignmentMetrics.JobMetrics metrics = LabelAssignmentMetrics.get().getJobMetrics(project);
+        metrics.recordEvaluation();
+        long start = System.nanoTime();
+        long recorded = LabelAssignmentMetrics.getRecordedNanos();
+        try
+        {
+            return getLabelTemplate().expand(project, actions, new Callable<Binding>() {
+                public Binding call() throws Exception
+                {
+                    return createBinding(project, actions);
+                }
+            });
+        }
+        finally
+        {
+            metrics.recordPhase(LabelAssignmentMetrics.Phase.RUN, start, recorded);
+        }
+    }
+    
+    /**
+     * Starts evaluating the script for all active configurations in parallel,
+     * and adds {@link MatrixLabelAssignmentAction} to the parent build
+     * to pass the results to configurations.
+     * 
+     * @param project the parent project.
+     * @param cl
+     * @param actions actions of the parent build.
+     */
+    private void preEvaluateConfigurations(MatrixProject project, final ClassLoader cl, List<Action> actions)
+    {
+        if(!isCircuitClosed())
+        {
+            // only the probe runs while the breaker isn't closed.
+            LOGGER.fine(String.format("%s: configurations are not evaluated in advance as the circuit breaker is %s", project.getName(), getCircuitBreaker().getState()));
+            return;
+        }
+        final List<Action> parentActions = new ArrayList<Action>(actions);
+        MatrixLabelAssignmentAction matrixAction = new MatrixLabelAssignmentAction(
+                Collections.<String, String>emptyMap(),
+                false
+        );
+        for(final MatrixConfiguration child: project.getActiveConfigurations())
+        {
+            matrixAction.addPendingLabelString(
+                    child.getCombination(),
+                    LabelEvaluationExecutor.submitPreEvaluation(new Callable<MatrixLabelAssignmentAction.Evaluation>() {
+                        public MatrixLabelAssignmentAction.Evaluation call() throws Exception
+                        {
+                            if(!isCircuitClosed())
+                            {
+                                // the configuration is evaluated through the circuit breaker when scheduled.
+                                throw new CancellationException(String.format("the circuit breaker is %s", getCircuitBreaker().getState()));
+                            }
+                            // passed to the configuration with the result.
+                            EvaluationTimings timings = EvaluationTimings.start(child);
+                            try
+                            {
+                                Object out = evaluate(child, cl, createBinding(child, parentActions));
+                                return new MatrixLabelAssignmentAction.Evaluation(
+                                        LabelCandidate.toLabelString(out),
+                                        timings.snapshot()
+                                );
+                            }
+                            finally
+                            {
+                                EvaluationTimings.finish();
+                            }
+                        }
+                    })
+            );
+        }
+        actions.add(matrixAction);
+        
+        LOGGER.fine(String.format("%s: started evaluating labels for configurations", project.getName()));
+    }
+    
+    /**
+     * @return whether the circuit breaker is disabled or lets all builds evaluate the script.
+     */
+    private boolean isCircuitClosed()
+    {
+        GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+        if(config == null || config.getCircuitBreakerThreshold() <= 0)
+        {
+            return true;
+        }
+        return getCircuitBreaker().getState() == CircuitBreaker.State.CLOSED;
+    }
+    
+    /**
+     * Validates the label and adds {@link GroovyLabelAssignmentAction}.
+     * 
+     * @param project
+     * @param labelString
+     * @param actions
+     * @return false if the label is invalid.
+     */
+    private boolean applyLabel(AbstractProject<?, ?> project, String labelString, List<Action> actions)
+    {
+        return applyLabel(project, labelString, null, actions);
+    }
+    
+    /**
+     * Validates the label and adds {@link GroovyLabelAssignmentAction}.
+     * 
+     * @param project
+     * @param labelString
+     * @param candidates candidates labelString is chosen from. null if the script returned a single label.
+     * @param actions
+     * @return false if the label is invalid.
+     */
+    private boolean applyLabel(AbstractProject<?, ?> project, String labelString, List<LabelCandidate> candidates, List<Action> actions)
+    {
+        if(candidates != null)
+        {
+            // chosen with the current load.
+            EvaluationTimings.recordNotReusable();
+        }
         if(StringUtils.isBlank(labelString))
         {
+            getLastGoodLabelStrings().put(project.getFullName(), "");
             LOGGER.info(String.format("%s: label is not modified.", project.getName()));
             return true;
         }
         
+        LabelAssignmentMetrics.JobMetrics metrics = LabelAssignmentMetrics.get().getJobMetrics(project);
+        long start = System.nanoTime();
         try
         {
-            LabelExpression.parseExpression(labelString);
+            LabelCache.parse(labelString);
         }
         catch(ANTLRException e)
         {
+            metrics.recordInvalidLabel();
             LOGGER.log(Level.SEVERE, String.format("%s: Invalid label string: %s", project.getName(), labelString), e);
             return false;
         }
+        finally
+        {
+            metrics.recordPhase(LabelAssignmentMetrics.Phase.PARSE, start);
+        }
         
-        LabelAssignmentAction labelAction = new GroovyLabelAssignmentAction(labelString);
+        GroovyLabelAssignmentAction labelAction = new GroovyLabelAssignmentAction(labelString, candidates);
+        EvaluationTimings timings = EvaluationTimings.current();
+        if(timings != null)
+        {
+            labelAction.setTimings(timings.snapshot());
+        }
         actions.add(0, labelAction);
+        getLastGoodLabelStrings().put(project.getFullName(), labelString);
         
         LOGGER.info(String.format("%s: label is modified to %s", project.getName(), labelString));
         
         return true;
     }
     
+    /**
+     * Decides what to do with a build whose script timed out.
+     * 
+     * @param project
+     * @param actions
+     * @param e
+     * @return false to reject the build.
+     */
+    private boolean handleTimeout(AbstractProject<?, ?> project, List<Action> actions, LabelScriptTimeoutException e)
+    {
+        EvaluationTimings.recordNotReusable();
+        LabelAssignmentMetrics.get().getJobMetrics(project).recordTimeout();
+        TimeoutPolicy policy = getEffectiveTimeoutPolicy();
+        switch(policy)
+        {
+        case STATIC_LABEL:
+            LOGGER.warning(String.format("%s: Script timed out (%d ms): label is not modified.", project.getName(), e.getTimeoutMillis()));
+            return true;
+        case LAST_GOOD_LABEL:
+            String labelString = getLastGoodLabelStrings().get(project.getFullName());
+            if(labelString != null)
+            {
+                LOGGER.warning(String.format("%s: Script timed out (%d ms): use the last label %s", project.getName(), e.getTimeoutMillis(), labelString));
+                return applyLabel(project, labelString, actions);
+            }
+            LOGGER.severe(String.format("%s: Script timed out (%d ms) and no label is decided before", project.getName(), e.getTimeoutMillis()));
+            return false;
+        default:
+            LOGGER.severe(String.format("%s: Script timed out (%d ms)", project.getName(), e.getTimeoutMillis()));
+            return false;
+        }
+    }
+    
+    /**
+     * @return seconds the script can run, considering the global setting. 0 for no limit.
+     * @since 1.2.1
+     */
+    public long getEffectiveTimeoutSeconds()
+    {
+        if(getTimeoutSeconds() > 0)
+        {
+            return getTimeoutSeconds();
+        }
+        GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+        return (config != null) ? config.getTimeoutSeconds() : 0;
+    }
+    
+    /**
+     * @return what to do when the script times out, considering the global setting.
+     * @since 1.2.1
+     */
+    public TimeoutPolicy getEffectiveTimeoutPolicy()
+    {
+        if(getTimeoutPolicy() != null)
+        {
+            try
+            {
+                return TimeoutPolicy.valueOf(getTimeoutPolicy());
+            }
+            catch(IllegalArgumentException e)
+            {
+                LOGGER.log(Level.WARNING, String.format("Unknown timeout policy: %s", getTimeoutPolicy()), e);
+            }
+        }
+        GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+        return (config != null) ? config.getTimeoutPolicy() : TimeoutPolicy.FAIL;
+    }
+    
+    private synchronized Map<String, String> getLastGoodLabelStrings()
+    {
+        if(lastGoodLabelStrings == null)
+        {
+            lastGoodLabelStrings = new ConcurrentHashMap<String, String>();
+        }
+        return lastGoodLabelStrings;
+    }
+    
+    /**
+     * @param project
+     * @return combinations of active configurations, passed to scripts as <code>combinations</code>.
+     */
+    private List<Map<String, String>> getCombinations(MatrixProject project)
+    {
+        List<Map<String, String>> combinations = new ArrayList<Map<String, String>>();
+        for(MatrixConfiguration c: project.getActiveConfigurations())
+        {
+            combinations.add(new TreeMap<String, String>(c.getCombination()));
+        }
+        return combinations;
+    }
+    
+    /**
+     * Validates labels for configurations and adds {@link MatrixLabelAssignmentAction} to the parent build.
+     * 
+     * @param project the parent project.
+     * @param labels map from combinations to label expressions returned from the script.
+     * @param actions actions of the parent build.
+     * @return false if any of labels is invalid.
+     */
+    private boolean assignMatrixLabels(AbstractProject<?, ?> project, Map<?, ?> labels, List<Action> actions)
+    {
+        LabelAssignmentMetrics.JobMetrics metrics = LabelAssignmentMetrics.get().getJobMetrics(project);
+        Map<String, String> labelStrings = new HashMap<String, String>();
+        for(Map.Entry<?, ?> entry: labels.entrySet())
+        {
+            String labelString = (entry.getValue() != null)?entry.getValue().toString():null;
+            if(entry.getKey() == null || StringUtils.isBlank(labelString))
+            {
+                continue;
+            }
+            Combination combination = MatrixLabelAssignmentAction.toCombination(entry.getKey());
+            long start = System.nanoTime();
+            try
+            {
+                LabelCache.parse(labelString);
+            }
+            catch(ANTLRException e)
+            {
+                metrics.recordInvalidLabel();
+                LOGGER.log(Level.SEVERE, String.format("%s: Invalid label string for %s: %s", project.getName(), combination, labelString), e);
+                return false;
+            }
+            finally
+            {
+                metrics.recordPhase(LabelAssignmentMetrics.Phase.PARSE, start);
+            }
+            labelStrings.put(combination.toString(), labelString);
+        }
+        
+        actions.add(new MatrixLabelAssignmentAction(labelStrings));
+        
+        LOGGER.info(String.format("%s: labels are decided for %d combinations", project.getName(), labelStrings.size()));
+        
+        return true;
+    }
+    
+    /**
+     * Runs the script (or the decision table), or returns the memoized result for a deterministic script.
+     * 
+     * @param project
+     * @param cl
+     * @param binding
+     * @return the value returned from the script.
+     * @throws Exception
+     */
+    private Object evaluate(AbstractProject<?, ?> project, ClassLoader cl, Binding binding) throws Exception
+    {
+        LabelAssignmentMetrics.JobMetrics metrics = LabelAssignmentMetrics.get().getJobMetrics(project);
+        metrics.recordEvaluation();
+        if(getDecisionTable() != null)
+        {
+            long start = System.nanoTime();
+            long recorded = LabelAssignmentMetrics.getRecordedNanos();
+            try
+            {
+                return getDecisionTable().decide(binding);
+            }
+            finally
+            {
+                metrics.recordPhase(LabelAssignmentMetrics.Phase.RUN, start, recorded);
+            }
+        }
+        if(!isDeterministic())
+        {
+            return runScript(project, cl, binding);
+        }
+        
+        LabelScriptMemo memo = getMemo();
+        LabelScriptMemo.Entry memoized = memo.lookup(binding);
+        if(memoized != null)
+        {
+            LOGGER.fine(String.format("%s: use memoized label %s", project.getName(), memoized.getLabelString()));
+            return memoized.getLabelString();
+        }
+        
+        DependencyTrackingBinding trackingBinding = new DependencyTrackingBinding(binding);
+        Object out = runScript(project, cl, trackingBinding);
+        if(trackingBinding.isAllVariablesRead())
+        {
+            LOGGER.fine(String.format("%s: script reads all variables and cannot be memoized", project.getName()));
+        }
+        else if(out instanceof Map<?, ?>)
+        {
+            LOGGER.fine(String.format("%s: labels for configurations are not memoized", project.getName()));
+        }
+        else if(LabelCandidate.isCandidates(out))
+        {
+            LOGGER.fine(String.format("%s: candidates are chosen for each build and not memoized", project.getName()));
+        }
+        else
+        {
+            memo.record(trackingBinding.getReadVariables(), (out != null) ? out.toString() : null);
+        }
+        return out;
+    }
+    
+    /**
+     * Runs the script, limiting the time if configured.
+     * 
+     * @param project
+     * @param cl
+     * @param binding
+     * @return the value returned from the script.
+     * @throws LabelScriptTimeoutException the script didn't finish in time.
+     * @throws Exception
+     */
+    private Object runScript(final AbstractProject<?, ?> project, final ClassLoader cl, final Binding binding) throws Exception
+    {
+        long timeout = getEffectiveTimeoutSeconds();
+        if(timeout <= 0)
+        {
+            return compileAndRun(project, cl, binding);
+        }
+        return LabelEvaluationExecutor.callWithTimeout(new Callable<Object>() {
+            public Object call() throws Exception
+            {
+                return compileAndRun(project, cl, binding);
+            }
+        }, timeout * 1000);
+    }
+    
+    private Object compileAndRun(AbstractProject<?, ?> project, ClassLoader cl, Binding binding) throws Exception
+    {
+        LabelAssignmentMetrics.JobMetrics metrics = LabelAssignmentMetrics.get().getJobMetrics(project);
+        long start = System.nanoTime();
+        CompiledLabelScript compiled;
+        try
+        {
+            compiled = getCompiledScript(cl);
+        }
+        finally
+        {
+            metrics.recordPhase(LabelAssignmentMetrics.Phase.COMPILE, start);
+        }
+        start = System.nanoTime();
+        // variables may be created while running, and are recorded as BINDING.
+        long recorded = LabelAssignmentMetrics.getRecordedNanos();
+        try
+        {
+            return compiled.run(binding);
+        }
+        finally
+        {
+            metrics.recordPhase(LabelAssignmentMetrics.Phase.RUN, start, recorded);
+        }
+    }
+    
+    private synchronized LabelScriptMemo getMemo()
+    {
+        // results of the old shared script are discarded when it's replaced.
+        SharedLabelScript shared = getSharedScript();
+        if(memo == null || memoSharedScript != shared)
+        {
+            memo = new LabelScriptMemo();
+            memoSharedScript = shared;
+        }
+        return memo;
+    }
+    
+    private synchronized RecentSubmissions getRecentSubmissions()
+    {
+        if(recentSubmissions == null)
+        {
+            recentSubmissions = new RecentSubmissions();
+        }
+        return recentSubmissions;
+    }
+    
+    /**
+     * Returns the compiled script, compiling it if not compiled yet.
+     * 
+     * @param cl the class loader to load classes the script refers.
+     * @return the compiled script.
+     * @throws Exception the script is not approved or fails to be compiled.
+     * @since 1.2.1
+     */
+    protected CompiledLabelScript getCompiledScript(ClassLoader cl) throws Exception
+    {
+        if(getSharedScriptName() != null)
+        {
+            SharedLabelScript shared = getSharedScript();
+            if(shared == null)
+            {
+                throw new IllegalStateException(String.format("Shared label script is not defined: %s", getSharedScriptName()));
+            }
+            return shared.getCompiledScript(cl);
+        }
+        CompiledLabelScript compiled = CompiledLabelScript.get(compiledScript, getSecureGroovyScript(), cl);
+        compiledScript = compiled;
+        return compiled;
+    }
+    
     /**
      * Create variables used in a groovy script.
      * 
+     * Environment variables are built only when the script reads variables.
+     * 
      * @param project
      * @param actions
      * @return
      */
-    protected Binding createBinding(AbstractProject<?, ?> project, List<Action> actions)
+    protected Binding createBinding(final AbstractProject<?, ?> project, List<Action> actions)
+    {
+        // actions may be modified before the script runs.
+        final List<Action> buildActions = new ArrayList<Action>(actions);
+        LazyBinding binding = new LazyBinding() {
+            @Override
+            protected Map<String, ?> loadVariables()
+            {
+                long start = System.nanoTime();
+                EnvVars env = buildEnvVars(project, buildActions);
+                LabelAssignmentMetrics.get().getJobMetrics(project).recordPhase(LabelAssignmentMetrics.Phase.BINDING, start);
+                return env;
+            }
+        };
+        binding.setVariable("currentJob", project);
+        // parameters and environment variables with the same name win, as they did before.
+        binding.setDefaultVariable(CapacitySnapshot.VARIABLE_NAME, CapacitySnapshot.get());
+        return binding;
+    }
+    
+    /**
+     * Build environment variables bound to a groovy script.
+     * 
+     * @param project
+     * @param actions
+     * @return
+     */
+    private EnvVars buildEnvVars(AbstractProject<?, ?> project, List<Action> actions)
     {
         EnvVars env = new EnvVars();
         
@@ -235,12 +1328,12 @@ public class GroovyLabelAssignmentProperty extends JobProperty<AbstractProject<?
             }
         }
         
-        LOGGER.fine(String.format("%s: set environments %s", project.getName(), env.toString()));
+        if(LOGGER.isLoggable(Level.FINE))
+        {
+            LOGGER.fine(String.format("%s: set environments %s", project.getName(), env.toString()));
+        }
         
-        Binding binding = new Binding();
-        binding.getVariables().putAll(env);
-        binding.setVariable("currentJob", project);
-        return binding;
+        return env;
     }
     
     /**
@@ -259,6 +1352,38 @@ public class GroovyLabelAssignmentProperty extends JobProperty<AbstractProject<?
             return Messages.GroovyLabelAssignmentProperty_DisplayName();
         }
         
+        /**
+         * @return choices for sharedScriptName.
+         */
+        public ListBoxModel doFillSharedScriptNameItems()
+        {
+            ListBoxModel items = new ListBoxModel();
+            items.add(Messages.GroovyLabelAssignmentProperty_sharedScriptName_none(), "");
+            GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+            if(config != null)
+            {
+                for(SharedLabelScript script: config.getSharedScripts())
+                {
+                    items.add(script.getName());
+                }
+            }
+            return items;
+        }
+        
+        /**
+         * @return choices for timeoutPolicy.
+         */
+        public ListBoxModel doFillTimeoutPolicyItems()
+        {
+            ListBoxModel items = new ListBoxModel();
+            items.add(Messages.GroovyLabelAssignmentProperty_timeoutPolicy_global(), "");
+            for(TimeoutPolicy policy: TimeoutPolicy.values())
+            {
+                items.add(policy.getDisplayName(), policy.name());
+            }
+            return items;
+        }
+        
         /** 
          * Create a new instance from the form input.
          * 
@@ -286,7 +1411,25 @@ public class GroovyLabelAssignmentProperty extends JobProperty<AbstractProject<?
             Class<? extends GroovyLabelAssignmentProperty> clazz
                 = (Class<? extends GroovyLabelAssignmentProperty>)getClass().getEnclosingClass();
             
-            return req.bindJSON(clazz, form);
+            GroovyLabelAssignmentProperty prop = req.bindJSON(clazz, form);
+            if(prop.getSharedScriptName() != null && (prop.getDecisionTable() != null || prop.getLabelTemplate() != null))
+            {
+                throw new FormException(Messages.GroovyLabelAssignmentProperty_sharedScriptName_exclusive(), "sharedScriptName");
+            }
+            if(prop.getDecisionTable() != null && prop.getLabelTemplate() != null)
+            {
+                throw new FormException(Messages.GroovyLabelAssignmentProperty_labelTemplate_exclusive(), "labelTemplate");
+            }
+            if(prop.getLabelTemplate() != null)
+            {
+                // reject invalid templates when saved.
+                FormValidation result = LabelTemplate.check(prop.getLabelTemplate().getTemplate());
+                if(result.kind == FormValidation.Kind.ERROR)
+                {
+                    throw new FormException(result.getMessage(), "labelTemplate");
+                }
+            }
+            return prop;
         }
     }
 }
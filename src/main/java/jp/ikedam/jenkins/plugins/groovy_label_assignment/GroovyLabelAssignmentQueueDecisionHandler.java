@@ -27,6 +27,7 @@ import java.util.List;
 //import java.util.logging.Logger;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.matrix.MatrixConfiguration;
 import hudson.model.Action;
 import hudson.model.AbstractProject;
@@ -65,7 +66,7 @@ public class GroovyLabelAssignmentQueueDecisionHandler extends QueueDecisionHand
             GroovyLabelAssignmentProperty prop = project.getProperty(GroovyLabelAssignmentProperty.class);
             if(prop != null)
             {
-                return prop.assignLabel(child, actions);
+                return assignLabel(prop, child, actions);
             }
         }
         else if(p instanceof AbstractProject<?,?>)
@@ -74,11 +75,53 @@ public class GroovyLabelAssignmentQueueDecisionHandler extends QueueDecisionHand
             GroovyLabelAssignmentProperty prop = project.getProperty(GroovyLabelAssignmentProperty.class);
             if(prop != null)
             {
-                return prop.assignLabel(project, actions);
+                return assignLabel(prop, project, actions);
             }
         }
         
         // GroovyLabelAssignmentProperty is not set.
         return true;
     }
+    
+    /**
+     * Decides the label, notifying {@link LabelEvaluationListener}s if registered.
+     * 
+     * @param prop
+     * @param project
+     * @param actions
+     * @return false to reject the build.
+     */
+    private boolean assignLabel(GroovyLabelAssignmentProperty prop, AbstractProject<?,?> project, List<Action> actions)
+    {
+        if(!LabelEvaluationListener.isActive())
+        {
+            return prop.assignLabel(project, actions);
+        }
+        
+        long start = System.nanoTime();
+        boolean succeeded = prop.assignLabel(project, actions);
+        long elapsed = System.nanoTime() - start;
+        
+        if(!succeeded)
+        {
+            LabelEvaluationListener.fireDecided(project, null, LabelEvaluationListener.Outcome.REJECTED, elapsed);
+            return false;
+        }
+        // added to the head.
+        List<GroovyLabelAssignmentAction> labelActions = Util.filter(actions, GroovyLabelAssignmentAction.class);
+        GroovyLabelAssignmentAction labelAction = labelActions.isEmpty() ? null : labelActions.get(0);
+        if(labelAction != null && labelAction.isPending())
+        {
+            LabelEvaluationListener.fireDecided(project, null, LabelEvaluationListener.Outcome.PENDING, elapsed);
+        }
+        else if(labelAction != null && labelAction.getLabelString() != null)
+        {
+            LabelEvaluationListener.fireDecided(project, labelAction.getLabelString(), LabelEvaluationListener.Outcome.ASSIGNED, elapsed);
+        }
+        else
+        {
+            LabelEvaluationListener.fireDecided(project, null, LabelEvaluationListener.Outcome.NOT_MODIFIED, elapsed);
+        }
+        return true;
+    }
 }
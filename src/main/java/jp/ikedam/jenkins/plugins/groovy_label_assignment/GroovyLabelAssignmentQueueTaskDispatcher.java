@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import hudson.Extension;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+/**
+ * Keeps builds in the queue till their labels are decided asynchronously.
+ * 
+ * @see GroovyLabelAssignmentProperty#isAsynchronous()
+ * @since 1.2.1
+ */
+@Extension
+public class GroovyLabelAssignmentQueueTaskDispatcher extends QueueTaskDispatcher
+{
+    private static final Logger LOGGER = Logger.getLogger(GroovyLabelAssignmentQueueTaskDispatcher.class.getName());
+    
+    /**
+     * Blocks items whose labels are not decided yet.
+     * 
+     * Evaluations lost with restarting Jenkins are started again here.
+     * 
+     * @see hudson.model.queue.QueueTaskDispatcher#canRun(hudson.model.Queue.Item)
+     */
+    @Override
+    public CauseOfBlockage canRun(Queue.Item item)
+    {
+        GroovyLabelAssignmentAction labelAction = item.getAction(GroovyLabelAssignmentAction.class);
+        if(labelAction == null)
+        {
+            return null;
+        }
+        
+        if(labelAction.isFailed())
+        {
+            cancel(labelAction);
+            return CauseOfBlockage.fromMessage(Messages._GroovyLabelAssignmentQueueTaskDispatcher_Failed());
+        }
+        
+        if(!labelAction.isPending())
+        {
+            return null;
+        }
+        
+        if(item.task instanceof AbstractProject<?, ?>)
+        {
+            AbstractProject<?, ?> project = (AbstractProject<?, ?>)item.task;
+            AbstractProject<?, ?> owner = (project instanceof MatrixConfiguration)
+                    ? ((MatrixConfiguration)project).getParent()
+                    : project;
+            GroovyLabelAssignmentProperty prop = owner.getProperty(GroovyLabelAssignmentProperty.class);
+            if(prop == null)
+            {
+                // the job is reconfigured after scheduled.
+                labelAction.resolve(null);
+                return null;
+            }
+            List<Action> actions = new ArrayList<Action>(item.getActions());
+            actions.remove(labelAction);
+            prop.startEvaluation(project, actions, labelAction);
+        }
+        
+        return CauseOfBlockage.fromMessage(Messages._GroovyLabelAssignmentQueueTaskDispatcher_Pending());
+    }
+    
+    /**
+     * Cancels the queue item with the action.
+     * 
+     * This is done in another thread as the queue may be under maintenance.
+     * 
+     * @param labelAction
+     */
+    public static void cancel(final GroovyLabelAssignmentAction labelAction)
+    {
+        LabelEvaluationExecutor.submit(new Callable<Void>() {
+            public Void call() throws Exception
+            {
+                Jenkins jenkins = Jenkins.getInstance();
+                if(jenkins == null)
+                {
+                    return null;
+                }
+                Queue queue = jenkins.getQueue();
+                for(Queue.Item item: queue.getItems())
+                {
+                    if(item.getActions().contains(labelAction))
+                    {
+                        LOGGER.warning(String.format("%s: cancelled as the label is not decided", item.task.getName()));
+                        queue.cancel(item);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.listeners.ItemListener;
+
+/**
+ * Collects statistics of label evaluations.
+ * 
+ * Statistics are held in memory for each job,
+ * and are lost when Jenkins restarts.
+ * 
+ * @see GroovyLabelAssignmentMetricsAction
+ * @since 1.2.1
+ */
+public class LabelAssignmentMetrics
+{
+    /**
+     * Phases of a label evaluation.
+     */
+    public static enum Phase
+    {
+        /**
+         * Creating variables bound to the script.
+         */
+        BINDING,
+        /**
+         * Retrieving the compiled script, compiling it if necessary.
+         */
+        COMPILE,
+        /**
+         * Running the script.
+         */
+        RUN,
+        /**
+         * Validating the returned label expression.
+         */
+        PARSE,
+        ;
+        
+        /**
+         * @return the name used in outputs.
+         */
+        public String getName()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+    
+    /**
+     * Upper bounds of histogram buckets, in milliseconds.
+     */
+    static private final long[] BUCKET_BOUNDS_MILLIS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000};
+    
+    static private final LabelAssignmentMetrics INSTANCE = new LabelAssignmentMetrics();
+    
+    /**
+     * Nanoseconds recorded as phases in the current thread.
+     * 
+     * Used to exclude phases nested in another phase,
+     * e.g. variables are created while the script runs.
+     */
+    static private final ThreadLocal<long[]> recordedNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[1];
+        }
+    };
+    
+    private final ConcurrentMap<String, JobMetrics> jobs = new ConcurrentHashMap<String, JobMetrics>();
+    
+    /**
+     * @return the metrics registry.
+     */
+    public static LabelAssignmentMetrics get()
+    {
+        return INSTANCE;
+    }
+    
+    /**
+     * Returns the statistics for a job, creating it if not exist.
+     * 
+     * Configurations of multi-configuration projects are counted as their parents.
+     * 
+     * @param project
+     * @return the statistics for the job.
+     */
+    public JobMetrics getJobMetrics(AbstractProject<?, ?> project)
+    {
+        AbstractProject<?, ?> owner = (project instanceof MatrixConfiguration)
+                ? ((MatrixConfiguration)project).getParent()
+                : project;
+        String name = owner.getFullName();
+        JobMetrics metrics = jobs.get(name);
+        if(metrics == null)
+        {
+            jobs.putIfAbsent(name, new JobMetrics(name));
+            metrics = jobs.get(name);
+        }
+        return metrics;
+    }
+    
+    /**
+     * @return statistics for all jobs, sorted by names.
+     */
+    public List<JobMetrics> getJobs()
+    {
+        return Collections.unmodifiableList(new ArrayList<JobMetrics>(new TreeMap<String, JobMetrics>(jobs).values()));
+    }
+    
+    /**
+     * Drops statistics of a job.
+     * 
+     * @param fullName
+     */
+    public void remove(String fullName)
+    {
+        jobs.remove(fullName);
+    }
+    
+    /**
+     * @return nanoseconds recorded as phases in the current thread so far.
+     * @see JobMetrics#recordPhase(Phase, long, long)
+     */
+    public static long getRecordedNanos()
+    {
+        return recordedNanos.get()[0];
+    }
+    
+    /**
+     * @return upper bounds of histogram buckets, in milliseconds.
+     */
+    public static long[] getBucketBoundsMillis()
+    {
+        return BUCKET_BOUNDS_MILLIS.clone();
+    }
+    
+    /**
+     * Statistics for a job.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static class JobMetrics
+    {
+        private final String name;
+        private final AtomicLong evaluations = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong invalidLabels = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong shortCircuits = new AtomicLong();
+        private volatile CircuitBreaker.State circuitState = CircuitBreaker.State.CLOSED;
+        private final Map<Phase, Histogram> phases;
+        
+        private JobMetrics(String name)
+        {
+            this.name = name;
+            Map<Phase, Histogram> phases = new TreeMap<Phase, Histogram>();
+            for(Phase phase: Phase.values())
+            {
+                phases.put(phase, new Histogram(phase));
+            }
+            this.phases = Collections.unmodifiableMap(phases);
+        }
+        
+        /**
+         * @return the full name of the job.
+         */
+        @Exported
+        public String getName()
+        {
+            return name;
+        }
+        
+        /**
+         * @return the number of evaluations.
+         */
+        @Exported
+        public long getEvaluations()
+        {
+            return evaluations.get();
+        }
+        
+        /**
+         * @return the number of evaluations where the script failed.
+         */
+        @Exported
+        public long getFailures()
+        {
+            return failures.get();
+        }
+        
+        /**
+         * @return the number of evaluations where the script returned an invalid label expression.
+         */
+        @Exported
+        public long getInvalidLabels()
+        {
+            return invalidLabels.get();
+        }
+        
+        /**
+         * @return the number of evaluations where the script timed out.
+         */
+        @Exported
+        public long getTimeouts()
+        {
+            return timeouts.get();
+        }
+        
+        /**
+         * @return the number of builds decided with the fallback as the circuit breaker was open.
+         */
+        @Exported
+        public long getShortCircuits()
+        {
+            return shortCircuits.get();
+        }
+        
+        /**
+         * @return the state of the circuit breaker when a build was scheduled last time.
+         */
+        @Exported
+        public CircuitBreaker.State getCircuitState()
+        {
+            return circuitState;
+        }
+        
+        /**
+         * @return histograms of time spent in each phase.
+         */
+        @Exported
+        public List<Histogram> getPhases()
+        {
+            return new ArrayList<Histogram>(phases.values());
+        }
+        
+        /**
+         * @param phase
+         * @return the histogram for the phase.
+         */
+        public Histogram getPhase(Phase phase)
+        {
+            return phases.get(phase);
+        }
+        
+        public void recordEvaluation()
+        {
+            evaluations.incrementAndGet();
+        }
+        
+        public void recordFailure()
+        {
+            failures.incrementAndGet();
+        }
+        
+        public void recordInvalidLabel()
+        {
+            invalidLabels.incrementAndGet();
+        }
+        
+        public void recordTimeout()
+        {
+            timeouts.incrementAndGet();
+        }
+        
+        public void recordShortCircuit()
+        {
+            shortCircuits.incrementAndGet();
+        }
+        
+        public void recordCircuitState(CircuitBreaker.State state)
+        {
+            circuitState = state;
+        }
+        
+        /**
+         * @param phase
+         * @param startNanos the value of {@link System#nanoTime()} when the phase started.
+         */
+        public void recordPhase(Phase phase, long startNanos)
+        {
+            recordNanos(phase, System.nanoTime() - startNanos);
+        }
+        
+        /**
+         * Records a phase excluding phases recorded in the meantime.
+         * 
+         * @param phase
+         * @param startNanos the value of {@link System#nanoTime()} when the phase started.
+         * @param startRecordedNanos the value of {@link LabelAssignmentMetrics#getRecordedNanos()} when the phase started.
+         */
+        public void recordPhase(Phase phase, long startNanos, long startRecordedNanos)
+        {
+            long nested = getRecordedNanos() - startRecordedNanos;
+            recordNanos(phase, Math.max(System.nanoTime() - startNanos - nested, 0));
+        }
+        
+        private void recordNanos(Phase phase, long nanos)
+        {
+            recordedNanos.get()[0] += nanos;
+            phases.get(phase).record(nanos);
+            EvaluationTimings.recordPhase(phase, nanos);
+        }
+    }
+    
+    /**
+     * Histogram of elapsed times.
+     */
+    @ExportedBean(defaultVisibility = 3)
+    public static class Histogram
+    {
+        private final Phase phase;
+        // the last one is for values exceeding all bounds.
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        
+        private Histogram(Phase phase)
+        {
+            this.phase = phase;
+        }
+        
+        /**
+         * @param nanos elapsed time
+         */
+        public void record(long nanos)
+        {
+            // compare in nanoseconds: 1.5ms is not in the bucket for 1ms.
+            int i = 0;
+            while(i < BUCKET_BOUNDS_MILLIS.length && nanos > TimeUnit.MILLISECONDS.toNanos(BUCKET_BOUNDS_MILLIS[i]))
+            {
+                ++i;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+        }
+        
+        /**
+         * @return the name of the phase.
+         */
+        @Exported
+        public String getPhase()
+        {
+            return phase.getName();
+        }
+        
+        /**
+         * @return the number of recorded values.
+         */
+        @Exported
+        public long getCount()
+        {
+            return count.get();
+        }
+        
+        /**
+         * @return the sum of recorded values in milliseconds.
+         */
+        @Exported
+        public double getSumMillis()
+        {
+            return sumNanos.get() / 1000000.0;
+        }
+        
+        /**
+         * @return the number of values in each bucket (not cumulative).
+         *      The last one is for values exceeding all bounds.
+         */
+        @Exported
+        public long[] getBuckets()
+        {
+            long[] values = new long[buckets.length()];
+            for(int i = 0; i < values.length; ++i)
+            {
+                values[i] = buckets.get(i);
+            }
+            return values;
+        }
+    }
+    
+    /**
+     * Drops statistics of deleted jobs.
+     */
+    @Extension
+    public static class ItemListenerImpl extends ItemListener
+    {
+        @Override
+        public void onDeleted(Item item)
+        {
+            get().remove(item.getFullName());
+        }
+        
+        @Override
+        public void onRenamed(Item item, String oldName, String newName)
+        {
+            // full names are not available for the old name.
+            get().remove(item.getParent().getFullName().length() > 0
+                    ? item.getParent().getFullName() + "/" + oldName
+                    : oldName);
+        }
+    }
+}
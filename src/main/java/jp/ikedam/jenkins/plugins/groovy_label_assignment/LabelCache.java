@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import antlr.ANTLRException;
+
+import hudson.Extension;
+import hudson.model.Label;
+import hudson.model.labels.LabelExpression;
+import hudson.slaves.ComputerListener;
+
+/**
+ * Cache from label expression strings to {@link Label}s.
+ * 
+ * Label scripts usually return only a few distinct expressions,
+ * and they are parsed when validated and looked up again
+ * each time the queue asks for the assigned label.
+ * This holds labels resolved with {@link Jenkins#getLabel(String)}
+ * so that both of them are done once for each distinct expression.
+ * 
+ * The cache is bounded, and dropped entirely when nodes are reconfigured,
+ * as Jenkins discards unused labels at that time.
+ * 
+ * @since 1.2.1
+ */
+public class LabelCache
+{
+    static private final Logger LOGGER = Logger.getLogger(LabelCache.class.getName());
+    
+    /**
+     * Maximum number of label expressions to hold.
+     */
+    static public final int MAX_SIZE = Integer.getInteger(LabelCache.class.getName() + ".maxSize", 256);
+    
+    static private final Map<String, Label> cache = new LinkedHashMap<String, Label>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Label> eldest)
+        {
+            return size() > MAX_SIZE;
+        }
+    };
+    
+    /**
+     * Incremented when cached labels are dropped.
+     */
+    static private final AtomicLong generation = new AtomicLong();
+    
+    static private final AtomicLong hitCount = new AtomicLong();
+    static private final AtomicLong missCount = new AtomicLong();
+    
+    private LabelCache()
+    {
+    }
+    
+    private static Label get(String labelString)
+    {
+        synchronized(cache)
+        {
+            Label label = cache.get(labelString);
+            if(label != null)
+            {
+                hitCount.incrementAndGet();
+            }
+            else
+            {
+                missCount.incrementAndGet();
+            }
+            return label;
+        }
+    }
+    
+    /**
+     * @param labelString
+     * @param label
+     * @param resolvedGeneration the value of {@link #getGeneration()} before the label was resolved.
+     * @return label
+     */
+    private static Label put(String labelString, Label label, long resolvedGeneration)
+    {
+        if(label == null)
+        {
+            return null;
+        }
+        synchronized(cache)
+        {
+            if(generation.get() != resolvedGeneration)
+            {
+                // may be discarded by Jenkins. not to put it back.
+                return label;
+            }
+            cache.put(labelString, label);
+        }
+        return label;
+    }
+    
+    /**
+     * Validates a label expression and returns the label for it.
+     * 
+     * @param labelString label expression
+     * @return the label
+     * @throws ANTLRException labelString is not a valid label expression.
+     */
+    public static Label parse(String labelString) throws ANTLRException
+    {
+        Label label = get(labelString);
+        if(label != null)
+        {
+            return label;
+        }
+        long current = generation.get();
+        Label parsed = LabelExpression.parseExpression(labelString);
+        Jenkins jenkins = Jenkins.getInstance();
+        return put(labelString, (jenkins != null) ? jenkins.getLabel(labelString) : parsed, current);
+    }
+    
+    /**
+     * Returns the label for a label expression.
+     * 
+     * Invalid expressions are treated as {@link Jenkins#getLabel(String)} does.
+     * 
+     * @param labelString label expression
+     * @return the label. null if labelString is null.
+     */
+    public static Label resolve(String labelString)
+    {
+        if(labelString == null)
+        {
+            return null;
+        }
+        Label label = get(labelString);
+        if(label != null)
+        {
+            return label;
+        }
+        long current = generation.get();
+        Jenkins jenkins = Jenkins.getInstance();
+        if(jenkins == null)
+        {
+            return null;
+        }
+        return put(labelString, jenkins.getLabel(labelString), current);
+    }
+    
+    /**
+     * Drops all cached labels.
+     */
+    public static void clear()
+    {
+        synchronized(cache)
+        {
+            // labels being resolved are not cached.
+            generation.incrementAndGet();
+            cache.clear();
+        }
+        LOGGER.fine("Cleared cached labels");
+    }
+    
+    /**
+     * Returns the generation of cached labels.
+     * 
+     * Labels resolved in a different generation may be discarded by Jenkins,
+     * and should be resolved again.
+     * 
+     * @return the generation incremented each time cached labels are dropped.
+     */
+    public static long getGeneration()
+    {
+        return generation.get();
+    }
+    
+    /**
+     * @return the number of cached labels.
+     */
+    public static int size()
+    {
+        synchronized(cache)
+        {
+            return cache.size();
+        }
+    }
+    
+    /**
+     * @return the number of lookups answered from the cache.
+     */
+    public static long getHitCount()
+    {
+        return hitCount.get();
+    }
+    
+    /**
+     * @return the number of lookups not answered from the cache.
+     */
+    public static long getMissCount()
+    {
+        return missCount.get();
+    }
+    
+    /**
+     * Drops cached labels when nodes are reconfigured.
+     */
+    @Extension
+    static public class ConfigurationListenerImpl extends ComputerListener
+    {
+        /**
+         * @see hudson.slaves.ComputerListener#onConfigurationChange()
+         */
+        @Override
+        public void onConfigurationChange()
+        {
+            clear();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import antlr.ANTLRException;
+
+import hudson.Util;
+
+/**
+ * A candidate label returned from a label script, and its capacity when it is chosen.
+ * 
+ * Scripts can return candidate label expressions instead of a single expression:
+ * <ul>
+ *   <li>a list (or an array) of expressions. All candidates have the weight 1.</li>
+ *   <li>a map from expressions to weights (numbers larger than 0).</li>
+ * </ul>
+ * The candidate with nodes online and the largest score
+ * <code>weight * (idle executors + 1) / (queued builds + 1)</code> is chosen,
+ * looking up {@link CapacitySnapshot}.
+ * The first one is chosen if scores are the same.
+ * 
+ * @since 1.2.1
+ */
+public class LabelCandidate
+{
+    private final String labelString;
+    private final double weight;
+    private final int onlineNodes;
+    private final int idleExecutors;
+    private final int queueLength;
+    private boolean chosen;
+    
+    private LabelCandidate(String labelString, double weight, CapacitySnapshot.LabelCapacity capacity)
+    {
+        this.labelString = Util.intern(labelString);
+        this.weight = weight;
+        this.onlineNodes = capacity.getOnlineNodes();
+        this.idleExecutors = capacity.getIdleExecutors();
+        this.queueLength = capacity.getQueueLength();
+        this.chosen = false;
+    }
+    
+    /**
+     * @return the label expression.
+     */
+    public String getLabelString()
+    {
+        return labelString;
+    }
+    
+    /**
+     * @return the weight.
+     */
+    public double getWeight()
+    {
+        return weight;
+    }
+    
+    /**
+     * @return the number of online nodes matching the label.
+     */
+    public int getOnlineNodes()
+    {
+        return onlineNodes;
+    }
+    
+    /**
+     * @return the number of idle executors matching the label.
+     */
+    public int getIdleExecutors()
+    {
+        return idleExecutors;
+    }
+    
+    /**
+     * @return the number of builds queued for the label.
+     */
+    public int getQueueLength()
+    {
+        return queueLength;
+    }
+    
+    /**
+     * @return whether this candidate is chosen.
+     */
+    public boolean isChosen()
+    {
+        return chosen;
+    }
+    
+    /**
+     * @return the score to choose the candidate.
+     */
+    public double getScore()
+    {
+        return weight * (idleExecutors + 1) / (queueLength + 1);
+    }
+    
+    /**
+     * @param out the value returned from a script.
+     * @return whether the value is candidates.
+     */
+    public static boolean isCandidates(Object out)
+    {
+        return out instanceof Collection<?> || out instanceof Object[] || out instanceof Map<?, ?>;
+    }
+    
+    /**
+     * Evaluates candidates and chooses one.
+     * 
+     * @param out the value returned from a script. must be {@link #isCandidates(Object)}.
+     * @return evaluated candidates. One of them is {@link #isChosen()}. empty if no candidates.
+     * @throws ANTLRException a candidate is not a valid label expression.
+     * @throws IllegalArgumentException a weight is not a positive number.
+     */
+    public static List<LabelCandidate> choose(Object out) throws ANTLRException
+    {
+        CapacitySnapshot snapshot = CapacitySnapshot.get();
+        List<LabelCandidate> candidates = new ArrayList<LabelCandidate>();
+        if(out instanceof Map<?, ?>)
+        {
+            for(Map.Entry<?, ?> e: ((Map<?, ?>)out).entrySet())
+            {
+                String labelString = String.valueOf(e.getKey());
+                candidates.add(new LabelCandidate(labelString, toWeight(labelString, e.getValue()), snapshot.getCapacity(labelString)));
+            }
+        }
+        else
+        {
+            Collection<?> values = (out instanceof Object[]) ? Arrays.asList((Object[])out) : (Collection<?>)out;
+            for(Object value: values)
+            {
+                String labelString = String.valueOf(value);
+                candidates.add(new LabelCandidate(labelString, 1, snapshot.getCapacity(labelString)));
+            }
+        }
+        
+        LabelCandidate best = null;
+        for(LabelCandidate candidate: candidates)
+        {
+            if(best == null || candidate.isBetterThan(best))
+            {
+                best = candidate;
+            }
+        }
+        if(best != null)
+        {
+            best.chosen = true;
+        }
+        return Collections.unmodifiableList(candidates);
+    }
+    
+    /**
+     * Returns the label expression for a value returned from a script.
+     * 
+     * @param out the value returned from a script.
+     * @return the label expression chosen if out is candidates, or out itself as a string.
+     * @throws ANTLRException a candidate is not a valid label expression.
+     */
+    public static String toLabelString(Object out) throws ANTLRException
+    {
+        if(isCandidates(out))
+        {
+            return getChosen(choose(out));
+        }
+        return (out != null) ? out.toString() : null;
+    }
+    
+    /**
+     * @param candidates
+     * @return the label expression of the chosen candidate. null if no candidates.
+     */
+    public static String getChosen(List<LabelCandidate> candidates)
+    {
+        for(LabelCandidate candidate: candidates)
+        {
+            if(candidate.isChosen())
+            {
+                return candidate.getLabelString();
+            }
+        }
+        return null;
+    }
+    
+    private boolean isBetterThan(LabelCandidate other)
+    {
+        if((onlineNodes > 0) != (other.onlineNodes > 0))
+        {
+            return onlineNodes > 0;
+        }
+        return getScore() > other.getScore();
+    }
+    
+    private static double toWeight(String labelString, Object value)
+    {
+        double weight;
+        try
+        {
+            weight = (value instanceof Number) ? ((Number)value).doubleValue() : Double.parseDouble(String.valueOf(value));
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IllegalArgumentException(String.format("Weight for %s is not a number: %s", labelString, value), e);
+        }
+        if(!(weight > 0))
+        {
+            throw new IllegalArgumentException(String.format("Weight for %s must be larger than 0: %s", labelString, value));
+        }
+        return weight;
+    }
+}
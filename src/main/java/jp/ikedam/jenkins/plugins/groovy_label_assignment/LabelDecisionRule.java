@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.jvnet.localizer.Localizable;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.Util;
+
+/**
+ * A rule of {@link LabelDecisionTable}.
+ * 
+ * Matches when the value of the variable matches the pattern.
+ * 
+ * @since 1.2.1
+ */
+public class LabelDecisionRule
+{
+    /**
+     * How to match values of variables.
+     */
+    public static enum MatchType
+    {
+        /**
+         * Matches values equal to the pattern.
+         */
+        EXACT(Messages._LabelDecisionRule_MatchType_EXACT_DisplayName()),
+        /**
+         * Matches values with a wildcard pattern (<code>*</code> and <code>?</code>).
+         */
+        GLOB(Messages._LabelDecisionRule_MatchType_GLOB_DisplayName()),
+        /**
+         * Matches values with a regular expression. The whole value must match.
+         */
+        REGEX(Messages._LabelDecisionRule_MatchType_REGEX_DisplayName()),
+        ;
+        
+        private final Localizable displayName;
+        
+        private MatchType(Localizable displayName)
+        {
+            this.displayName = displayName;
+        }
+        
+        /**
+         * @return the name to display.
+         */
+        public String getDisplayName()
+        {
+            return displayName.toString();
+        }
+    }
+    
+    private final String variable;
+    private final MatchType matchType;
+    private final String pattern;
+    private final String label;
+    
+    /**
+     * @param variable the name of the variable to test.
+     * @param matchType the name of {@link MatchType}.
+     * @param pattern the pattern to match the value of the variable.
+     * @param label the label expression used when matched. blank not to modify the label.
+     */
+    @DataBoundConstructor
+    public LabelDecisionRule(String variable, String matchType, String pattern, String label)
+    {
+        this.variable = StringUtils.trim(variable);
+        this.matchType = toMatchType(matchType);
+        this.pattern = (pattern != null) ? pattern : "";
+        this.label = Util.fixEmptyAndTrim(label);
+    }
+    
+    /**
+     * @param matchType
+     * @return the {@link MatchType}, {@link MatchType#EXACT} if not specified.
+     */
+    static MatchType toMatchType(String matchType)
+    {
+        if(StringUtils.isBlank(matchType))
+        {
+            return MatchType.EXACT;
+        }
+        return MatchType.valueOf(matchType.trim());
+    }
+    
+    /**
+     * @return the name of the variable to test.
+     */
+    public String getVariable()
+    {
+        return variable;
+    }
+    
+    /**
+     * @return the name of {@link MatchType}.
+     */
+    public String getMatchType()
+    {
+        return matchType.name();
+    }
+    
+    /**
+     * @return the pattern to match the value of the variable.
+     */
+    public String getPattern()
+    {
+        return pattern;
+    }
+    
+    /**
+     * @return the label expression used when matched. null not to modify the label.
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+    
+    /**
+     * @return whether the pattern is compared exactly.
+     */
+    public boolean isExact()
+    {
+        return matchType == MatchType.EXACT;
+    }
+    
+    /**
+     * @return the regular expression equivalent to the pattern.
+     * @throws java.util.regex.PatternSyntaxException the pattern is an invalid regular expression.
+     */
+    public Pattern compile()
+    {
+        switch(matchType)
+        {
+        case REGEX:
+            return Pattern.compile(pattern);
+        case GLOB:
+            return Pattern.compile(globToRegex(pattern));
+        default:
+            return Pattern.compile(Pattern.quote(pattern));
+        }
+    }
+    
+    /**
+     * @param glob a pattern with <code>*</code> and <code>?</code>.
+     * @return the equivalent regular expression.
+     */
+    static String globToRegex(String glob)
+    {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        for(int i = 0; i < glob.length(); ++i)
+        {
+            char c = glob.charAt(i);
+            if(c != '*' && c != '?')
+            {
+                continue;
+            }
+            if(start < i)
+            {
+                sb.append(Pattern.quote(glob.substring(start, i)));
+            }
+            sb.append((c == '*') ? ".*" : ".");
+            start = i + 1;
+        }
+        if(start < glob.length())
+        {
+            sb.append(Pattern.quote(glob.substring(start)));
+        }
+        return sb.toString();
+    }
+}
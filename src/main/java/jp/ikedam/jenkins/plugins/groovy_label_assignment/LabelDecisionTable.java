@@ -0,0 +1,335 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import antlr.ANTLRException;
+import groovy.lang.Binding;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.labels.LabelExpression;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+
+/**
+ * Decides labels with an ordered list of {@link LabelDecisionRule}s
+ * instead of a Groovy script.
+ * 
+ * The first matching rule decides the label.
+ * Rules are indexed when configured:
+ * exact rules are looked up with hash maps,
+ * and only other rules preceding the found one are tested in order.
+ * Only variables referred by rules are read from the binding,
+ * so a {@link LazyBinding} doesn't load variables
+ * if rules refer only to variables set explicitly.
+ * 
+ * @since 1.2.1
+ */
+public class LabelDecisionTable extends AbstractDescribableImpl<LabelDecisionTable>
+{
+    static private final Logger LOGGER = Logger.getLogger(LabelDecisionTable.class.getName());
+    
+    private final List<LabelDecisionRule> rules;
+    
+    private final String defaultLabel;
+    
+    private transient Index index;
+    
+    /**
+     * @param rules rules tested in order.
+     * @param defaultLabel the label expression used when no rule matches. blank not to modify the label.
+     */
+    @DataBoundConstructor
+    public LabelDecisionTable(List<LabelDecisionRule> rules, String defaultLabel)
+    {
+        this.rules = (rules != null)
+                ? Collections.unmodifiableList(new ArrayList<LabelDecisionRule>(rules))
+                : Collections.<LabelDecisionRule>emptyList();
+        this.defaultLabel = Util.fixEmptyAndTrim(defaultLabel);
+        this.index = new Index(this.rules);
+    }
+    
+    private Object readResolve()
+    {
+        if(rules == null)
+        {
+            return new LabelDecisionTable(null, defaultLabel);
+        }
+        index = new Index(rules);
+        return this;
+    }
+    
+    /**
+     * @return rules tested in order.
+     */
+    public List<LabelDecisionRule> getRules()
+    {
+        return rules;
+    }
+    
+    /**
+     * @return the label expression used when no rule matches. null not to modify the label.
+     */
+    public String getDefaultLabel()
+    {
+        return defaultLabel;
+    }
+    
+    /**
+     * Decides the label.
+     * 
+     * @param binding variables to test.
+     * @return the label expression. null not to modify the label.
+     */
+    public String decide(Binding binding)
+    {
+        LabelDecisionRule rule = index.find(binding);
+        return (rule != null) ? rule.getLabel() : getDefaultLabel();
+    }
+    
+    /**
+     * Rules compiled for lookups.
+     */
+    private static class Index
+    {
+        private final List<LabelDecisionRule> rules;
+        
+        /**
+         * variable name -&gt; value -&gt; the position of the first exact rule.
+         */
+        private final Map<String, Map<String, Integer>> exactRules = new HashMap<String, Map<String, Integer>>();
+        
+        /**
+         * positions of rules other than exact ones, in order.
+         */
+        private final List<Integer> otherRules = new ArrayList<Integer>();
+        
+        /**
+         * compiled patterns for other rules. null for invalid ones.
+         */
+        private final Map<Integer, Pattern> patterns = new HashMap<Integer, Pattern>();
+        
+        public Index(List<LabelDecisionRule> rules)
+        {
+            this.rules = rules;
+            for(int i = 0; i < rules.size(); ++i)
+            {
+                LabelDecisionRule rule = rules.get(i);
+                if(StringUtils.isEmpty(rule.getVariable()))
+                {
+                    continue;
+                }
+                if(rule.isExact())
+                {
+                    Map<String, Integer> values = exactRules.get(rule.getVariable());
+                    if(values == null)
+                    {
+                        values = new HashMap<String, Integer>();
+                        exactRules.put(rule.getVariable(), values);
+                    }
+                    if(!values.containsKey(rule.getPattern()))
+                    {
+                        values.put(rule.getPattern(), i);
+                    }
+                    continue;
+                }
+                try
+                {
+                    patterns.put(i, rule.compile());
+                    otherRules.add(i);
+                }
+                catch(PatternSyntaxException e)
+                {
+                    LOGGER.log(Level.WARNING, String.format("Ignore a rule with an invalid pattern: %s", rule.getPattern()), e);
+                }
+            }
+        }
+        
+        /**
+         * @param binding
+         * @return the first matching rule. null if no rule matches.
+         */
+        public LabelDecisionRule find(Binding binding)
+        {
+            // values read from the binding. a variable may be tested by multiple rules.
+            Map<String, Object> variables = new HashMap<String, Object>();
+            int found = rules.size();
+            for(Map.Entry<String, Map<String, Integer>> entry: exactRules.entrySet())
+            {
+                Object value = getValue(binding, variables, entry.getKey());
+                if(value == null)
+                {
+                    continue;
+                }
+                Integer position = entry.getValue().get(value.toString());
+                if(position != null && position < found)
+                {
+                    found = position;
+                }
+            }
+            for(int position: otherRules)
+            {
+                if(position >= found)
+                {
+                    break;
+                }
+                Object value = getValue(binding, variables, rules.get(position).getVariable());
+                if(value != null && patterns.get(position).matcher(value.toString()).matches())
+                {
+                    found = position;
+                    break;
+                }
+            }
+            return (found < rules.size()) ? rules.get(found) : null;
+        }
+        
+        /**
+         * @param binding
+         * @param variables values already read.
+         * @param name
+         * @return the value of the variable. null if not defined.
+         */
+        private static Object getValue(Binding binding, Map<String, Object> variables, String name)
+        {
+            if(variables.containsKey(name))
+            {
+                return variables.get(name);
+            }
+            Object value = binding.hasVariable(name) ? binding.getVariable(name) : null;
+            variables.put(name, value);
+            return value;
+        }
+    }
+    
+    /**
+     * Descriptor for {@link LabelDecisionTable}.
+     */
+    @Extension
+    public static class DescriptorImpl extends Descriptor<LabelDecisionTable>
+    {
+        /**
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName()
+        {
+            return Messages.LabelDecisionTable_DisplayName();
+        }
+        
+        /**
+         * @return choices for matchType of rules.
+         */
+        public ListBoxModel doFillMatchTypeItems()
+        {
+            ListBoxModel items = new ListBoxModel();
+            for(LabelDecisionRule.MatchType matchType: LabelDecisionRule.MatchType.values())
+            {
+                items.add(matchType.getDisplayName(), matchType.name());
+            }
+            return items;
+        }
+        
+        /**
+         * @param value
+         * @return error if the variable is not specified.
+         */
+        public FormValidation doCheckVariable(@QueryParameter String value)
+        {
+            if(StringUtils.isBlank(value))
+            {
+                return FormValidation.error(Messages.LabelDecisionTable_variable_required());
+            }
+            return FormValidation.ok();
+        }
+        
+        /**
+         * @param value
+         * @param matchType
+         * @return error if the pattern is an invalid regular expression.
+         */
+        public FormValidation doCheckPattern(@QueryParameter String value, @QueryParameter String matchType)
+        {
+            try
+            {
+                new LabelDecisionRule("variable", matchType, value, null).compile();
+            }
+            catch(IllegalArgumentException e)
+            {
+                // PatternSyntaxException is an IllegalArgumentException.
+                return FormValidation.error(e, Messages.LabelDecisionTable_pattern_invalid(value));
+            }
+            return FormValidation.ok();
+        }
+        
+        /**
+         * @param value
+         * @return error if the label expression is invalid.
+         */
+        public FormValidation doCheckLabel(@QueryParameter String value)
+        {
+            return checkLabelExpression(value);
+        }
+        
+        /**
+         * @param value
+         * @return error if the label expression is invalid.
+         */
+        public FormValidation doCheckDefaultLabel(@QueryParameter String value)
+        {
+            return checkLabelExpression(value);
+        }
+        
+        private FormValidation checkLabelExpression(String value)
+        {
+            if(StringUtils.isBlank(value))
+            {
+                return FormValidation.ok();
+            }
+            try
+            {
+                LabelExpression.parseExpression(value);
+            }
+            catch(ANTLRException e)
+            {
+                return FormValidation.error(e, Messages.LabelDecisionTable_label_invalid(value));
+            }
+            return FormValidation.ok();
+        }
+    }
+}
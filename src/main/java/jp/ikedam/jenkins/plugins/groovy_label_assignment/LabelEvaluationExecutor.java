@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Worker threads to run label scripts out of the thread scheduling builds.
+ * 
+ * There are three pools of threads:
+ * one runs evaluations in the background,
+ * one runs evaluations of configurations in advance,
+ * and the other runs evaluations with time limits for their callers.
+ * They are separated so that background evaluations can have time limits,
+ * and evaluations in advance for large multi-configuration builds
+ * don't delay other background evaluations.
+ * 
+ * Tasks run with the authentication of the caller,
+ * so that scripts see the same Jenkins whether or not they run in the background.
+ * 
+ * The number of threads for background evaluations (and that for evaluations in advance)
+ * is bounded with the system property
+ * <code>jp.ikedam.jenkins.plugins.groovy_label_assignment.LabelEvaluationExecutor.poolSize</code>,
+ * which defaults to the number of processors.
+ * Evaluations with time limits get threads as soon as they are requested:
+ * that many threads are kept idle, and more are created when needed,
+ * as scripts not responding to interruption never give their threads back.
+ * 
+ * @since 1.2.1
+ */
+public class LabelEvaluationExecutor
+{
+    static private final Logger LOGGER = Logger.getLogger(LabelEvaluationExecutor.class.getName());
+    
+    /**
+     * Number of worker threads.
+     */
+    static public final int POOL_SIZE = Integer.getInteger(
+            LabelEvaluationExecutor.class.getName() + ".poolSize",
+            Runtime.getRuntime().availableProcessors()
+    );
+    
+    static private final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(POOL_SIZE, 1),
+            new NamedDaemonThreadFactory("GroovyLabelAssignment evaluation")
+    );
+    
+    static private final ExecutorService preEvaluationExecutor = Executors.newFixedThreadPool(
+            Math.max(POOL_SIZE, 1),
+            new NamedDaemonThreadFactory("GroovyLabelAssignment pre-evaluation")
+    );
+    
+    static private final ExecutorService watchdogExecutor = new ThreadPoolExecutor(
+            Math.max(POOL_SIZE, 1),
+            Integer.MAX_VALUE,
+            60L,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            new NamedDaemonThreadFactory("GroovyLabelAssignment watchdog")
+    );
+    
+    static private final AtomicLong timeoutCount = new AtomicLong();
+    
+    /**
+     * Tasks still running after they timed out.
+     */
+    static private final AtomicInteger abandonedCount = new AtomicInteger();
+    
+    private LabelEvaluationExecutor()
+    {
+    }
+    
+    /**
+     * Runs a task in a worker thread.
+     * 
+     * @param task
+     * @return future to retrieve the result.
+     */
+    public static <T> Future<T> submit(Callable<T> task)
+    {
+        return executor.submit(withSecurityContext(task));
+    }
+    
+    /**
+     * Runs an evaluation for a configuration in advance in a worker thread.
+     * 
+     * @param task
+     * @return future to retrieve the result.
+     */
+    public static <T> Future<T> submitPreEvaluation(Callable<T> task)
+    {
+        return preEvaluationExecutor.submit(withSecurityContext(task));
+    }
+    
+    /**
+     * Wraps a task to run with the authentication of the current thread.
+     * 
+     * @param task
+     * @return the task running with the authentication.
+     */
+    private static <T> Callable<T> withSecurityContext(final Callable<T> task)
+    {
+        // scripts may access Jenkins with the authentication of the caller.
+        final SecurityContext securityContext = SecurityContextHolder.getContext();
+        return new Callable<T>() {
+            public T call() throws Exception
+            {
+                SecurityContext orig = SecurityContextHolder.getContext();
+                SecurityContextHolder.setContext(securityContext);
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    SecurityContextHolder.setContext(orig);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Runs a task in a worker thread, and waits for it at most the specified time.
+     * 
+     * The time is counted from when the task starts running.
+     * The task is interrupted when it doesn't finish in time.
+     * Tasks not responding to interruption are left running,
+     * and occupy the worker thread till they finish
+     * without preventing other tasks from running.
+     * 
+     * @param task
+     * @param timeoutMillis
+     * @return the result of the task.
+     * @throws LabelScriptTimeoutException the task didn't finish in time.
+     * @throws Exception the task failed.
+     */
+    public static <T> T callWithTimeout(final Callable<T> task, long timeoutMillis) throws Exception
+    {
+        // scripts may access Jenkins with the authentication of the caller.
+        final SecurityContext securityContext = SecurityContextHolder.getContext();
+        // phases in the script are recorded for the build.
+        final EvaluationTimings timings = EvaluationTimings.current();
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicLong startedAt = new AtomicLong();
+        // set when the caller gives up the task.
+        final AtomicInteger abandoned = new AtomicInteger();
+        Future<T> future = watchdogExecutor.submit(new Callable<T>() {
+            public T call() throws Exception
+            {
+                startedAt.set(System.nanoTime());
+                started.countDown();
+                SecurityContext orig = SecurityContextHolder.getContext();
+                SecurityContextHolder.setContext(securityContext);
+                EvaluationTimings.attach(timings);
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    EvaluationTimings.attach(null);
+                    SecurityContextHolder.setContext(orig);
+                    if(!abandoned.compareAndSet(0, -1))
+                    {
+                        abandonedCount.decrementAndGet();
+                    }
+                }
+            }
+        });
+        
+        try
+        {
+            // threads are created on demand, and tasks start almost immediately.
+            while(!started.await(timeoutMillis, TimeUnit.MILLISECONDS))
+            {
+                if(future.isDone())
+                {
+                    break;
+                }
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt.get());
+            return future.get(Math.max(timeoutMillis - elapsedMillis, 0), TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            future.cancel(true);
+            timeoutCount.incrementAndGet();
+            if(abandoned.compareAndSet(0, 1))
+            {
+                int count = abandonedCount.incrementAndGet();
+                LOGGER.warning(String.format("A label script didn't finish in %d ms: %d scripts are left running", timeoutMillis, count));
+            }
+            throw new LabelScriptTimeoutException(timeoutMillis);
+        }
+        catch(InterruptedException e)
+        {
+            future.cancel(true);
+            throw e;
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof Exception)
+            {
+                throw (Exception)e.getCause();
+            }
+            if(e.getCause() instanceof Error)
+            {
+                throw (Error)e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * @return the number of evaluations exceeding their time limits.
+     */
+    public static long getTimeoutCount()
+    {
+        return timeoutCount.get();
+    }
+    
+    /**
+     * @return the number of tasks still running after they timed out.
+     */
+    public static int getAbandonedCount()
+    {
+        return abandonedCount.get();
+    }
+    
+    /**
+     * Creates daemon threads with names.
+     */
+    static class NamedDaemonThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+        
+        public NamedDaemonThreadFactory(String name)
+        {
+            this.name = name;
+        }
+        
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, String.format("%s #%d", name, count.incrementAndGet()));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.AbstractProject;
+
+/**
+ * Receives events of label evaluations, e.g. to pass them to profilers.
+ * 
+ * Events are created only when any listener is registered,
+ * and listeners are called in the thread deciding the label,
+ * so implementations should return quickly.
+ * 
+ * @since 1.2.1
+ */
+public abstract class LabelEvaluationListener implements ExtensionPoint
+{
+    static private final Logger LOGGER = Logger.getLogger(LabelEvaluationListener.class.getName());
+    
+    /**
+     * How the label for a build was decided.
+     */
+    public static enum Outcome
+    {
+        /**
+         * The label was assigned.
+         */
+        ASSIGNED,
+        /**
+         * The label of the job is used.
+         */
+        NOT_MODIFIED,
+        /**
+         * The label is decided asynchronously.
+         */
+        PENDING,
+        /**
+         * The build is not scheduled.
+         */
+        REJECTED,
+    }
+    
+    /**
+     * An event of a label evaluation.
+     */
+    public static class Event
+    {
+        private final String jobName;
+        private final String combination;
+        private final LabelAssignmentMetrics.Phase phase;
+        private final String labelString;
+        private final Outcome outcome;
+        private final long durationNanos;
+        
+        private Event(
+                AbstractProject<?, ?> project,
+                LabelAssignmentMetrics.Phase phase,
+                String labelString,
+                Outcome outcome,
+                long durationNanos
+        )
+        {
+            if(project instanceof MatrixConfiguration)
+            {
+                MatrixConfiguration child = (MatrixConfiguration)project;
+                this.jobName = child.getParent().getFullName();
+                this.combination = child.getCombination().toString();
+            }
+            else
+            {
+                this.jobName = project.getFullName();
+                this.combination = null;
+            }
+            this.phase = phase;
+            this.labelString = labelString;
+            this.outcome = outcome;
+            this.durationNanos = durationNanos;
+        }
+        
+        /**
+         * @return the full name of the job. the parent for configurations of multi-configuration projects.
+         */
+        public String getJobName()
+        {
+            return jobName;
+        }
+        
+        /**
+         * @return the combination of the configuration. null if not a configuration.
+         */
+        public String getCombination()
+        {
+            return combination;
+        }
+        
+        /**
+         * @return the phase. null for the whole decision of the label.
+         */
+        public LabelAssignmentMetrics.Phase getPhase()
+        {
+            return phase;
+        }
+        
+        /**
+         * @return the decided label expression. null if not decided or not modified.
+         */
+        public String getLabelString()
+        {
+            return labelString;
+        }
+        
+        /**
+         * @return the outcome of the decision. null for phases.
+         */
+        public Outcome getOutcome()
+        {
+            return outcome;
+        }
+        
+        /**
+         * @return nanoseconds spent.
+         */
+        public long getDurationNanos()
+        {
+            return durationNanos;
+        }
+    }
+    
+    /**
+     * Called when a phase of a label evaluation finished.
+     * 
+     * @param event
+     */
+    public void onPhase(Event event)
+    {
+    }
+    
+    /**
+     * Called when the label for a build is decided,
+     * when a build is scheduled and when an asynchronous evaluation finished.
+     * 
+     * @param event
+     */
+    public void onDecided(Event event)
+    {
+    }
+    
+    /**
+     * @return all registered listeners.
+     */
+    public static ExtensionList<LabelEvaluationListener> all()
+    {
+        Jenkins jenkins = Jenkins.getInstance();
+        return (jenkins != null) ? jenkins.getExtensionList(LabelEvaluationListener.class) : null;
+    }
+    
+    /**
+     * @return whether any listener is registered. Events are not needed to be created if false.
+     */
+    public static boolean isActive()
+    {
+        ExtensionList<LabelEvaluationListener> listeners = all();
+        return listeners != null && !listeners.isEmpty();
+    }
+    
+    /**
+     * @param project
+     * @param phase
+     * @param durationNanos
+     */
+    static void firePhase(AbstractProject<?, ?> project, LabelAssignmentMetrics.Phase phase, long durationNanos)
+    {
+        if(project == null || !isActive())
+        {
+            return;
+        }
+        Event event = new Event(project, phase, null, null, durationNanos);
+        for(LabelEvaluationListener listener: all())
+        {
+            try
+            {
+                listener.onPhase(event);
+            }
+            catch(RuntimeException e)
+            {
+                LOGGER.log(Level.WARNING, String.format("%s: Failed to notify %s", project.getName(), listener.getClass().getName()), e);
+            }
+        }
+    }
+    
+    /**
+     * @param project
+     * @param labelString
+     * @param outcome
+     * @param durationNanos
+     */
+    static void fireDecided(AbstractProject<?, ?> project, String labelString, Outcome outcome, long durationNanos)
+    {
+        if(!isActive())
+        {
+            return;
+        }
+        Event event = new Event(project, null, labelString, outcome, durationNanos);
+        for(LabelEvaluationListener listener: all())
+        {
+            try
+            {
+                listener.onDecided(event);
+            }
+            catch(RuntimeException e)
+            {
+                LOGGER.log(Level.WARNING, String.format("%s: Failed to notify %s", project.getName(), listener.getClass().getName()), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.matrix.MatrixRun;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Shows time spent to decide labels for recent builds of a job.
+ * 
+ * Timings are copied from {@link GroovyLabelAssignmentAction} when builds start,
+ * and kept in a small file in the job directory
+ * so that the page doesn't need to load build records.
+ * Files are written periodically rather than every time a build starts.
+ * Builds of configurations of multi-configuration projects are not recorded,
+ * as their pages are not shown.
+ * 
+ * @since 1.2.1
+ */
+public class LabelEvaluationTrendAction implements Action
+{
+    static private final Logger LOGGER = Logger.getLogger(LabelEvaluationTrendAction.class.getName());
+    
+    /**
+     * Maximum number of builds to keep for each job.
+     */
+    static public final int MAX_BUILDS = Integer.getInteger(LabelEvaluationTrendAction.class.getName() + ".maxBuilds", 50);
+    
+    /**
+     * Interval to write recorded timings to files.
+     */
+    static public final long SAVE_MILLIS = Long.getLong(LabelEvaluationTrendAction.class.getName() + ".saveMillis", TimeUnit.SECONDS.toMillis(30));
+    
+    static private final String FILENAME = "groovy-label-assignment-trend.xml";
+    
+    /**
+     * Histories indexed by full names of jobs.
+     * Jobs are not held not to keep them after they are deleted or reloaded.
+     */
+    static private final Map<String, History> histories = new HashMap<String, History>();
+    
+    private final Job<?, ?> job;
+    
+    /**
+     * @param job
+     */
+    public LabelEvaluationTrendAction(Job<?, ?> job)
+    {
+        this.job = job;
+    }
+    
+    /**
+     * @return the job.
+     */
+    public Job<?, ?> getJob()
+    {
+        return job;
+    }
+    
+    /**
+     * @see hudson.model.Action#getIconFileName()
+     */
+    @Override
+    public String getIconFileName()
+    {
+        return "clock.png";
+    }
+    
+    /**
+     * @see hudson.model.Action#getDisplayName()
+     */
+    @Override
+    public String getDisplayName()
+    {
+        return Messages.LabelEvaluationTrendAction_DisplayName();
+    }
+    
+    /**
+     * @see hudson.model.Action#getUrlName()
+     */
+    @Override
+    public String getUrlName()
+    {
+        return "label-evaluation-trend";
+    }
+    
+    /**
+     * @return recent builds, the newest first.
+     */
+    public List<Entry> getEntries()
+    {
+        List<Entry> entries = getHistory(job).getEntries();
+        Collections.reverse(entries);
+        return entries;
+    }
+    
+    /**
+     * @return the average of time spent in each phase.
+     */
+    public Summary getAverage()
+    {
+        List<Entry> entries = getHistory(job).getEntries();
+        Summary summary = new Summary();
+        if(entries.isEmpty())
+        {
+            return summary;
+        }
+        for(Entry entry: entries)
+        {
+            EvaluationTimings timings = entry.getTimings();
+            summary.bindingMicros += timings.getBindingMicros();
+            summary.compileMicros += timings.getCompileMicros();
+            summary.runMicros += timings.getRunMicros();
+            summary.parseMicros += timings.getParseMicros();
+        }
+        summary.bindingMicros /= entries.size();
+        summary.compileMicros /= entries.size();
+        summary.runMicros /= entries.size();
+        summary.parseMicros /= entries.size();
+        return summary;
+    }
+    
+    /**
+     * @return the maximum of time spent in each phase.
+     */
+    public Summary getMax()
+    {
+        Summary summary = new Summary();
+        for(Entry entry: getHistory(job).getEntries())
+        {
+            EvaluationTimings timings = entry.getTimings();
+            summary.bindingMicros = Math.max(summary.bindingMicros, timings.getBindingMicros());
+            summary.compileMicros = Math.max(summary.compileMicros, timings.getCompileMicros());
+            summary.runMicros = Math.max(summary.runMicros, timings.getRunMicros());
+            summary.parseMicros = Math.max(summary.parseMicros, timings.getParseMicros());
+        }
+        return summary;
+    }
+    
+    /**
+     * @return the number of builds the script was compiled for.
+     */
+    public int getCompiledCount()
+    {
+        int count = 0;
+        for(Entry entry: getHistory(job).getEntries())
+        {
+            if(entry.getTimings().getCompilation() == EvaluationTimings.Compilation.COMPILED)
+            {
+                ++count;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Records the timings of a build.
+     * 
+     * @param run
+     * @param timings
+     */
+    public static void record(Run<?, ?> run, EvaluationTimings timings)
+    {
+        getHistory(run.getParent()).add(new Entry(run.getNumber(), run.getTimeInMillis(), timings));
+    }
+    
+    /**
+     * Writes timings recorded since the last time to files.
+     */
+    public static void saveAll()
+    {
+        List<History> targets;
+        synchronized(histories)
+        {
+            targets = new ArrayList<History>(histories.values());
+        }
+        for(History history: targets)
+        {
+            history.save();
+        }
+    }
+    
+    private static History getHistory(Job<?, ?> job)
+    {
+        synchronized(histories)
+        {
+            History history = histories.get(job.getFullName());
+            if(history == null)
+            {
+                history = History.load(job);
+                histories.put(job.getFullName(), history);
+            }
+            return history;
+        }
+    }
+    
+    /**
+     * Drops the history of a deleted job.
+     * 
+     * @param fullName
+     */
+    private static void remove(String fullName)
+    {
+        synchronized(histories)
+        {
+            histories.remove(fullName);
+        }
+    }
+    
+    /**
+     * Moves the history of a renamed job, keeping timings not written yet.
+     * 
+     * @param oldFullName
+     * @param job
+     */
+    private static void rename(String oldFullName, Job<?, ?> job)
+    {
+        synchronized(histories)
+        {
+            History history = histories.remove(oldFullName);
+            if(history != null)
+            {
+                history.moveTo(job);
+                histories.put(job.getFullName(), history);
+            }
+        }
+    }
+    
+    /**
+     * Time spent in each phase.
+     */
+    public static class Summary
+    {
+        private long bindingMicros;
+        private long compileMicros;
+        private long runMicros;
+        private long parseMicros;
+        
+        /**
+         * @return microseconds spent creating variables.
+         */
+        public long getBindingMicros()
+        {
+            return bindingMicros;
+        }
+        
+        /**
+         * @return microseconds spent retrieving the compiled script.
+         */
+        public long getCompileMicros()
+        {
+            return compileMicros;
+        }
+        
+        /**
+         * @return microseconds spent running the script.
+         */
+        public long getRunMicros()
+        {
+            return runMicros;
+        }
+        
+        /**
+         * @return microseconds spent validating the label expression.
+         */
+        public long getParseMicros()
+        {
+            return parseMicros;
+        }
+    }
+    
+    /**
+     * Timings for a build.
+     */
+    public static class Entry
+    {
+        private final int number;
+        private final long timestamp;
+        private final EvaluationTimings timings;
+        
+        public Entry(int number, long timestamp, EvaluationTimings timings)
+        {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.timings = timings;
+        }
+        
+        /**
+         * @return the build number.
+         */
+        public int getNumber()
+        {
+            return number;
+        }
+        
+        /**
+         * @return the time the build was scheduled.
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+        
+        /**
+         * @return {@link #getTimestamp()} as a date.
+         */
+        public Date getDate()
+        {
+            return new Date(timestamp);
+        }
+        
+        /**
+         * @return time spent to decide the label.
+         */
+        public EvaluationTimings getTimings()
+        {
+            return timings;
+        }
+    }
+    
+    /**
+     * Recent entries of a job, saved in the job directory.
+     */
+    private static class History
+    {
+        private final List<Entry> entries = new LinkedList<Entry>();
+        private transient XmlFile file;
+        private transient boolean dirty;
+        
+        private static XmlFile getFile(Job<?, ?> job)
+        {
+            return new XmlFile(Jenkins.XSTREAM, new File(job.getRootDir(), FILENAME));
+        }
+        
+        public static History load(Job<?, ?> job)
+        {
+            XmlFile file = getFile(job);
+            History history = null;
+            if(file.exists())
+            {
+                try
+                {
+                    history = (History)file.read();
+                }
+                catch(IOException e)
+                {
+                    LOGGER.log(Level.WARNING, String.format("%s: Failed to load %s", job.getFullName(), file), e);
+                }
+                catch(ClassCastException e)
+                {
+                    LOGGER.log(Level.WARNING, String.format("%s: Unexpected contents in %s", job.getFullName(), file), e);
+                }
+            }
+            if(history == null)
+            {
+                history = new History();
+            }
+            history.file = file;
+            return history;
+        }
+        
+        public synchronized List<Entry> getEntries()
+        {
+            return new ArrayList<Entry>(entries);
+        }
+        
+        public synchronized void add(Entry entry)
+        {
+            entries.add(entry);
+            while(entries.size() > MAX_BUILDS)
+            {
+                entries.remove(0);
+            }
+            dirty = true;
+        }
+        
+        public synchronized void moveTo(Job<?, ?> job)
+        {
+            file = getFile(job);
+        }
+        
+        public synchronized void save()
+        {
+            if(!dirty)
+            {
+                return;
+            }
+            dirty = false;
+            if(!file.getFile().getParentFile().isDirectory())
+            {
+                // deleted. don't create the directory again.
+                return;
+            }
+            try
+            {
+                file.write(this);
+            }
+            catch(IOException e)
+            {
+                LOGGER.log(Level.WARNING, String.format("Failed to save %s", file), e);
+            }
+        }
+    }
+    
+    /**
+     * Writes recorded timings to files periodically.
+     */
+    @Extension
+    static public class SaveWork extends PeriodicWork
+    {
+        /**
+         * @see hudson.model.PeriodicWork#getRecurrencePeriod()
+         */
+        @Override
+        public long getRecurrencePeriod()
+        {
+            return SAVE_MILLIS;
+        }
+        
+        /**
+         * @see hudson.triggers.SafeTimerTask#doRun()
+         */
+        @Override
+        protected void doRun() throws Exception
+        {
+            saveAll();
+        }
+    }
+    
+    /**
+     * Records timings when builds start.
+     */
+    @Extension
+    static public class RunListenerImpl extends RunListener<Run<?, ?>>
+    {
+        /**
+         * @see hudson.model.listeners.RunListener#onStarted(hudson.model.Run, hudson.model.TaskListener)
+         */
+        @Override
+        public void onStarted(Run<?, ?> r, TaskListener listener)
+        {
+            if(r instanceof MatrixRun)
+            {
+                // pages of configurations are not shown.
+                return;
+            }
+            GroovyLabelAssignmentAction action = r.getAction(GroovyLabelAssignmentAction.class);
+            if(action == null || action.getTimings() == null)
+            {
+                return;
+            }
+            record(r, action.getTimings());
+        }
+    }
+    
+    /**
+     * Drops or moves histories of deleted or renamed jobs.
+     */
+    @Extension
+    static public class ItemListenerImpl extends ItemListener
+    {
+        /**
+         * @see hudson.model.listeners.ItemListener#onDeleted(hudson.model.Item)
+         */
+        @Override
+        public void onDeleted(Item item)
+        {
+            remove(item.getFullName());
+        }
+        
+        /**
+         * @see hudson.model.listeners.ItemListener#onRenamed(hudson.model.Item, java.lang.String, java.lang.String)
+         */
+        @Override
+        public void onRenamed(Item item, String oldName, String newName)
+        {
+            if(!(item instanceof Job<?, ?>))
+            {
+                return;
+            }
+            // full names are not available for the old name.
+            rename(
+                    item.getParent().getFullName().length() > 0
+                        ? item.getParent().getFullName() + "/" + oldName
+                        : oldName,
+                    (Job<?, ?>)item
+            );
+        }
+    }
+}
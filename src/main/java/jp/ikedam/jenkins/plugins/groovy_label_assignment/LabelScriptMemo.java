@@ -0,0 +1,208 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import groovy.lang.Binding;
+
+/**
+ * Labels memoized for a deterministic label script.
+ * 
+ * A result is stored with the variables the script read to compute it
+ * (recorded with {@link DependencyTrackingBinding}),
+ * and reused for later builds where those variables have the same values.
+ * Other variables don't affect the lookup, and are not read from the binding.
+ * 
+ * Results expire after {@link #TTL_SECONDS} seconds,
+ * and at most {@link #MAX_SIZE} results are held.
+ * 
+ * @since 1.2.1
+ */
+public class LabelScriptMemo
+{
+    /**
+     * Seconds to keep a memoized result.
+     */
+    static public final long TTL_SECONDS = Long.getLong(LabelScriptMemo.class.getName() + ".ttlSeconds", 300L);
+    
+    /**
+     * Maximum number of results held for a job.
+     */
+    static public final int MAX_SIZE = Integer.getInteger(LabelScriptMemo.class.getName() + ".maxSize", 1000);
+    
+    /**
+     * Maximum number of distinct sets of variables the script depends on.
+     * Scripts reading different variables for each build are not worth memoizing.
+     */
+    static private final int MAX_DEPENDENCY_SETS = 16;
+    
+    static private final AtomicLong hitCount = new AtomicLong();
+    static private final AtomicLong missCount = new AtomicLong();
+    
+    /**
+     * A memoized result.
+     */
+    public static class Entry
+    {
+        private final String labelString;
+        private final long expiresAt;
+        
+        private Entry(String labelString, long expiresAt)
+        {
+            this.labelString = labelString;
+            this.expiresAt = expiresAt;
+        }
+        
+        /**
+         * @return the label string the script returned. may be null.
+         */
+        public String getLabelString()
+        {
+            return labelString;
+        }
+        
+        private boolean isExpired(long now)
+        {
+            return expiresAt <= now;
+        }
+    }
+    
+    private final List<Set<String>> dependencySets = new CopyOnWriteArrayList<Set<String>>();
+    
+    private final Map<Map<String, Object>, Entry> entries = new LinkedHashMap<Map<String, Object>, Entry>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Map<String, Object>, Entry> eldest)
+        {
+            return size() > MAX_SIZE;
+        }
+    };
+    
+    /**
+     * Looks up the result for variables.
+     * 
+     * Only variables results depend on are read,
+     * so a {@link LazyBinding} doesn't load variables
+     * if results depend only on variables set explicitly.
+     * 
+     * @param binding variables bound to the script.
+     * @return the memoized result. null if not found.
+     */
+    public Entry lookup(Binding binding)
+    {
+        long now = System.currentTimeMillis();
+        for(Set<String> names: dependencySets)
+        {
+            Map<String, Object> key = new TreeMap<String, Object>();
+            for(String name: names)
+            {
+                key.put(name, binding.hasVariable(name) ? binding.getVariable(name) : DependencyTrackingBinding.ABSENT);
+            }
+            synchronized(entries)
+            {
+                Entry entry = entries.get(key);
+                if(entry == null)
+                {
+                    continue;
+                }
+                if(entry.isExpired(now))
+                {
+                    entries.remove(key);
+                    continue;
+                }
+                hitCount.incrementAndGet();
+                return entry;
+            }
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+    
+    /**
+     * Stores a result.
+     * 
+     * @param readVariables variables the script read and their values.
+     * @param labelString the label string the script returned.
+     */
+    public void record(Map<String, Object> readVariables, String labelString)
+    {
+        Map<String, Object> key = new TreeMap<String, Object>(readVariables);
+        Set<String> names = new TreeSet<String>(key.keySet());
+        if(!dependencySets.contains(names))
+        {
+            synchronized(dependencySets)
+            {
+                if(!dependencySets.contains(names))
+                {
+                    if(dependencySets.size() >= MAX_DEPENDENCY_SETS)
+                    {
+                        return;
+                    }
+                    dependencySets.add(names);
+                }
+            }
+        }
+        synchronized(entries)
+        {
+            entries.put(key, new Entry(labelString, System.currentTimeMillis() + TTL_SECONDS * 1000));
+        }
+    }
+    
+    /**
+     * @return the number of memoized results.
+     */
+    public int size()
+    {
+        synchronized(entries)
+        {
+            return entries.size();
+        }
+    }
+    
+    /**
+     * @return the number of builds whose label is decided with memoized results.
+     */
+    public static long getHitCount()
+    {
+        return hitCount.get();
+    }
+    
+    /**
+     * @return the number of builds whose label is not memoized.
+     */
+    public static long getMissCount()
+    {
+        return missCount.get();
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractProject;
+import hudson.model.ManagementLink;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+
+/**
+ * Compiles label scripts in background
+ * so that builds are scheduled without compiling scripts.
+ * 
+ * All scripts are compiled after jobs are loaded,
+ * and the script of a job is compiled again when the job is saved.
+ * Shared scripts are compiled when the global configuration is saved.
+ * 
+ * The progress and errors are displayed in a page in "Manage Jenkins".
+ * The number of threads is bounded with the system property
+ * <code>jp.ikedam.jenkins.plugins.groovy_label_assignment.LabelScriptPrecompiler.poolSize</code>,
+ * which defaults to the half of the number of processors.
+ * 
+ * @since 1.2.1
+ */
+@Extension
+public class LabelScriptPrecompiler extends ManagementLink
+{
+    static private final Logger LOGGER = Logger.getLogger(LabelScriptPrecompiler.class.getName());
+    
+    /**
+     * Number of threads to compile scripts.
+     */
+    static public final int POOL_SIZE = Integer.getInteger(
+            LabelScriptPrecompiler.class.getName() + ".poolSize",
+            Math.max(Runtime.getRuntime().availableProcessors() / 2, 1)
+    );
+    
+    static private final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(POOL_SIZE, 1),
+            new LabelEvaluationExecutor.NamedDaemonThreadFactory("GroovyLabelAssignment precompilation")
+    );
+    
+    static private final AtomicLong scheduledCount = new AtomicLong();
+    static private final AtomicLong completedCount = new AtomicLong();
+    static private final AtomicLong failedCount = new AtomicLong();
+    
+    /**
+     * Errors for each job (or shared script).
+     */
+    static private final Map<String, CompileError> errors = new ConcurrentHashMap<String, CompileError>();
+    
+    /**
+     * A script failed to compile.
+     */
+    public static class CompileError
+    {
+        private final String name;
+        private final String message;
+        private final long timestamp;
+        
+        private CompileError(String name, String message)
+        {
+            this.name = name;
+            this.message = message;
+            this.timestamp = System.currentTimeMillis();
+        }
+        
+        /**
+         * @return the full name of the job, or the name of the shared script.
+         */
+        public String getName()
+        {
+            return name;
+        }
+        
+        /**
+         * @return the error message.
+         */
+        public String getMessage()
+        {
+            return message;
+        }
+        
+        /**
+         * @return the time compiled in milliseconds.
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+        
+        /**
+         * @return the time compiled.
+         */
+        public Date getDate()
+        {
+            return new Date(timestamp);
+        }
+    }
+    
+    /**
+     * @see hudson.model.ManagementLink#getIconFileName()
+     */
+    @Override
+    public String getIconFileName()
+    {
+        return "notepad.png";
+    }
+    
+    /**
+     * @see hudson.model.ManagementLink#getUrlName()
+     */
+    @Override
+    public String getUrlName()
+    {
+        return "groovy-label-assignment-precompilation";
+    }
+    
+    /**
+     * @see hudson.model.Action#getDisplayName()
+     */
+    @Override
+    public String getDisplayName()
+    {
+        return Messages.LabelScriptPrecompiler_DisplayName();
+    }
+    
+    /**
+     * @see hudson.model.ManagementLink#getDescription()
+     */
+    @Override
+    public String getDescription()
+    {
+        return Messages.LabelScriptPrecompiler_Description();
+    }
+    
+    /**
+     * @return the number of scripts scheduled to compile.
+     */
+    public long getScheduledCount()
+    {
+        return scheduledCount.get();
+    }
+    
+    /**
+     * @return the number of scripts compiled (including failed ones).
+     */
+    public long getCompletedCount()
+    {
+        return completedCount.get();
+    }
+    
+    /**
+     * @return the number of scripts failed to compile.
+     */
+    public long getFailedCount()
+    {
+        return failedCount.get();
+    }
+    
+    /**
+     * @return the number of scripts waiting to compile.
+     */
+    public long getPendingCount()
+    {
+        return Math.max(getScheduledCount() - getCompletedCount(), 0);
+    }
+    
+    /**
+     * @return scripts failed to compile last time, sorted by names.
+     */
+    public List<CompileError> getErrors()
+    {
+        List<CompileError> list = new ArrayList<CompileError>(errors.values());
+        Collections.sort(list, new Comparator<CompileError>() {
+            public int compare(CompileError o1, CompileError o2)
+            {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        return list;
+    }
+    
+    /**
+     * Compiles all scripts again.
+     * 
+     * @return redirects to the page.
+     * @throws IOException
+     * @throws ServletException
+     */
+    @RequirePOST
+    public HttpResponse doPrecompile() throws IOException, ServletException
+    {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        precompileAll();
+        return HttpResponses.redirectToDot();
+    }
+    
+    /**
+     * Compiles scripts of all jobs and shared scripts.
+     */
+    public static void precompileAll()
+    {
+        Jenkins jenkins = Jenkins.getInstance();
+        if(jenkins == null)
+        {
+            return;
+        }
+        precompileSharedScripts();
+        for(AbstractProject<?, ?> project: jenkins.getAllItems(AbstractProject.class))
+        {
+            precompile(project);
+        }
+    }
+    
+    /**
+     * Compiles all jobs after they are loaded.
+     */
+    @Initializer(after=InitMilestone.JOB_LOADED)
+    public static void onJobsLoaded()
+    {
+        LOGGER.info("Start compiling label scripts");
+        precompileAll();
+    }
+    
+    /**
+     * Compiles the script of a job in background.
+     * 
+     * @param project
+     */
+    public static void precompile(final AbstractProject<?, ?> project)
+    {
+        final String name = project.getFullName();
+        final GroovyLabelAssignmentProperty prop = project.getProperty(GroovyLabelAssignmentProperty.class);
+        if(prop == null || !prop.isCompiledScriptUsed())
+        {
+            errors.remove(name);
+            return;
+        }
+        submit(name, new Compilation() {
+            public void compile(ClassLoader cl) throws Exception
+            {
+                prop.getCompiledScript(cl);
+            }
+        });
+    }
+    
+    /**
+     * Compiles shared scripts in background.
+     */
+    public static void precompileSharedScripts()
+    {
+        GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+        if(config == null)
+        {
+            return;
+        }
+        for(final SharedLabelScript shared: config.getSharedScripts())
+        {
+            if(shared.getConstantScript() != null)
+            {
+                continue;
+            }
+            submit(Messages.LabelScriptPrecompiler_SharedScript(shared.getName()), new Compilation() {
+                public void compile(ClassLoader cl) throws Exception
+                {
+                    shared.getCompiledScript(cl);
+                }
+            });
+        }
+    }
+    
+    private static interface Compilation
+    {
+        public void compile(ClassLoader cl) throws Exception;
+    }
+    
+    private static void submit(final String name, final Compilation compilation)
+    {
+        scheduledCount.incrementAndGet();
+        executor.submit(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    Jenkins jenkins = Jenkins.getInstance();
+                    if(jenkins == null)
+                    {
+                        return;
+                    }
+                    // must be the same class loader as used when scheduling builds.
+                    compilation.compile(jenkins.getPluginManager().uberClassLoader);
+                    errors.remove(name);
+                }
+                catch(Throwable t)
+                {
+                    failedCount.incrementAndGet();
+                    errors.put(name, new CompileError(name, String.valueOf(t.getMessage())));
+                    LOGGER.log(Level.WARNING, String.format("%s: Failed to compile the label script", name), t);
+                }
+                finally
+                {
+                    completedCount.incrementAndGet();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Compiles scripts when jobs or the global configuration are saved.
+     */
+    @Extension
+    static public class SaveableListenerImpl extends SaveableListener
+    {
+        /**
+         * @see hudson.model.listeners.SaveableListener#onChange(hudson.model.Saveable, hudson.XmlFile)
+         */
+        @Override
+        public void onChange(Saveable o, XmlFile file)
+        {
+            if(o instanceof AbstractProject<?, ?>)
+            {
+                precompile((AbstractProject<?, ?>)o);
+            }
+            else if(o instanceof GroovyLabelAssignmentConfiguration)
+            {
+                precompileSharedScripts();
+            }
+        }
+    }
+}
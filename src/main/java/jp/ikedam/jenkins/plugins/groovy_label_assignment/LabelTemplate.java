@@ -0,0 +1,369 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import antlr.ANTLRException;
+import groovy.lang.Binding;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Util;
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Descriptor;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.labels.LabelExpression;
+import hudson.util.FormValidation;
+
+/**
+ * Decides labels with a template like <code>${platform}&amp;&amp;docker</code>
+ * instead of a Groovy script.
+ * 
+ * The template is parsed into literals and variables when configured.
+ * When a build is scheduled, only referenced variables are looked up
+ * from axes and parameters.
+ * Other variables (e.g. contributed by other plugins) are looked up
+ * from the same variables bound to scripts.
+ * Parameters are looked up directly only when the build has
+ * a single action contributing variables (the {@link ParametersAction}).
+ * With multiple ones, later ones override earlier ones,
+ * and all variables are looked up as bound to scripts.
+ * 
+ * @since 1.2.1
+ */
+public class LabelTemplate extends AbstractDescribableImpl<LabelTemplate>
+{
+    static private final Logger LOGGER = Logger.getLogger(LabelTemplate.class.getName());
+    
+    /**
+     * Substituted to variables to validate templates.
+     */
+    static private final String PLACEHOLDER = "placeholder";
+    
+    /**
+     * A literal or a variable in the template.
+     */
+    private static class Segment
+    {
+        public final String text;
+        public final boolean variable;
+        
+        public Segment(String text, boolean variable)
+        {
+            this.text = text;
+            this.variable = variable;
+        }
+    }
+    
+    private final String template;
+    
+    private transient List<Segment> segments;
+    
+    private transient String error;
+    
+    /**
+     * @param template the template of the label expression.
+     */
+    @DataBoundConstructor
+    public LabelTemplate(String template)
+    {
+        this.template = StringUtils.trim(template);
+        parse();
+    }
+    
+    private Object readResolve()
+    {
+        parse();
+        return this;
+    }
+    
+    private void parse()
+    {
+        try
+        {
+            segments = parse(template);
+            error = null;
+        }
+        catch(IllegalArgumentException e)
+        {
+            segments = null;
+            error = e.getMessage();
+        }
+    }
+    
+    /**
+     * @return the template of the label expression.
+     */
+    public String getTemplate()
+    {
+        return template;
+    }
+    
+    /**
+     * @return names of variables referred in the template.
+     * @throws IllegalStateException the template is invalid.
+     */
+    public Set<String> getVariables()
+    {
+        Set<String> variables = new LinkedHashSet<String>();
+        for(Segment segment: getSegments())
+        {
+            if(segment.variable)
+            {
+                variables.add(segment.text);
+            }
+        }
+        return Collections.unmodifiableSet(variables);
+    }
+    
+    private List<Segment> getSegments()
+    {
+        if(segments == null)
+        {
+            throw new IllegalStateException(String.format("Invalid label template %s: %s", template, error));
+        }
+        return segments;
+    }
+    
+    /**
+     * @param template
+     * @return literals and variables in the template.
+     * @throws IllegalArgumentException the template is malformed.
+     */
+    private static List<Segment> parse(String template)
+    {
+        if(StringUtils.isBlank(template))
+        {
+            throw new IllegalArgumentException(Messages.LabelTemplate_template_required());
+        }
+        List<Segment> segments = new ArrayList<Segment>();
+        int pos = 0;
+        while(pos < template.length())
+        {
+            int start = template.indexOf("${", pos);
+            if(start < 0)
+            {
+                break;
+            }
+            int end = template.indexOf('}', start + 2);
+            if(end < 0)
+            {
+                throw new IllegalArgumentException(Messages.LabelTemplate_template_unclosed(start + 1));
+            }
+            String name = template.substring(start + 2, end).trim();
+            if(name.length() == 0 || name.contains("$") || name.contains("{"))
+            {
+                throw new IllegalArgumentException(Messages.LabelTemplate_template_invalidVariable(name));
+            }
+            if(pos < start)
+            {
+                segments.add(new Segment(template.substring(pos, start), false));
+            }
+            segments.add(new Segment(name, true));
+            pos = end + 1;
+        }
+        if(pos < template.length())
+        {
+            segments.add(new Segment(template.substring(pos), false));
+        }
+        return Collections.unmodifiableList(segments);
+    }
+    
+    /**
+     * Validates the template.
+     * 
+     * Variables are replaced with a label atom
+     * and the result is tested as a label expression.
+     * 
+     * @param template
+     * @return the result of the validation.
+     */
+    public static FormValidation check(String template)
+    {
+        List<Segment> segments;
+        try
+        {
+            segments = parse(StringUtils.trim(template));
+        }
+        catch(IllegalArgumentException e)
+        {
+            return FormValidation.error(e.getMessage());
+        }
+        StringBuilder sb = new StringBuilder();
+        for(Segment segment: segments)
+        {
+            sb.append(segment.variable ? PLACEHOLDER : segment.text);
+        }
+        try
+        {
+            LabelExpression.parseExpression(sb.toString());
+        }
+        catch(ANTLRException e)
+        {
+            return FormValidation.error(e, Messages.LabelTemplate_template_invalidLabel(template));
+        }
+        return FormValidation.ok();
+    }
+    
+    /**
+     * Expands the template.
+     * 
+     * @param project the job. Axes are used if this is a configuration.
+     * @param actions actions of the build. Parameters are used.
+     * @param binding creates variables bound to scripts when variables are not found in axes and parameters.
+     * @return the label expression.
+     * @throws IllegalArgumentException a variable is not defined.
+     * @throws Exception failed to create variables.
+     */
+    public String expand(AbstractProject<?, ?> project, List<Action> actions, Callable<Binding> binding) throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        Map<?, ?> allVariables = null;
+        ParametersAction parameters = getParametersAction(actions);
+        for(Segment segment: getSegments())
+        {
+            if(!segment.variable)
+            {
+                sb.append(segment.text);
+                continue;
+            }
+            String value = lookup(project, parameters, segment.text);
+            if(value == null)
+            {
+                if(allVariables == null)
+                {
+                    allVariables = binding.call().getVariables();
+                }
+                if(!allVariables.containsKey(segment.text))
+                {
+                    throw new IllegalArgumentException(String.format("No such variable: %s", segment.text));
+                }
+                Object v = allVariables.get(segment.text);
+                value = (v != null) ? v.toString() : "null";
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * @param actions
+     * @return the only action contributing variables. null if it is not a {@link ParametersAction}.
+     */
+    private static ParametersAction getParametersAction(List<Action> actions)
+    {
+        List<EnvironmentContributingAction> contributing = Util.filter(actions, EnvironmentContributingAction.class);
+        if(contributing.size() != 1 || !(contributing.get(0) instanceof ParametersAction))
+        {
+            // values may be overridden by other actions.
+            return null;
+        }
+        return (ParametersAction)contributing.get(0);
+    }
+    
+    /**
+     * Looks up a variable from axes and parameters.
+     * 
+     * @param project
+     * @param parameters parameters of the build. null not to look up parameters.
+     * @param name
+     * @return the value. null if not found or it may refer other variables.
+     */
+    private static String lookup(AbstractProject<?, ?> project, ParametersAction parameters, String name)
+    {
+        if(project instanceof MatrixConfiguration)
+        {
+            // axes take precedence over parameters.
+            String value = ((MatrixConfiguration)project).getCombination().get(name);
+            if(value != null)
+            {
+                return value;
+            }
+        }
+        if(parameters != null)
+        {
+            ParameterValue parameter = parameters.getParameter(name);
+            if(parameter == null)
+            {
+                return null;
+            }
+            EnvVars env = new EnvVars();
+            try
+            {
+                parameter.buildEnvVars(null, env);
+            }
+            catch(RuntimeException e)
+            {
+                LOGGER.log(Level.FINE, String.format("Failed to get the value of %s: lookup all variables", name), e);
+                return null;
+            }
+            String value = env.get(name);
+            // values referring other variables are resolved with all variables.
+            return (value != null && !value.contains("$")) ? value : null;
+        }
+        return null;
+    }
+    
+    /**
+     * Descriptor for {@link LabelTemplate}.
+     */
+    @Extension
+    public static class DescriptorImpl extends Descriptor<LabelTemplate>
+    {
+        /**
+         * @see hudson.model.Descriptor#getDisplayName()
+         */
+        @Override
+        public String getDisplayName()
+        {
+            return Messages.LabelTemplate_DisplayName();
+        }
+        
+        /**
+         * @param value
+         * @return error if the template is invalid.
+         */
+        public FormValidation doCheckTemplate(@QueryParameter String value)
+        {
+            return check(value);
+        }
+    }
+}
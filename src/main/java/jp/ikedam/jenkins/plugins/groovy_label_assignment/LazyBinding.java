@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import groovy.lang.Binding;
+
+/**
+ * {@link Binding} that loads variables only when a script reads them first.
+ * 
+ * Variables set with {@link #setVariable(String, Object)}
+ * take precedence over loaded ones whenever they are set,
+ * just as they were set after loading.
+ * Reading such variables doesn't cause loading.
+ * Variables set with {@link #setDefaultVariable(String, Object)}
+ * are used only when not loaded.
+ * 
+ * @since 1.2.1
+ */
+public abstract class LazyBinding extends Binding
+{
+    private boolean loaded = false;
+    
+    private final Map<String, Object> defaults = new HashMap<String, Object>();
+    
+    /**
+     * Loads variables.
+     * 
+     * Called at most once.
+     * 
+     * @return variables to bind.
+     */
+    protected abstract Map<String, ?> loadVariables();
+    
+    /**
+     * @return whether variables are already loaded.
+     */
+    public synchronized boolean isLoaded()
+    {
+        return loaded;
+    }
+    
+    /**
+     * Sets a variable used when no variable with the same name is loaded.
+     * 
+     * Reading it causes loading.
+     * 
+     * @param name
+     * @param value
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void setDefaultVariable(String name, Object value)
+    {
+        if(!loaded)
+        {
+            defaults.put(name, value);
+            return;
+        }
+        Map<String, Object> variables = super.getVariables();
+        if(!variables.containsKey(name))
+        {
+            variables.put(name, value);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private synchronized void ensureLoaded()
+    {
+        if(loaded)
+        {
+            return;
+        }
+        loaded = true;
+        Map<String, Object> variables = super.getVariables();
+        for(Map.Entry<String, ?> entry: loadVariables().entrySet())
+        {
+            if(!variables.containsKey(entry.getKey()))
+            {
+                variables.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for(Map.Entry<String, Object> entry: defaults.entrySet())
+        {
+            if(!variables.containsKey(entry.getKey()))
+            {
+                variables.put(entry.getKey(), entry.getValue());
+            }
+        }
+        defaults.clear();
+    }
+    
+    /**
+     * @see groovy.lang.Binding#getVariable(java.lang.String)
+     */
+    @Override
+    public Object getVariable(String name)
+    {
+        EvaluationTimings.recordVariableRead(name);
+        if(!super.getVariables().containsKey(name))
+        {
+            ensureLoaded();
+        }
+        return super.getVariable(name);
+    }
+    
+    /**
+     * @see groovy.lang.Binding#hasVariable(java.lang.String)
+     */
+    public boolean hasVariable(String name)
+    {
+        EvaluationTimings.recordVariableRead(name);
+        if(!super.getVariables().containsKey(name))
+        {
+            ensureLoaded();
+        }
+        return super.getVariables().containsKey(name);
+    }
+    
+    /**
+     * @see groovy.lang.Binding#getVariables()
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Map getVariables()
+    {
+        ensureLoaded();
+        return super.getVariables();
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import hudson.Util;
+import hudson.matrix.Combination;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.InvisibleAction;
+
+/**
+ * Holds labels decided for configurations of a multi-configuration build.
+ * 
+ * Attached to the parent build when labels are decided
+ * for all configurations at once, or evaluated for configurations in advance,
+ * and looked up when each configuration is scheduled.
+ * 
+ * @since 1.2.1
+ */
+public class MatrixLabelAssignmentAction extends InvisibleAction
+{
+    /**
+     * Milliseconds to wait for an evaluation running in advance.
+     * 
+     * Configurations are scheduled holding the lock of the queue,
+     * and evaluated by themselves when their evaluations don't finish in time.
+     */
+    static public final long WAIT_MILLIS = Long.getLong(MatrixLabelAssignmentAction.class.getName() + ".waitMillis", 1000L);
+    
+    private final Map<String, String> labelStrings;
+    
+    private final boolean allCombinations;
+    
+    /**
+     * Evaluations running in advance.
+     * Lost when Jenkins restarts, and then those configurations are evaluated as usual.
+     */
+    private transient Map<String, Future<Evaluation>> pendingLabelStrings;
+    
+    /**
+     * Time spent in evaluations in advance, till configurations take them.
+     */
+    private transient Map<String, EvaluationTimings> pendingTimings;
+    
+    /**
+     * Result of an evaluation in advance.
+     */
+    public static class Evaluation
+    {
+        private final String labelString;
+        private final EvaluationTimings timings;
+        
+        /**
+         * @param labelString the label expression. null not to modify the label.
+         * @param timings time spent in the evaluation. null if not recorded.
+         */
+        public Evaluation(String labelString, EvaluationTimings timings)
+        {
+            this.labelString = labelString;
+            this.timings = timings;
+        }
+        
+        /**
+         * @return the label expression. null not to modify the label.
+         */
+        public String getLabelString()
+        {
+            return labelString;
+        }
+        
+        /**
+         * @return time spent in the evaluation. null if not recorded.
+         */
+        public EvaluationTimings getTimings()
+        {
+            return timings;
+        }
+    }
+    
+    /**
+     * @param labelStrings label expressions for each combination.
+     *      Keys are in the form of {@link Combination#toString()}.
+     * @param allCombinations true if labelStrings are for all combinations,
+     *      and other combinations are not to be modified.
+     */
+    public MatrixLabelAssignmentAction(Map<String, String> labelStrings, boolean allCombinations)
+    {
+        this.labelStrings = new ConcurrentHashMap<String, String>(labelStrings);
+        this.allCombinations = allCombinations;
+        this.pendingLabelStrings = new ConcurrentHashMap<String, Future<Evaluation>>();
+        this.pendingTimings = new ConcurrentHashMap<String, EvaluationTimings>();
+    }
+    
+    /**
+     * @param labelStrings label expressions for each combination.
+     *      Keys are in the form of {@link Combination#toString()}.
+     */
+    public MatrixLabelAssignmentAction(Map<String, String> labelStrings)
+    {
+        this(labelStrings, true);
+    }
+    
+    private Object readResolve()
+    {
+        pendingLabelStrings = new ConcurrentHashMap<String, Future<Evaluation>>();
+        pendingTimings = new ConcurrentHashMap<String, EvaluationTimings>();
+        return this;
+    }
+    
+    /**
+     * @return label expressions decided for each combination.
+     */
+    public Map<String, String> getLabelStrings()
+    {
+        return Collections.unmodifiableMap(labelStrings);
+    }
+    
+    /**
+     * Registers an evaluation for a combination running in advance.
+     * 
+     * @param combination
+     * @param labelString the future to retrieve the label expression.
+     */
+    public void addPendingLabelString(Combination combination, Future<Evaluation> labelString)
+    {
+        pendingLabelStrings.put(combination.toString(), labelString);
+    }
+    
+    /**
+     * @param combination
+     * @return whether the label for the combination is decided or being evaluated.
+     */
+    public boolean isDecided(Combination combination)
+    {
+        String key = combination.toString();
+        return allCombinations || labelStrings.containsKey(key) || pendingLabelStrings.containsKey(key);
+    }
+    
+    /**
+     * Returns the label expression for the combination,
+     * waiting for the evaluation if it is still running.
+     * 
+     * @param combination
+     * @return the label expression for the combination. null if not modified.
+     * @throws ExecutionException the evaluation failed.
+     * @throws InterruptedException interrupted while waiting.
+     * @throws TimeoutException the evaluation didn't finish in {@link #WAIT_MILLIS}.
+     *      The evaluation is cancelled, and the combination is no longer decided.
+     */
+    public String getLabelString(Combination combination) throws ExecutionException, InterruptedException, TimeoutException
+    {
+        return getLabelString(combination, WAIT_MILLIS);
+    }
+    
+    /**
+     * Returns the label expression for the combination,
+     * waiting for the evaluation if it is still running.
+     * 
+     * @param combination
+     * @param timeoutMillis milliseconds to wait for the evaluation.
+     * @return the label expression for the combination. null if not modified.
+     * @throws ExecutionException the evaluation failed.
+     * @throws InterruptedException interrupted while waiting.
+     * @throws TimeoutException the evaluation didn't finish in time.
+     *      The evaluation is cancelled, and the combination is no longer decided.
+     */
+    public String getLabelString(Combination combination, long timeoutMillis) throws ExecutionException, InterruptedException, TimeoutException
+    {
+        String key = combination.toString();
+        Future<Evaluation> pending = pendingLabelStrings.get(key);
+        if(pending != null)
+        {
+            Evaluation evaluation;
+            try
+            {
+                evaluation = pending.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            catch(TimeoutException e)
+            {
+                pending.cancel(true);
+                pendingLabelStrings.remove(key);
+                throw e;
+            }
+            if(evaluation.getTimings() != null)
+            {
+                pendingTimings.put(key, evaluation.getTimings());
+            }
+            String labelString = evaluation.getLabelString();
+            if(labelString != null)
+            {
+                labelStrings.put(key, labelString);
+            }
+            pendingLabelStrings.remove(key);
+            return labelString;
+        }
+        return labelStrings.get(key);
+    }
+    
+    /**
+     * Returns time spent to evaluate the combination in advance.
+     * 
+     * Returned only once after {@link #getLabelString(Combination)}, not to hold them.
+     * 
+     * @param combination
+     * @return time spent in the evaluation. null if not evaluated in advance.
+     */
+    public EvaluationTimings takeTimings(Combination combination)
+    {
+        return pendingTimings.remove(combination.toString());
+    }
+    
+    /**
+     * Converts a key of a map returned from a script to a combination.
+     * 
+     * @param key a map from axis names to values, or a string like <code>axis1=value1,axis2=value2</code>
+     * @return the combination
+     */
+    public static Combination toCombination(Object key)
+    {
+        if(key instanceof Map<?, ?>)
+        {
+            Map<String, String> values = new HashMap<String, String>();
+            for(Map.Entry<?, ?> e: ((Map<?, ?>)key).entrySet())
+            {
+                values.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+            }
+            return new Combination(values);
+        }
+        return Combination.fromString(String.valueOf(key));
+    }
+    
+    /**
+     * Finds the action attached to the parent build of a configuration to schedule.
+     * 
+     * @param child the configuration to schedule.
+     * @param actions actions passed when scheduling the configuration.
+     * @return the action. null if not found.
+     */
+    public static MatrixLabelAssignmentAction findFor(MatrixConfiguration child, List<Action> actions)
+    {
+        MatrixProject parent = child.getParent();
+        for(CauseAction causeAction: Util.filter(actions, CauseAction.class))
+        {
+            for(Cause cause: causeAction.getCauses())
+            {
+                if(!(cause instanceof Cause.UpstreamCause))
+                {
+                    continue;
+                }
+                Cause.UpstreamCause upstreamCause = (Cause.UpstreamCause)cause;
+                if(!parent.getFullName().equals(upstreamCause.getUpstreamProject()))
+                {
+                    continue;
+                }
+                MatrixBuild build = parent.getBuildByNumber(upstreamCause.getUpstreamBuild());
+                if(build == null)
+                {
+                    continue;
+                }
+                MatrixLabelAssignmentAction action = build.getAction(MatrixLabelAssignmentAction.class);
+                if(action != null)
+                {
+                    return action;
+                }
+            }
+        }
+        return null;
+    }
+}
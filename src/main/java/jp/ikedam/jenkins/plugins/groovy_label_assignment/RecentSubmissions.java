@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.labels.LabelAssignmentAction;
+
+/**
+ * Labels decided for recent submissions of a job.
+ * 
+ * SCM polling and remote triggers may submit the same job
+ * with the same parameters many times in a short period,
+ * and Jenkins merges them into the existing queue item after
+ * {@link hudson.model.Queue.QueueDecisionHandler}s are called.
+ * This holds the label decided for a submission for
+ * {@link GroovyLabelAssignmentConfiguration#getRecentSubmissionWindowMillis()} milliseconds,
+ * and it is reused for the same job with the same signature of actions:
+ * parameter values, types of causes and the configuration (for multi-configuration projects).
+ * 
+ * Unlike {@link LabelScriptMemo}, which holds results of scripts
+ * and still builds variables for each submission to look them up,
+ * this skips the whole decision including decision tables and label templates.
+ * 
+ * Submissions with actions that may contribute other variables to scripts
+ * have no signature and are always evaluated.
+ * 
+ * This is disabled by default (the window is 0), as labels are reused
+ * even after nodes or approvals are changed in the window,
+ * and applies only to deterministic scripts.
+ * Labels chosen from candidates, decided by scripts reading <code>capacity</code>
+ * or decided with fallbacks are never reused, as they depend on the state when decided.
+ * Labels decided before approvals are changed are not reused either.
+ * 
+ * @since 1.2.1
+ */
+public class RecentSubmissions
+{
+    /**
+     * Maximum number of submissions held for a job.
+     */
+    static public final int MAX_SIZE = Integer.getInteger(RecentSubmissions.class.getName() + ".maxSize", 64);
+    
+    static private final AtomicLong hitCount = new AtomicLong();
+    static private final AtomicLong missCount = new AtomicLong();
+    
+    /**
+     * A label decided for a submission.
+     */
+    public static class Entry
+    {
+        private final String labelString;
+        private final SharedLabelScript sharedScript;
+        private final long approvalGeneration;
+        private final long expiresAt;
+        
+        private Entry(String labelString, SharedLabelScript sharedScript, long approvalGeneration, long expiresAt)
+        {
+            this.labelString = labelString;
+            this.sharedScript = sharedScript;
+            this.approvalGeneration = approvalGeneration;
+            this.expiresAt = expiresAt;
+        }
+        
+        /**
+         * @return the label string decided. null if the label was not modified.
+         */
+        public String getLabelString()
+        {
+            return labelString;
+        }
+    }
+    
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+        {
+            return size() > MAX_SIZE;
+        }
+    };
+    
+    /**
+     * @return milliseconds to reuse a decided label. 0 if disabled.
+     */
+    private static long getWindowMillis()
+    {
+        GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+        return (config != null) ? config.getRecentSubmissionWindowMillis() : 0;
+    }
+    
+    /**
+     * Returns the signature of a submission.
+     * 
+     * @param project the job. a configuration for multi-configuration projects.
+     * @param actions actions of the submission.
+     * @return the signature. null if the submission cannot be identified with its actions.
+     */
+    public static String signatureOf(AbstractProject<?, ?> project, List<Action> actions)
+    {
+        if(getWindowMillis() <= 0)
+        {
+            return null;
+        }
+        List<String> parameters = new ArrayList<String>();
+        List<String> causes = new ArrayList<String>();
+        for(Action a: actions)
+        {
+            // ParametersAction is also an EnvironmentContributingAction.
+            if(a instanceof ParametersAction)
+            {
+                for(ParameterValue v: ((ParametersAction)a).getParameters())
+                {
+                    if(!hasOwnToString(v))
+                    {
+                        // the value cannot be compared.
+                        return null;
+                    }
+                    parameters.add(v.toString());
+                }
+            }
+            else if(a instanceof CauseAction)
+            {
+                for(Cause c: ((CauseAction)a).getCauses())
+                {
+                    causes.add(c.getClass().getName());
+                }
+            }
+            else if(a instanceof EnvironmentContributingAction || a instanceof LabelAssignmentAction)
+            {
+                // may affect the label in a way not identified.
+                return null;
+            }
+        }
+        Collections.sort(parameters);
+        Collections.sort(causes);
+        return String.format("%s%s%s", project.getFullName(), parameters, causes);
+    }
+    
+    private static boolean hasOwnToString(ParameterValue v)
+    {
+        try
+        {
+            Class<?> declaring = v.getClass().getMethod("toString").getDeclaringClass();
+            return declaring != Object.class && declaring != ParameterValue.class;
+        }
+        catch(NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+    
+    /**
+     * Looks up the label decided for the same submission.
+     * 
+     * @param signature the signature of the submission.
+     * @param sharedScript the shared script currently used. null if not used.
+     * @return the label decided. null if not found.
+     */
+    public Entry lookup(String signature, SharedLabelScript sharedScript)
+    {
+        long now = System.currentTimeMillis();
+        synchronized(entries)
+        {
+            Entry entry = entries.get(signature);
+            if(entry != null && (entry.expiresAt <= now || entry.sharedScript != sharedScript
+                    || entry.approvalGeneration != ApprovalCache.getGeneration()))
+            {
+                entries.remove(signature);
+                entry = null;
+            }
+            if(entry == null)
+            {
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return entry;
+        }
+    }
+    
+    /**
+     * Stores the label decided for a submission.
+     * 
+     * @param signature the signature of the submission.
+     * @param sharedScript the shared script used. null if not used.
+     * @param labelString the label string decided. null if the label was not modified.
+     * @param approvalGeneration {@link ApprovalCache#getGeneration()} before the label is decided.
+     */
+    public void record(String signature, SharedLabelScript sharedScript, String labelString, long approvalGeneration)
+    {
+        long windowMillis = getWindowMillis();
+        if(windowMillis <= 0)
+        {
+            // disabled while deciding.
+            return;
+        }
+        synchronized(entries)
+        {
+            entries.put(signature, new Entry(labelString, sharedScript, approvalGeneration, System.currentTimeMillis() + windowMillis));
+        }
+    }
+    
+    /**
+     * @return the number of submissions whose label is reused.
+     */
+    public static long getHitCount()
+    {
+        return hitCount.get();
+    }
+    
+    /**
+     * @return the number of submissions whose label is decided.
+     */
+    public static long getMissCount()
+    {
+        return missCount.get();
+    }
+}
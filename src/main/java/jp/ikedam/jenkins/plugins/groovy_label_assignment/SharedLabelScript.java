@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import java.util.Collections;
+
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ClasspathEntry;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A named label script defined in {@link GroovyLabelAssignmentConfiguration}
+ * and shared by jobs.
+ * 
+ * The script is compiled once and used for all jobs referring it.
+ * Editing the global configuration replaces instances,
+ * and jobs start to use the new script at once.
+ * 
+ * @since 1.2.1
+ */
+public class SharedLabelScript
+{
+    private final String name;
+    
+    private final SecureGroovyScript secureGroovyScript;
+    
+    private transient volatile CompiledLabelScript compiledScript;
+    
+    private transient ConstantLabelScript constantScript;
+    
+    /**
+     * @param name the name jobs refer.
+     * @param script the Groovy script.
+     * @param sandbox whether to run the script in the sandbox.
+     */
+    @DataBoundConstructor
+    public SharedLabelScript(String name, String script, boolean sandbox)
+    {
+        this.name = StringUtils.trim(name);
+        this.secureGroovyScript = new SecureGroovyScript(
+                (script != null) ? script : "",
+                sandbox,
+                Collections.<ClasspathEntry>emptyList()
+        ).configuringWithNonKeyItem();
+        this.constantScript = ConstantLabelScript.analyze(this.secureGroovyScript);
+    }
+    
+    private Object readResolve()
+    {
+        constantScript = ConstantLabelScript.analyze(secureGroovyScript);
+        return this;
+    }
+    
+    /**
+     * @return the name jobs refer.
+     */
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * @return the Groovy script.
+     */
+    public String getScript()
+    {
+        return secureGroovyScript.getScript();
+    }
+    
+    /**
+     * @return whether to run the script in the sandbox.
+     */
+    public boolean isSandbox()
+    {
+        return secureGroovyScript.isSandbox();
+    }
+    
+    /**
+     * @return the script.
+     */
+    public SecureGroovyScript getSecureGroovyScript()
+    {
+        return secureGroovyScript;
+    }
+    
+    /**
+     * @return the script analyzed as a constant. null if the script is not a constant.
+     */
+    public ConstantLabelScript getConstantScript()
+    {
+        return constantScript;
+    }
+    
+    /**
+     * Returns the compiled script, compiling it if not compiled yet.
+     * 
+     * @param cl the class loader to load classes the script refers.
+     * @return the compiled script.
+     * @throws Exception the script is not approved or fails to be compiled.
+     */
+    public CompiledLabelScript getCompiledScript(ClassLoader cl) throws Exception
+    {
+        CompiledLabelScript compiled = CompiledLabelScript.get(compiledScript, secureGroovyScript, cl);
+        compiledScript = compiled;
+        return compiled;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2015 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.groovy_label_assignment;
+
+import org.jvnet.localizer.Localizable;
+
+/**
+ * What to do when a label script exceeds its time limit.
+ * 
+ * @since 1.2.1
+ */
+public enum TimeoutPolicy
+{
+    /**
+     * Rejects the build, just as when the script fails.
+     */
+    FAIL(Messages._TimeoutPolicy_FAIL_DisplayName()),
+    /**
+     * Doesn't modify the label, and the label configured in the job is used.
+     */
+    STATIC_LABEL(Messages._TimeoutPolicy_STATIC_LABEL_DisplayName()),
+    /**
+     * Uses the label the script decided last time.
+     * Rejects the build if the script never succeeded.
+     */
+    LAST_GOOD_LABEL(Messages._TimeoutPolicy_LAST_GOOD_LABEL_DisplayName()),
+    ;
+    
+    private final Localizable displayName;
+    
+    private TimeoutPolicy(Localizable displayName)
+    {
+        this.displayName = displayName;
+    }
+    
+    /**
+     * @return the name to display.
+     */
+    public String getDisplayName()
+    {
+        return displayName.toString();
+    }
+}
@@ -23,6 +23,8 @@
  */
 package jp.ikedam.jenkins.plugins.groovy_label_assignment;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -30,14 +32,21 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 import jenkins.model.Jenkins;
+import hudson.EnvVars;
 import hudson.matrix.Axis;
 import hudson.matrix.AxisList;
+import hudson.matrix.Combination;
 import hudson.matrix.MatrixRun;
 import hudson.matrix.LabelAxis;
 import hudson.matrix.MatrixBuild;
@@ -47,21 +56,36 @@ import hudson.model.AbstractBuild;
 import hudson.model.FreeStyleBuild;
 import hudson.model.ParameterValue;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Descriptor.FormException;
 import hudson.model.BooleanParameterValue;
 import hudson.model.Cause;
+import hudson.model.CauseAction;
 import hudson.model.FreeStyleProject;
+import hudson.model.ManagementLink;
+import hudson.model.Label;
 import hudson.model.Node;
+import hudson.model.Run;
 import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.StringParameterDefinition;
 import hudson.model.StringParameterValue;
 import hudson.model.labels.LabelExpression;
+import hudson.security.ACL;
 import hudson.slaves.DumbSlave;
+import hudson.util.FormValidation;
 
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.scriptsecurity.sandbox.groovy.SecureGroovyScript;
+import org.jenkinsci.plugins.scriptsecurity.scripts.ApprovalContext;
 import org.jenkinsci.plugins.scriptsecurity.scripts.ClasspathEntry;
 import org.jenkinsci.plugins.scriptsecurity.scripts.ScriptApproval;
+import org.jenkinsci.plugins.scriptsecurity.scripts.languages.GroovyLanguage;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -70,6 +94,10 @@ import org.jvnet.hudson.test.JenkinsRule.WebClient;
 import org.jvnet.hudson.test.CaptureEnvironmentBuilder;
 import org.jvnet.hudson.test.recipes.LocalData;
 
+import antlr.ANTLRException;
+import net.sf.json.JSONObject;
+
+import com.gargoylesoftware.htmlunit.FailingHttpStatusCodeException;
 import com.gargoylesoftware.htmlunit.html.HtmlCheckBoxInput;
 import com.gargoylesoftware.htmlunit.html.HtmlForm;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
@@ -413,6 +441,137 @@ public class GroovyLabelAssignmentPropertyJenkinsTest
         }
     }
     
+    @Test
+    public void testMatrixBatch() throws Exception
+    {
+        MatrixProject project = j.createMatrixProject();
+        project.setAxes(new AxisList(new TextAxis("axisParam", "axis1", "axis2", "axis3")));
+        project.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(
+                        StringUtils.join(Arrays.asList(
+                                "return [",
+                                "    \"axisParam=axis1\": \"test1\",",
+                                "    \"axisParam=axis2\": \"common1&&common2\",",
+                                "];"
+                        ), "\n"),
+                        true,
+                        Collections.<ClasspathEntry>emptyList()
+                ),
+                false,
+                true,
+                false,
+                0,
+                null,
+                false,
+                null,
+                null,
+                null
+        ));
+        project.setAssignedLabel(LabelExpression.parseExpression("test2"));
+        
+        long evaluations = CompiledLabelScript.getHitCount() + CompiledLabelScript.getMissCount();
+        
+        MatrixBuild build = project.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS);
+        j.assertBuildStatusSuccess(build);
+        
+        // the script runs only for the parent.
+        assertEquals(evaluations + 1, CompiledLabelScript.getHitCount() + CompiledLabelScript.getMissCount());
+        assertNotNull(build.getAction(MatrixLabelAssignmentAction.class));
+        
+        Map<String, Node> axisValueAndNodeMap = new HashMap<String, Node>();
+        axisValueAndNodeMap.put("axis1", slave1);
+        axisValueAndNodeMap.put("axis2", slave3);
+        axisValueAndNodeMap.put("axis3", slave2);   // not modified
+        
+        for(MatrixRun child: build.getRuns())
+        {
+            String axisValue = child.getProject().getCombination().get("axisParam");
+            assertBuiltOn(axisValueAndNodeMap.get(axisValue), child);
+        }
+    }
+    
+    @Test
+    public void testMatrixPreEvaluation() throws Exception
+    {
+        ScriptApproval.get().approveSignature("staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods find java.util.Collection groovy.lang.Closure");
+        ScriptApproval.get().approveSignature("field hudson.model.AbstractItem name");
+        
+        String script = "['test1', 'test2'].find { it -> currentJob.name.contains(it) }";
+        
+        MatrixProject p = j.createMatrixProject();
+        p.setAxes(new AxisList(new Axis("axisParam", "run-on-test1", "run-on-test2", "run-on-test3")));
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(script, true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                true,
+                0,
+                null,
+                false,
+                null,
+                null,
+                null
+        ));
+        p.setAssignedLabel(LabelExpression.parseExpression("master"));
+        
+        Map<String, Node> axisValueAndNodeMap = new HashMap<String, Node>();
+        axisValueAndNodeMap.put("run-on-test1", slave1);
+        axisValueAndNodeMap.put("run-on-test2", slave2);
+        axisValueAndNodeMap.put("run-on-test3", j.jenkins);
+        
+        MatrixBuild build = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS);
+        j.assertBuildStatusSuccess(build);
+        
+        MatrixLabelAssignmentAction action = build.getAction(MatrixLabelAssignmentAction.class);
+        assertNotNull(action);
+        assertEquals(2, action.getLabelStrings().size());
+        
+        for(MatrixRun child: build.getRuns())
+        {
+            String axisValue = child.getProject().getCombination().get("axisParam");
+            assertBuiltOn(axisValueAndNodeMap.get(axisValue), child);
+            GroovyLabelAssignmentAction labelAction = child.getAction(GroovyLabelAssignmentAction.class);
+            if(labelAction != null)
+            {
+                // time spent in advance is recorded for the configuration.
+                assertNotSame(EvaluationTimings.Compilation.NONE, labelAction.getTimings().getCompilation());
+            }
+        }
+    }
+    
+    @Test
+    public void testMatrixPreEvaluationNotFinished() throws Exception
+    {
+        MatrixLabelAssignmentAction action = new MatrixLabelAssignmentAction(
+                Collections.<String, String>emptyMap(),
+                false
+        );
+        Combination combination = new Combination(new AxisList(new Axis("axisParam", "value1")), "value1");
+        FutureTask<MatrixLabelAssignmentAction.Evaluation> pending = new FutureTask<MatrixLabelAssignmentAction.Evaluation>(
+                new Callable<MatrixLabelAssignmentAction.Evaluation>() {
+                    public MatrixLabelAssignmentAction.Evaluation call() throws Exception
+                    {
+                        return new MatrixLabelAssignmentAction.Evaluation("test1", null);
+                    }
+                }
+        );
+        action.addPendingLabelString(combination, pending);
+        assertTrue(action.isDecided(combination));
+        
+        // the caller evaluates the configuration by itself.
+        try
+        {
+            action.getLabelString(combination, 100);
+            fail();
+        }
+        catch(TimeoutException e)
+        {
+            // expected
+        }
+        assertTrue(pending.isCancelled());
+        assertFalse(action.isDecided(combination));
+    }
+    
     @Test
     public void testGroovyLabelAssignmentPropertyError() throws Exception
     {
@@ -518,6 +677,99 @@ public class GroovyLabelAssignmentPropertyJenkinsTest
         );
     }
     
+    @Test
+    public void testConfigurationAdvancedOptions() throws Exception
+    {
+        FreeStyleProject project = j.createFreeStyleProject();
+        GroovyLabelAssignmentProperty prop = new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(
+                        "return null;",
+                        true,
+                        Collections.<ClasspathEntry>emptyList()
+                ),
+                true,
+                true,
+                true,
+                10,
+                "LAST_GOOD_LABEL",
+                false,
+                null,
+                null,
+                null
+        );
+        project.addProperty(prop);
+        j.configRoundtrip(project);
+        
+        j.assertEqualDataBoundBeans(
+                prop,
+                project.getProperty(GroovyLabelAssignmentProperty.class)
+        );
+    }
+    
+    @Test
+    public void testConfigurationDecisionTable() throws Exception
+    {
+        FreeStyleProject project = j.createFreeStyleProject();
+        GroovyLabelAssignmentProperty prop = new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(
+                        "",
+                        true,
+                        Collections.<ClasspathEntry>emptyList()
+                ),
+                false,
+                false,
+                false,
+                0,
+                null,
+                false,
+                new LabelDecisionTable(
+                        Arrays.asList(
+                                new LabelDecisionRule("PARAM1", "EXACT", "value1", "test1"),
+                                new LabelDecisionRule("PARAM2", "REGEX", "value.+", "test2&&common2")
+                        ),
+                        "test3"
+                ),
+                null,
+                null
+        );
+        project.addProperty(prop);
+        j.configRoundtrip(project);
+        
+        j.assertEqualDataBoundBeans(
+                prop,
+                project.getProperty(GroovyLabelAssignmentProperty.class)
+        );
+    }
+    
+    @Test
+    public void testConfigurationLabelTemplate() throws Exception
+    {
+        FreeStyleProject project = j.createFreeStyleProject();
+        GroovyLabelAssignmentProperty prop = new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(
+                        "",
+                        true,
+                        Collections.<ClasspathEntry>emptyList()
+                ),
+                false,
+                false,
+                false,
+                0,
+                null,
+                false,
+                null,
+                new LabelTemplate("${PARAM1}&&common1"),
+                null
+        );
+        project.addProperty(prop);
+        j.configRoundtrip(project);
+        
+        j.assertEqualDataBoundBeans(
+                prop,
+                project.getProperty(GroovyLabelAssignmentProperty.class)
+        );
+    }
+    
     @Test
     public void testNoConfiguration() throws Exception
     {
@@ -590,6 +842,1374 @@ public class GroovyLabelAssignmentPropertyJenkinsTest
         }
     }
     
+    @Test
+    public void testCompiledScriptIsReused() throws Exception
+    {
+        String paramName = "PARAM1";
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition(paramName, "")
+        ));
+        p.addProperty(new GroovyLabelAssignmentProperty(String.format("return %s;", paramName)));
+        
+        long misses = CompiledLabelScript.getMissCount();
+        long hits = CompiledLabelScript.getHitCount();
+        
+        assertBuiltOn(slave1, scheduleBuildWithParameters(p, new StringParameterValue(paramName, "test1")));
+        assertBuiltOn(slave2, scheduleBuildWithParameters(p, new StringParameterValue(paramName, "test2")));
+        
+        assertEquals(misses + 1, CompiledLabelScript.getMissCount());
+        assertEquals(hits + 1, CompiledLabelScript.getHitCount());
+        
+        // reconfiguring discards the compiled script.
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty(String.format("return %s ?: \"test3\";", paramName)));
+        
+        assertBuiltOn(slave3, scheduleBuildWithParameters(p, new StringParameterValue(paramName, "")));
+        assertEquals(misses + 2, CompiledLabelScript.getMissCount());
+    }
+    
+    @Test
+    public void testLabelCache() throws Exception
+    {
+        LabelCache.clear();
+        
+        long hits = LabelCache.getHitCount();
+        Label label = LabelCache.parse("common1&&common2");
+        assertSame(j.jenkins.getLabel("common1&&common2"), label);
+        assertSame(label, LabelCache.parse("common1&&common2"));
+        assertSame(label, LabelCache.resolve("common1&&common2"));
+        assertEquals(hits + 2, LabelCache.getHitCount());
+        
+        try
+        {
+            LabelCache.parse("common1&&");
+            fail("Invalid label expression should be rejected");
+        }
+        catch(ANTLRException e)
+        {
+            // ok
+        }
+        
+        // dropped when nodes are reconfigured.
+        j.createOnlineSlave("test4");
+        assertEquals(0, LabelCache.size());
+    }
+    
+    @Test
+    public void testDeterministicScriptIsMemoized() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("PARAM1", ""),
+                new StringParameterDefinition("PARAM2", "")
+        ));
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(
+                        "return PARAM1;",
+                        true,
+                        Collections.<ClasspathEntry>emptyList()
+                ),
+                true,
+                false,
+                false,
+                0,
+                null,
+                false,
+                null,
+                null,
+                null
+        ));
+        
+        long misses = LabelScriptMemo.getMissCount();
+        long hits = LabelScriptMemo.getHitCount();
+        
+        assertBuiltOn(slave1, scheduleBuildWithParameters(
+                p,
+                new StringParameterValue("PARAM1", "test1"),
+                new StringParameterValue("PARAM2", "value1")
+        ));
+        assertEquals(misses + 1, LabelScriptMemo.getMissCount());
+        assertEquals(hits, LabelScriptMemo.getHitCount());
+        
+        // PARAM2 is not read by the script.
+        assertBuiltOn(slave1, scheduleBuildWithParameters(
+                p,
+                new StringParameterValue("PARAM1", "test1"),
+                new StringParameterValue("PARAM2", "value2")
+        ));
+        assertEquals(misses + 1, LabelScriptMemo.getMissCount());
+        assertEquals(hits + 1, LabelScriptMemo.getHitCount());
+        
+        assertBuiltOn(slave2, scheduleBuildWithParameters(
+                p,
+                new StringParameterValue("PARAM1", "test2"),
+                new StringParameterValue("PARAM2", "value2")
+        ));
+        assertEquals(misses + 2, LabelScriptMemo.getMissCount());
+        assertEquals(hits + 1, LabelScriptMemo.getHitCount());
+    }
+    
+    @Test
+    public void testTimeout() throws Exception
+    {
+        ScriptApproval.get().approveSignature("staticMethod org.codehaus.groovy.runtime.DefaultGroovyMethods sleep java.lang.Object long");
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(LabelExpression.parseExpression("test2"));
+        
+        long timeouts = LabelEvaluationExecutor.getTimeoutCount();
+        
+        // falls back to the label of the job.
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("sleep(10000); return \"test1\";", true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                1,
+                TimeoutPolicy.STATIC_LABEL.name(),
+                false,
+                null,
+                null,
+                null
+        ));
+        assertBuiltOn(slave2, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(timeouts + 1, LabelEvaluationExecutor.getTimeoutCount());
+        
+        // rejected.
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("sleep(10000); return \"test1\";", true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                1,
+                TimeoutPolicy.FAIL.name(),
+                false,
+                null,
+                null,
+                null
+        ));
+        assertNull(p.scheduleBuild2(0));
+        assertEquals(timeouts + 2, LabelEvaluationExecutor.getTimeoutCount());
+    }
+    
+    @Test
+    public void testAsynchronous() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.setAssignedLabel(LabelExpression.parseExpression("test2"));
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("return \"test1\";", true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                0,
+                null,
+                true,
+                null,
+                null,
+                null
+        ));
+        
+        FreeStyleBuild build = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertBuiltOn(slave1, build);
+        assertEquals("test1", build.getAction(GroovyLabelAssignmentAction.class).getLabelString());
+        
+        // the state is saved only while pending.
+        assertFalse(Run.XSTREAM.toXML(build.getAction(GroovyLabelAssignmentAction.class)).contains("pending"));
+        assertTrue(Run.XSTREAM.toXML(GroovyLabelAssignmentAction.pending()).contains("pending"));
+        
+        // failed builds are cancelled from the queue.
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("return nosuchvariable;", true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                0,
+                null,
+                true,
+                null,
+                null,
+                null
+        ));
+        assertNotNull(p.scheduleBuild2(0));
+        
+        long until = System.currentTimeMillis() + BUILD_TIMEOUT;
+        while(!j.jenkins.getQueue().isEmpty() && System.currentTimeMillis() < until)
+        {
+            Thread.sleep(100);
+        }
+        assertTrue(j.jenkins.getQueue().isEmpty());
+        assertEquals(1, p.getBuilds().size());
+    }
+    
+    @Test
+    public void testAsynchronousWithAuthentication() throws Exception
+    {
+        String script = "return (jenkins.model.Jenkins.getAuthentication().getName() == \"alice\") ? \"test1\" : \"test2\";";
+        ScriptApproval.get().configuring(script, GroovyLanguage.get(), ApprovalContext.create());
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(script, false, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                0,
+                null,
+                true,
+                null,
+                null,
+                null
+        ));
+        
+        // scripts run with the authentication scheduling the build also in the background.
+        Future<FreeStyleBuild> future;
+        SecurityContext orig = ACL.impersonate(new UsernamePasswordAuthenticationToken("alice", "", new GrantedAuthority[0]));
+        try
+        {
+            future = p.scheduleBuild2(0);
+        }
+        finally
+        {
+            SecurityContextHolder.setContext(orig);
+        }
+        assertBuiltOn(slave1, future.get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void testMetrics() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject("metrics");
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("PARAM1", "")
+        ));
+        p.addProperty(new GroovyLabelAssignmentProperty("return PARAM1;"));
+        
+        assertBuiltOn(slave1, scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test1")));
+        assertNull(scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test1&&")));
+        
+        LabelAssignmentMetrics.JobMetrics metrics = LabelAssignmentMetrics.get().getJobMetrics(p);
+        assertEquals(2, metrics.getEvaluations());
+        assertEquals(1, metrics.getInvalidLabels());
+        assertEquals(0, metrics.getFailures());
+        assertEquals(2, metrics.getPhase(LabelAssignmentMetrics.Phase.RUN).getCount());
+        assertEquals(2, metrics.getPhase(LabelAssignmentMetrics.Phase.PARSE).getCount());
+        
+        WebClient wc = j.createWebClient();
+        String json = wc.goTo("groovy-label-assignment-metrics/api/json?depth=2", "application/json").getWebResponse().getContentAsString();
+        assertTrue(json, json.contains("\"name\":\"metrics\""));
+        String text = wc.goTo("groovy-label-assignment-metrics/prometheus", "text/plain").getWebResponse().getContentAsString();
+        assertTrue(text, text.contains("groovy_label_assignment_evaluations_total{job=\"metrics\"} 2"));
+        assertTrue(text, text.contains("groovy_label_assignment_phase_seconds_count{job=\"metrics\",phase=\"run\"} 2"));
+        
+        p.delete();
+        assertFalse(LabelAssignmentMetrics.get().getJobs().contains(metrics));
+    }
+    
+    @Test
+    public void testMetricsHistogramBoundary() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject();
+        LabelAssignmentMetrics.Histogram histogram = LabelAssignmentMetrics.get().getJobMetrics(p).getPhase(LabelAssignmentMetrics.Phase.BINDING);
+        
+        // the first bucket is for values up to 1ms, including 1ms.
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        assertEquals(1, histogram.getBuckets()[0]);
+        
+        // not truncated to 1ms.
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(1) + 1);
+        assertEquals(1, histogram.getBuckets()[0]);
+        assertEquals(1, histogram.getBuckets()[1]);
+        
+        // exceeding all bounds.
+        long[] bounds = LabelAssignmentMetrics.getBucketBoundsMillis();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(bounds[bounds.length - 1]) + 1);
+        assertEquals(1, histogram.getBuckets()[bounds.length]);
+        assertEquals(3, histogram.getCount());
+    }
+    
+    @Test
+    public void testBindingIsLazy() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject();
+        GroovyLabelAssignmentProperty prop = new GroovyLabelAssignmentProperty("return \"test1\";");
+        p.addProperty(prop);
+        
+        List<Action> actions = new ArrayList<Action>();
+        actions.add(new ParametersAction(
+                new StringParameterValue("PARAM1", "value1"),
+                new StringParameterValue("currentJob", "overridden")
+        ));
+        LazyBinding binding = (LazyBinding)prop.createBinding(p, actions);
+        assertFalse(binding.isLoaded());
+        
+        // set variables are read without loading.
+        assertSame(p, binding.getVariable("currentJob"));
+        assertFalse(binding.isLoaded());
+        
+        // actions added later are not reflected.
+        actions.add(new ParametersAction(new StringParameterValue("PARAM2", "value2")));
+        
+        assertEquals("value1", binding.getVariable("PARAM1"));
+        assertTrue(binding.isLoaded());
+        assertSame(p, binding.getVariable("currentJob"));
+        assertFalse(binding.getVariables().containsKey("PARAM2"));
+        
+        // scripts not reading variables don't load them.
+        assertBuiltOn(slave1, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        
+        // deterministic scripts reading only set variables don't load them,
+        // neither when running nor when looking up memoized results.
+        FreeStyleProject deterministic = j.createFreeStyleProject();
+        GroovyLabelAssignmentProperty deterministicProp = new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("return (currentJob != null) ? \"test1\" : \"test2\";", true, Collections.<ClasspathEntry>emptyList()),
+                true, false, false, 0, null, false, null, null, null
+        );
+        deterministic.addProperty(deterministicProp);
+        
+        LazyBinding runBinding = (LazyBinding)deterministicProp.createBinding(deterministic, actions);
+        DependencyTrackingBinding trackingBinding = new DependencyTrackingBinding(runBinding);
+        assertSame(deterministic, trackingBinding.getVariable("currentJob"));
+        assertFalse(runBinding.isLoaded());
+        
+        LabelScriptMemo memo = new LabelScriptMemo();
+        memo.record(trackingBinding.getReadVariables(), "test1");
+        LazyBinding lookupBinding = (LazyBinding)deterministicProp.createBinding(deterministic, actions);
+        assertEquals("test1", memo.lookup(lookupBinding).getLabelString());
+        assertFalse(lookupBinding.isLoaded());
+        
+        long hits = LabelScriptMemo.getHitCount();
+        assertBuiltOn(slave1, deterministic.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertBuiltOn(slave1, deterministic.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(LabelScriptMemo.getHitCount() > hits);
+        
+        // decision tables read only variables referred by rules.
+        LabelDecisionTable table = new LabelDecisionTable(
+                Arrays.asList(new LabelDecisionRule("currentJob", "REGEX", ".+", "test1")),
+                null
+        );
+        LazyBinding tableBinding = (LazyBinding)prop.createBinding(p, actions);
+        assertEquals("test1", table.decide(tableBinding));
+        assertFalse(tableBinding.isLoaded());
+    }
+    
+    @Test
+    public void testConstantScript() throws Exception
+    {
+        assertNotNull(new GroovyLabelAssignmentProperty("\"test1\"").getConstantScript());
+        assertNotNull(new GroovyLabelAssignmentProperty("return \"test1&&\" + \"${'common1'}\";").getConstantScript());
+        assertNotNull(new GroovyLabelAssignmentProperty("").getConstantScript());
+        assertNull(new GroovyLabelAssignmentProperty("return PARAM1;").getConstantScript());
+        assertNull(new GroovyLabelAssignmentProperty("return \"${PARAM1}\";").getConstantScript());
+        assertNull(new GroovyLabelAssignmentProperty("return \"test1\".toUpperCase();").getConstantScript());
+        assertNull(new GroovyLabelAssignmentProperty("def x = \"test1\"; return x;").getConstantScript());
+        assertNull(new GroovyLabelAssignmentProperty("\"test1").getConstantScript());
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new GroovyLabelAssignmentProperty("return \"test1&&\" + \"${'common1'}\";"));
+        
+        long misses = CompiledLabelScript.getMissCount();
+        assertBuiltOn(slave1, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        // never compiled.
+        assertEquals(misses, CompiledLabelScript.getMissCount());
+        
+        // analyzed also when loaded.
+        p = (FreeStyleProject)j.jenkins.getItemByFullName(p.getFullName()).getConfigFile().read();
+        assertNotNull(p.getProperty(GroovyLabelAssignmentProperty.class).getConstantScript());
+    }
+    
+    @Test
+    public void testDecisionTable() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("PARAM1", ""),
+                new StringParameterDefinition("PARAM2", "")
+        ));
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("", true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                0,
+                null,
+                false,
+                new LabelDecisionTable(
+                        Arrays.asList(
+                                new LabelDecisionRule("PARAM1", "EXACT", "value1", "test1"),
+                                new LabelDecisionRule("PARAM1", "GLOB", "value2*", "test2"),
+                                // never used as the rule above precedes.
+                                new LabelDecisionRule("PARAM1", "EXACT", "value2-1", "test1"),
+                                new LabelDecisionRule("PARAM2", "REGEX", "[a-z]+", "test3"),
+                                new LabelDecisionRule("PARAM1", "EXACT", "value3", "test1"),
+                                new LabelDecisionRule("PARAM1", "EXACT", "invalid", "test1&&")
+                        ),
+                        "test2"
+                ),
+                null,
+                null
+        ));
+        
+        assertBuiltOn(slave1, scheduleBuildWithParameters(p,
+                new StringParameterValue("PARAM1", "value1"),
+                new StringParameterValue("PARAM2", "abc")
+        ));
+        assertBuiltOn(slave2, scheduleBuildWithParameters(p,
+                new StringParameterValue("PARAM1", "value2-1"),
+                new StringParameterValue("PARAM2", "abc")
+        ));
+        assertBuiltOn(slave3, scheduleBuildWithParameters(p,
+                new StringParameterValue("PARAM1", "value3"),
+                new StringParameterValue("PARAM2", "abc")
+        ));
+        assertBuiltOn(slave1, scheduleBuildWithParameters(p,
+                new StringParameterValue("PARAM1", "value3"),
+                new StringParameterValue("PARAM2", "ABC")
+        ));
+        // no rule matches.
+        assertBuiltOn(slave2, scheduleBuildWithParameters(p,
+                new StringParameterValue("PARAM1", "value4"),
+                new StringParameterValue("PARAM2", "ABC")
+        ));
+        assertNull(scheduleBuildWithParameters(p,
+                new StringParameterValue("PARAM1", "invalid"),
+                new StringParameterValue("PARAM2", "ABC")
+        ));
+    }
+    
+    @Test
+    public void testLabelTemplate() throws Exception
+    {
+        assertEquals(FormValidation.Kind.OK, LabelTemplate.check("${PARAM1}&&common1").kind);
+        assertEquals(FormValidation.Kind.OK, LabelTemplate.check("test1").kind);
+        assertEquals(FormValidation.Kind.ERROR, LabelTemplate.check("${PARAM1}&&").kind);
+        assertEquals(FormValidation.Kind.ERROR, LabelTemplate.check("${PARAM1&&common1").kind);
+        assertEquals(FormValidation.Kind.ERROR, LabelTemplate.check("${}").kind);
+        assertEquals(FormValidation.Kind.ERROR, LabelTemplate.check("").kind);
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("PARAM1", ""),
+                new StringParameterDefinition("PARAM2", "")
+        ));
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("", true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                0,
+                null,
+                false,
+                null,
+                new LabelTemplate("${PARAM1}&&common1"),
+                null
+        ));
+        
+        assertBuiltOn(slave1, scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test1")));
+        assertBuiltOn(slave3, scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test3")));
+        // values referring other variables are resolved.
+        assertBuiltOn(slave3, scheduleBuildWithParameters(p,
+                new StringParameterValue("PARAM1", "${PARAM2}"),
+                new StringParameterValue("PARAM2", "test3")
+        ));
+        // later actions override earlier ones, as in variables bound to scripts.
+        assertBuiltOn(slave3, p.scheduleBuild2(
+                0,
+                new Cause.LegacyCodeCause(),
+                new ParametersAction(new StringParameterValue("PARAM1", "test1")),
+                new ParametersAction(new StringParameterValue("PARAM1", "test3"))
+        ).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        // undefined variables.
+        assertNull(scheduleBuildWithParameters(p));
+    }
+    
+    @Test
+    public void testSharedScript() throws Exception
+    {
+        GroovyLabelAssignmentConfiguration.get().setSharedScripts(Arrays.asList(
+                new SharedLabelScript("route", "return PARAM1;", true)
+        ));
+        
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for(int i = 0; i < 2; ++i)
+        {
+            FreeStyleProject p = j.createFreeStyleProject();
+            p.addProperty(new ParametersDefinitionProperty(
+                    new StringParameterDefinition("PARAM1", "")
+            ));
+            p.addProperty(new GroovyLabelAssignmentProperty(
+                    new SecureGroovyScript("", true, Collections.<ClasspathEntry>emptyList()),
+                    false,
+                    false,
+                    false,
+                    0,
+                    null,
+                    false,
+                    null,
+                    null,
+                    "route"
+            ));
+            projects.add(p);
+        }
+        
+        long misses = CompiledLabelScript.getMissCount();
+        for(FreeStyleProject p: projects)
+        {
+            assertBuiltOn(slave1, scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test1")));
+        }
+        // compiled only once for all jobs.
+        assertEquals(misses + 1, CompiledLabelScript.getMissCount());
+        
+        // replaced for all jobs.
+        GroovyLabelAssignmentConfiguration.get().setSharedScripts(Arrays.asList(
+                new SharedLabelScript("route", "return \"${PARAM1}&&common2\";", true)
+        ));
+        for(FreeStyleProject p: projects)
+        {
+            assertBuiltOn(slave3, scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "common1")));
+        }
+        
+        // removed.
+        GroovyLabelAssignmentConfiguration.get().setSharedScripts(Collections.<SharedLabelScript>emptyList());
+        assertNull(scheduleBuildWithParameters(projects.get(0), new StringParameterValue("PARAM1", "test1")));
+        
+        try
+        {
+            GroovyLabelAssignmentConfiguration.get().setSharedScripts(Arrays.asList(
+                    new SharedLabelScript("route", "return \"test1\";", true),
+                    new SharedLabelScript("route", "return \"test2\";", true)
+            ));
+            fail("Duplicated names should be rejected");
+        }
+        catch(IllegalArgumentException e)
+        {
+            // ok
+        }
+    }
+    
+    @Test
+    public void testSharedScriptIsExclusive() throws Exception
+    {
+        GroovyLabelAssignmentConfiguration.get().setSharedScripts(Arrays.asList(
+                new SharedLabelScript("route", "return PARAM1;", true)
+        ));
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("", true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                0,
+                null,
+                false,
+                null,
+                new LabelTemplate("test1"),
+                "route"
+        ));
+        try
+        {
+            j.configRoundtrip(p);
+            fail("A shared script with a label template should be rejected");
+        }
+        catch(FailingHttpStatusCodeException e)
+        {
+            // ok
+        }
+        
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("", true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                0,
+                null,
+                false,
+                new LabelDecisionTable(Collections.<LabelDecisionRule>emptyList(), "test1"),
+                null,
+                "route"
+        ));
+        try
+        {
+            j.configRoundtrip(p);
+            fail("A shared script with a decision table should be rejected");
+        }
+        catch(FailingHttpStatusCodeException e)
+        {
+            // ok
+        }
+    }
+    
+    @Test
+    public void testConfigurationIsNotHalfApplied() throws Exception
+    {
+        GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+        config.setTimeoutSeconds(10);
+        
+        JSONObject json = new JSONObject();
+        json.put("timeoutSeconds", 30);
+        json.put("timeoutPolicy", TimeoutPolicy.FAIL.name());
+        json.put("circuitBreakerPolicy", "NO_SUCH_POLICY");
+        try
+        {
+            config.configure(null, json);
+            fail("An invalid policy should be rejected");
+        }
+        catch(FormException e)
+        {
+            // ok
+        }
+        assertEquals(10, config.getTimeoutSeconds());
+    }
+    
+    @Test
+    public void testApprovalIsCached() throws Exception
+    {
+        String script = "return PARAM1;";
+        ScriptApproval.get().configuring(script, GroovyLanguage.get(), ApprovalContext.create());
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("PARAM1", "")
+        ));
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(script, false, Collections.<ClasspathEntry>emptyList())
+        ));
+        
+        assertBuiltOn(slave1, scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test1")));
+        long hits = ApprovalCache.getHitCount();
+        assertBuiltOn(slave2, scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test2")));
+        assertTrue(ApprovalCache.getHitCount() > hits);
+        
+        // revoking approvals drops the cache.
+        ScriptApproval.get().clearApprovedScripts();
+        assertNull(scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test1")));
+    }
+    
+    @Test
+    public void testRevokedApprovalIsRejected() throws Exception
+    {
+        String script = "return \"test1\";";
+        ScriptApproval.get().configuring(script, GroovyLanguage.get(), ApprovalContext.create());
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(script, false, Collections.<ClasspathEntry>emptyList())
+        ));
+        
+        // the approval is cached.
+        assertBuiltOn(slave1, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        long hits = ApprovalCache.getHitCount();
+        assertBuiltOn(slave1, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(ApprovalCache.getHitCount() > hits);
+        
+        // revoked approvals are not answered from the cache.
+        long generation = ApprovalCache.getGeneration();
+        ScriptApproval.get().clearApprovedScripts();
+        assertTrue(ApprovalCache.getGeneration() > generation);
+        assertNull(p.scheduleBuild2(0));
+        
+        // approved again.
+        ScriptApproval.get().configuring(script, GroovyLanguage.get(), ApprovalContext.create());
+        assertBuiltOn(slave1, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    
+    private File createMarkerJar(String contents) throws IOException
+    {
+        File jar = File.createTempFile("classpath", ".jar");
+        jar.deleteOnExit();
+        writeMarkerJar(jar, contents);
+        return jar;
+    }
+    
+    private void writeMarkerJar(File jar, String contents) throws IOException
+    {
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try
+        {
+            out.putNextEntry(new JarEntry("marker.txt"));
+            out.write(contents.getBytes("UTF-8"));
+            out.closeEntry();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    private void setClasspathScript(FreeStyleProject p, String script, File jar) throws Exception
+    {
+        ClasspathEntry entry = new ClasspathEntry(jar.getAbsolutePath());
+        ScriptApproval.get().configuring(script, GroovyLanguage.get(), ApprovalContext.create());
+        ScriptApproval.get().configuring(entry, ApprovalContext.create());
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript(script, false, Arrays.asList(entry))
+        ));
+    }
+    
+    @Test
+    public void testClasspathLoaderIsShared() throws Exception
+    {
+        // records the class loader for the classpath, and returns the contents of the marker in it.
+        String script = StringUtils.join(Arrays.asList(
+                "def cl = this.class.classLoader;",
+                "while(cl.getClass() != java.net.URLClassLoader) { cl = cl.parent; }",
+                "System.setProperty(\"groovy_label_assignment.loader.\" + currentJob.name, String.valueOf(System.identityHashCode(cl)));",
+                "return cl.getResource(\"marker.txt\").text.trim();"
+        ), "\n");
+        File jar1 = createMarkerJar("test1");
+        File jar2 = createMarkerJar("test2");
+        // approve in advance, as changing approvals drops shared class loaders.
+        ScriptApproval.get().configuring(new ClasspathEntry(jar2.getAbsolutePath()), ApprovalContext.create());
+        
+        FreeStyleProject p1 = j.createFreeStyleProject("loader1");
+        FreeStyleProject p2 = j.createFreeStyleProject("loader2");
+        try
+        {
+            setClasspathScript(p1, script, jar1);
+            setClasspathScript(p2, script, jar1);
+            
+            // jobs with the same classpath share the class loader.
+            assertBuiltOn(slave1, p1.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertBuiltOn(slave1, p2.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+            String loader1 = System.getProperty("groovy_label_assignment.loader.loader1");
+            assertNotNull(loader1);
+            assertEquals(loader1, System.getProperty("groovy_label_assignment.loader.loader2"));
+            
+            // changing the classpath of a job doesn't affect the other.
+            setClasspathScript(p2, script, jar2);
+            assertBuiltOn(slave2, p2.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertBuiltOn(slave1, p1.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertEquals(loader1, System.getProperty("groovy_label_assignment.loader.loader1"));
+            assertFalse(loader1.equals(System.getProperty("groovy_label_assignment.loader.loader2")));
+        }
+        finally
+        {
+            System.clearProperty("groovy_label_assignment.loader.loader1");
+            System.clearProperty("groovy_label_assignment.loader.loader2");
+        }
+    }
+    
+    @Test
+    public void testClasspathLoaderFollowsReplacedJar() throws Exception
+    {
+        // don't use cached jar files to read the replaced one.
+        String script = StringUtils.join(Arrays.asList(
+                "def cl = this.class.classLoader;",
+                "while(cl.getClass() != java.net.URLClassLoader) { cl = cl.parent; }",
+                "def conn = cl.getResource(\"marker.txt\").openConnection();",
+                "conn.useCaches = false;",
+                "return conn.inputStream.text.trim();"
+        ), "\n");
+        File jar = createMarkerJar("test1");
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        setClasspathScript(p, script, jar);
+        assertBuiltOn(slave1, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        
+        // replace the jar with one of the same size.
+        long lastModified = jar.lastModified();
+        writeMarkerJar(jar, "test2");
+        jar.setLastModified(lastModified + 10000);
+        
+        // not approved yet.
+        assertNull(p.scheduleBuild2(0));
+        
+        // approving the new jar rebuilds the class loader.
+        setClasspathScript(p, script, jar);
+        assertBuiltOn(slave2, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void testClasspathDirectoryApprovalIsNotCached() throws Exception
+    {
+        File jar = File.createTempFile("approval", ".jar");
+        jar.deleteOnExit();
+        FileUtils.writeStringToFile(jar, "contents");
+        ClasspathEntry jarEntry = new ClasspathEntry(jar.getAbsolutePath());
+        ScriptApproval.get().configuring(jarEntry, ApprovalContext.create());
+        ApprovalCache.using(jarEntry);
+        long hits = ApprovalCache.getHitCount();
+        ApprovalCache.using(jarEntry);
+        assertEquals(hits + 1, ApprovalCache.getHitCount());
+        
+        // the timestamp of a directory doesn't change when files in it are modified.
+        File dir = File.createTempFile("approval", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        try
+        {
+            ClasspathEntry dirEntry = new ClasspathEntry(dir.getAbsolutePath());
+            ScriptApproval.get().configuring(dirEntry, ApprovalContext.create());
+            ApprovalCache.using(dirEntry);
+            hits = ApprovalCache.getHitCount();
+            ApprovalCache.using(dirEntry);
+            assertEquals(hits, ApprovalCache.getHitCount());
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+    
+    @Test
+    public void testDuplicateSubmissionsAreNotEvaluated() throws Exception
+    {
+        GroovyLabelAssignmentConfiguration.get().setRecentSubmissionWindowMillis(5000);
+        try
+        {
+            FreeStyleProject p = j.createFreeStyleProject();
+            p.addProperty(new ParametersDefinitionProperty(
+                    new StringParameterDefinition("PARAM1", "")
+            ));
+            p.addProperty(new GroovyLabelAssignmentProperty(
+                    new SecureGroovyScript("return PARAM1;", true, Collections.<ClasspathEntry>emptyList()),
+                    true,
+                    false,
+                    false,
+                    0,
+                    null,
+                    false,
+                    null,
+                    null,
+                    null
+            ));
+            GroovyLabelAssignmentProperty prop = p.getProperty(GroovyLabelAssignmentProperty.class);
+            LabelAssignmentMetrics.JobMetrics metrics = LabelAssignmentMetrics.get().getJobMetrics(p);
+            
+            List<Action> actions = new ArrayList<Action>();
+            actions.add(new ParametersAction(new StringParameterValue("PARAM1", "test1")));
+            actions.add(new CauseAction(new Cause.RemoteCause("localhost", null)));
+            assertTrue(prop.assignLabel(p, actions));
+            assertEquals(1, metrics.getEvaluations());
+            
+            // the same submission.
+            actions = new ArrayList<Action>();
+            actions.add(new ParametersAction(new StringParameterValue("PARAM1", "test1")));
+            actions.add(new CauseAction(new Cause.RemoteCause("localhost", null)));
+            assertTrue(prop.assignLabel(p, actions));
+            assertEquals(1, metrics.getEvaluations());
+            assertEquals("test1", ((GroovyLabelAssignmentAction)actions.get(0)).getLabelString());
+            
+            // another parameter.
+            actions = new ArrayList<Action>();
+            actions.add(new ParametersAction(new StringParameterValue("PARAM1", "test2")));
+            actions.add(new CauseAction(new Cause.RemoteCause("localhost", null)));
+            assertTrue(prop.assignLabel(p, actions));
+            assertEquals(2, metrics.getEvaluations());
+            
+            // another cause.
+            actions = new ArrayList<Action>();
+            actions.add(new ParametersAction(new StringParameterValue("PARAM1", "test1")));
+            actions.add(new CauseAction(new Cause.UserCause()));
+            assertTrue(prop.assignLabel(p, actions));
+            assertEquals(3, metrics.getEvaluations());
+            
+            // scripts not deterministic are always evaluated.
+            FreeStyleProject p2 = j.createFreeStyleProject();
+            p2.addProperty(new GroovyLabelAssignmentProperty("return (currentJob != null) ? \"test1\" : \"test2\";"));
+            GroovyLabelAssignmentProperty prop2 = p2.getProperty(GroovyLabelAssignmentProperty.class);
+            LabelAssignmentMetrics.JobMetrics metrics2 = LabelAssignmentMetrics.get().getJobMetrics(p2);
+            for(int i = 0; i < 2; ++i)
+            {
+                actions = new ArrayList<Action>();
+                actions.add(new CauseAction(new Cause.UserCause()));
+                assertTrue(prop2.assignLabel(p2, actions));
+            }
+            assertEquals(2, metrics2.getEvaluations());
+            
+            // labels depending on the load are not reused.
+            FreeStyleProject p3 = j.createFreeStyleProject();
+            p3.addProperty(new GroovyLabelAssignmentProperty(
+                    new SecureGroovyScript("return (capacity != null) ? \"test1\" : \"test2\";", true, Collections.<ClasspathEntry>emptyList()),
+                    true,
+                    false,
+                    false,
+                    0,
+                    null,
+                    false,
+                    null,
+                    null,
+                    null
+            ));
+            GroovyLabelAssignmentProperty prop3 = p3.getProperty(GroovyLabelAssignmentProperty.class);
+            LabelAssignmentMetrics.JobMetrics metrics3 = LabelAssignmentMetrics.get().getJobMetrics(p3);
+            for(int i = 0; i < 2; ++i)
+            {
+                actions = new ArrayList<Action>();
+                actions.add(new CauseAction(new Cause.UserCause()));
+                assertTrue(prop3.assignLabel(p3, actions));
+            }
+            assertEquals(2, metrics3.getEvaluations());
+        }
+        finally
+        {
+            GroovyLabelAssignmentConfiguration.get().setRecentSubmissionWindowMillis(0);
+        }
+    }
+    
+    @Test
+    public void testCapacitySnapshot() throws Exception
+    {
+        // updated when slaves get online.
+        CapacitySnapshot snapshot = CapacitySnapshot.get();
+        assertEquals(2, snapshot.getLabel("common1").getOnlineNodes());
+        assertEquals(1, snapshot.getLabel("test2").getIdleExecutors());
+        assertEquals(0, snapshot.getLabel("nosuchlabel").getOnlineNodes());
+        
+        CapacitySnapshot.refresh();
+        snapshot = CapacitySnapshot.get();
+        assertEquals(2, snapshot.getLabel("common2").getOnlineNodes());
+        assertEquals(0, snapshot.getLabel("common2").getBusyExecutors());
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                "return (capacity.getLabel(\"test2\").idleExecutors > 0) ? \"test2\" : \"test1\";"
+        ));
+        assertBuiltOn(slave2, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        
+        // executors get idle after builds.
+        assertEquals(0, CapacitySnapshot.get().getLabel("test2").getBusyExecutors());
+    }
+    
+    @Test
+    public void testCapacityParameterIsNotOverridden() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("capacity", "")
+        ));
+        p.addProperty(new GroovyLabelAssignmentProperty("return capacity;"));
+        
+        // the parameter is passed as it was before the snapshot is introduced.
+        assertBuiltOn(slave1, scheduleBuildWithParameters(p, new StringParameterValue("capacity", "test1")));
+        
+        // the snapshot is passed without the parameter.
+        GroovyLabelAssignmentProperty prop = p.getProperty(GroovyLabelAssignmentProperty.class);
+        assertSame(CapacitySnapshot.get(), prop.createBinding(p, new ArrayList<Action>()).getVariable("capacity"));
+        List<Action> actions = new ArrayList<Action>();
+        actions.add(new ParametersAction(new StringParameterValue("capacity", "test2")));
+        assertEquals("test2", prop.createBinding(p, actions).getVariable("capacity"));
+    }
+    
+    @Test
+    public void testLabelCandidates() throws Exception
+    {
+        CapacitySnapshot.refresh();
+        FreeStyleProject p = j.createFreeStyleProject();
+        
+        // the first one is chosen for the same capacity.
+        p.addProperty(new GroovyLabelAssignmentProperty("return [\"test1\", \"test2\"];"));
+        FreeStyleBuild b = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertBuiltOn(slave1, b);
+        List<LabelCandidate> candidates = b.getAction(GroovyLabelAssignmentAction.class).getCandidates();
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.get(0).isChosen());
+        assertEquals(1, candidates.get(0).getIdleExecutors());
+        assertFalse(candidates.get(1).isChosen());
+        
+        // weighted.
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty("return [\"test1\": 1, \"test2\": 3];"));
+        assertBuiltOn(slave2, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        
+        // labels without nodes are not chosen.
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty("return [\"nosuchlabel\", \"test3&&common1\"];"));
+        assertBuiltOn(slave3, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        
+        // invalid candidates.
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty("return [\"test1&&\", \"test2\"];"));
+        assertNull(scheduleBuildWithParameters(p));
+        
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty("return [\"test1\": 0, \"test2\": 1];"));
+        assertNull(scheduleBuildWithParameters(p));
+    }
+    
+    private void waitForPrecompilation(LabelScriptPrecompiler precompiler) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + BUILD_TIMEOUT;
+        while(precompiler.getPendingCount() > 0)
+        {
+            assertTrue("Precompilation doesn't finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+    }
+    
+    private LabelScriptPrecompiler.CompileError findCompileError(LabelScriptPrecompiler precompiler, String name)
+    {
+        for(LabelScriptPrecompiler.CompileError error: precompiler.getErrors())
+        {
+            if(name.equals(error.getName()))
+            {
+                return error;
+            }
+        }
+        return null;
+    }
+    
+    @Test
+    public void testPrecompilation() throws Exception
+    {
+        LabelScriptPrecompiler precompiler = ManagementLink.all().get(LabelScriptPrecompiler.class);
+        
+        // compiled when saved.
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("PARAM1", "")
+        ));
+        p.addProperty(new GroovyLabelAssignmentProperty("return PARAM1;"));
+        waitForPrecompilation(precompiler);
+        
+        long misses = CompiledLabelScript.getMissCount();
+        assertBuiltOn(slave1, scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test1")));
+        assertEquals(misses, CompiledLabelScript.getMissCount());
+        
+        // errors are reported.
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty("return PARAM1 +;"));
+        waitForPrecompilation(precompiler);
+        assertNotNull(findCompileError(precompiler, p.getFullName()));
+        
+        // and cleared when fixed.
+        p.removeProperty(GroovyLabelAssignmentProperty.class);
+        p.addProperty(new GroovyLabelAssignmentProperty("return PARAM1;"));
+        waitForPrecompilation(precompiler);
+        assertNull(findCompileError(precompiler, p.getFullName()));
+        
+        WebClient wc = j.createWebClient();
+        wc.goTo(precompiler.getUrlName());
+    }
+    
+    @Test
+    public void testLabelAssignmentActionFootprint() throws Exception
+    {
+        // label strings are shared.
+        GroovyLabelAssignmentAction action = new GroovyLabelAssignmentAction(new String("test1&&common1"));
+        assertSame("test1&&common1", action.getLabelString());
+        
+        Label label = action.getAssignedLabel();
+        assertSame(j.jenkins.getLabel("test1&&common1"), label);
+        assertSame(label, action.getAssignedLabel());
+        
+        // resolved again when nodes are reconfigured.
+        long generation = LabelCache.getGeneration();
+        j.createOnlineSlave("test4");
+        assertTrue(LabelCache.getGeneration() > generation);
+        assertSame(j.jenkins.getLabel("test1&&common1"), action.getAssignedLabel());
+    }
+    
+    @Test
+    public void testCircuitBreaker() throws Exception
+    {
+        GroovyLabelAssignmentConfiguration config = GroovyLabelAssignmentConfiguration.get();
+        config.setCircuitBreakerThreshold(2);
+        config.setCircuitBreakerCoolDownSeconds(3600);
+        config.setCircuitBreakerPolicy(TimeoutPolicy.STATIC_LABEL);
+        try
+        {
+            FreeStyleProject p = j.createFreeStyleProject();
+            p.setAssignedLabel(LabelExpression.parseExpression("test2"));
+            p.addProperty(new GroovyLabelAssignmentProperty(
+                    new SecureGroovyScript("return nosuchvariable;", true, Collections.<ClasspathEntry>emptyList()),
+                    false,
+                    false,
+                    false,
+                    0,
+                    null,
+                    false,
+                    null,
+                    null,
+                    null
+            ));
+            LabelAssignmentMetrics.JobMetrics metrics = LabelAssignmentMetrics.get().getJobMetrics(p);
+            GroovyLabelAssignmentProperty prop = p.getProperty(GroovyLabelAssignmentProperty.class);
+            
+            // fails until the breaker opens.
+            assertNull(p.scheduleBuild2(0));
+            assertEquals(CircuitBreaker.State.CLOSED, prop.getCircuitBreaker().getState());
+            assertNull(p.scheduleBuild2(0));
+            assertEquals(CircuitBreaker.State.OPEN, prop.getCircuitBreaker().getState());
+            assertEquals(CircuitBreaker.State.OPEN, metrics.getCircuitState());
+            
+            // falls back to the label of the job without evaluating the script.
+            long evaluations = metrics.getEvaluations();
+            assertBuiltOn(slave2, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertEquals(evaluations, metrics.getEvaluations());
+            assertEquals(1, metrics.getShortCircuits());
+            
+            // reset by reconfiguration.
+            p.removeProperty(GroovyLabelAssignmentProperty.class);
+            p.addProperty(new GroovyLabelAssignmentProperty(
+                    new SecureGroovyScript("return (capacity != null) ? \"test1\" : \"test2\";", true, Collections.<ClasspathEntry>emptyList()),
+                    false,
+                    false,
+                    false,
+                    0,
+                    null,
+                    false,
+                    null,
+                    null,
+                    null
+            ));
+            assertBuiltOn(slave1, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+            assertEquals(CircuitBreaker.State.CLOSED, metrics.getCircuitState());
+        }
+        finally
+        {
+            config.setCircuitBreakerThreshold(0);
+            config.setCircuitBreakerPolicy(TimeoutPolicy.FAIL);
+        }
+    }
+    
+    @Test
+    public void testEvaluationTimings() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("PARAM1", "")
+        ));
+        p.addProperty(new GroovyLabelAssignmentProperty("return PARAM1;"));
+        
+        FreeStyleBuild build = scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test1"));
+        assertBuiltOn(slave1, build);
+        EvaluationTimings timings = build.getAction(GroovyLabelAssignmentAction.class).getTimings();
+        assertNotNull(timings);
+        // may be compiled in background when the job is saved.
+        assertNotSame(EvaluationTimings.Compilation.NONE, timings.getCompilation());
+        assertTrue(Arrays.asList(timings.getVariables()).contains("PARAM1"));
+        
+        build = scheduleBuildWithParameters(p, new StringParameterValue("PARAM1", "test2"));
+        assertBuiltOn(slave2, build);
+        timings = build.getAction(GroovyLabelAssignmentAction.class).getTimings();
+        assertEquals(EvaluationTimings.Compilation.CACHED, timings.getCompilation());
+        
+        // kept for the trend without loading builds.
+        LabelEvaluationTrendAction trend = p.getAction(LabelEvaluationTrendAction.class);
+        assertNotNull(trend);
+        assertEquals(2, trend.getEntries().size());
+        assertEquals(build.getNumber(), trend.getEntries().get(0).getNumber());
+        assertTrue(trend.getCompiledCount() <= 1);
+        j.createWebClient().goTo(p.getUrl() + trend.getUrlName());
+        j.createWebClient().goTo(build.getUrl());
+        
+        // written in background.
+        LabelEvaluationTrendAction.saveAll();
+        assertTrue(new File(p.getRootDir(), "groovy-label-assignment-trend.xml").exists());
+    }
+    
+    @Test
+    public void testEvaluationTrendFollowsJob() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject("trend1");
+        p.addProperty(new GroovyLabelAssignmentProperty("return (currentJob != null) ? \"test1\" : \"test2\";"));
+        assertBuiltOn(slave1, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, p.getAction(LabelEvaluationTrendAction.class).getEntries().size());
+        
+        // timings not written yet are moved.
+        p.renameTo("trend2");
+        assertEquals(1, p.getAction(LabelEvaluationTrendAction.class).getEntries().size());
+        LabelEvaluationTrendAction.saveAll();
+        assertTrue(new File(p.getRootDir(), "groovy-label-assignment-trend.xml").exists());
+        
+        // dropped with the job.
+        p.delete();
+        FreeStyleProject p2 = j.createFreeStyleProject("trend2");
+        assertEquals(0, new LabelEvaluationTrendAction(p2).getEntries().size());
+    }
+    
+    @Test
+    public void testEvaluationTrendForMatrixProject() throws Exception
+    {
+        MatrixProject p = j.createMatrixProject();
+        AxisList axes = new AxisList();
+        axes.add(new TextAxis("axisParam", "test1", "test2"));
+        p.setAxes(axes);
+        p.addProperty(new GroovyLabelAssignmentProperty("return axisParam;"));
+        
+        MatrixBuild build = p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS);
+        j.assertBuildStatusSuccess(build);
+        LabelEvaluationTrendAction.saveAll();
+        
+        // configurations are not recorded.
+        assertEquals(2, build.getRuns().size());
+        for(MatrixRun run: build.getRuns())
+        {
+            assertFalse(new File(run.getParent().getRootDir(), "groovy-label-assignment-trend.xml").exists());
+        }
+    }
+    
+    /**
+     * Takes time to create environment variables.
+     */
+    public static class SlowParameterValue extends StringParameterValue
+    {
+        private static final long serialVersionUID = 1L;
+        
+        public SlowParameterValue(String name, String value)
+        {
+            super(name, value);
+        }
+        
+        @Override
+        public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env)
+        {
+            try
+            {
+                Thread.sleep(500);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            super.buildEnvVars(build, env);
+        }
+    }
+    
+    @Test
+    public void testEvaluationTimingsExcludeNestedBinding() throws Exception
+    {
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new ParametersDefinitionProperty(
+                new StringParameterDefinition("PARAM1", "")
+        ));
+        // variables are created while the script runs.
+        p.addProperty(new GroovyLabelAssignmentProperty("return PARAM1;"));
+        
+        long start = System.nanoTime();
+        Future<FreeStyleBuild> future = p.scheduleBuild2(
+                0,
+                new Cause.LegacyCodeCause(),
+                new ParametersAction(new SlowParameterValue("PARAM1", "test1"))
+        );
+        long wallMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        FreeStyleBuild build = future.get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertBuiltOn(slave1, build);
+        
+        EvaluationTimings timings = build.getAction(GroovyLabelAssignmentAction.class).getTimings();
+        assertTrue(timings.getBindingMicros() >= TimeUnit.MILLISECONDS.toMicros(500));
+        assertTrue(timings.getRunMicros() < timings.getBindingMicros());
+        assertTrue(
+                String.format("total %d > wall %d", timings.getTotalMicros(), wallMicros),
+                timings.getTotalMicros() <= wallMicros
+        );
+    }
+    
+    @Test
+    public void testLabelEvaluationListener() throws Exception
+    {
+        final List<LabelEvaluationListener.Event> phases = Collections.synchronizedList(new ArrayList<LabelEvaluationListener.Event>());
+        final List<LabelEvaluationListener.Event> decisions = Collections.synchronizedList(new ArrayList<LabelEvaluationListener.Event>());
+        LabelEvaluationListener listener = new LabelEvaluationListener() {
+            @Override
+            public void onPhase(Event event)
+            {
+                phases.add(event);
+            }
+            
+            @Override
+            public void onDecided(Event event)
+            {
+                decisions.add(event);
+            }
+        };
+        // registered only in this test instance.
+        j.jenkins.getExtensionList(LabelEvaluationListener.class).add(listener);
+        
+        FreeStyleProject p = j.createFreeStyleProject();
+        p.addProperty(new GroovyLabelAssignmentProperty(
+                new SecureGroovyScript("return (currentJob != null) ? \"test1\" : \"test2\";", true, Collections.<ClasspathEntry>emptyList()),
+                false,
+                false,
+                false,
+                0,
+                null,
+                false,
+                null,
+                null,
+                null
+        ));
+        assertBuiltOn(slave1, p.scheduleBuild2(0).get(BUILD_TIMEOUT, TimeUnit.MILLISECONDS));
+        
+        assertEquals(1, decisions.size());
+        LabelEvaluationListener.Event decision = decisions.get(0);
+        assertEquals(p.getFullName(), decision.getJobName());
+        assertNull(decision.getCombination());
+        assertEquals("test1", decision.getLabelString());
+        assertEquals(LabelEvaluationListener.Outcome.ASSIGNED, decision.getOutcome());
+        
+        List<LabelAssignmentMetrics.Phase> phaseNames = new ArrayList<LabelAssignmentMetrics.Phase>();
+        for(LabelEvaluationListener.Event phase: phases)
+        {
+            assertEquals(p.getFullName(), phase.getJobName());
+            phaseNames.add(phase.getPhase());
+        }
+        assertTrue(phaseNames.contains(LabelAssignmentMetrics.Phase.COMPILE));
+        assertTrue(phaseNames.contains(LabelAssignmentMetrics.Phase.RUN));
+        assertTrue(phaseNames.contains(LabelAssignmentMetrics.Phase.PARSE));
+    }
+    
+    @Test
+    public void testTimeoutWithHungScripts() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<String> hung = new Callable<String>() {
+            public String call() throws Exception
+            {
+                // ignores interruption.
+                while(release.getCount() > 0)
+                {
+                    try
+                    {
+                        release.await();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        // continue.
+                    }
+                }
+                return "hung";
+            }
+        };
+        try
+        {
+            int abandoned = LabelEvaluationExecutor.getAbandonedCount();
+            for(int i = 0; i < LabelEvaluationExecutor.POOL_SIZE + 2; ++i)
+            {
+                try
+                {
+                    LabelEvaluationExecutor.callWithTimeout(hung, 100);
+                    fail();
+                }
+                catch(LabelScriptTimeoutException e)
+                {
+                    // expected.
+                }
+            }
+            assertEquals(abandoned + LabelEvaluationExecutor.POOL_SIZE + 2, LabelEvaluationExecutor.getAbandonedCount());
+            
+            // not blocked by hung scripts.
+            assertEquals("ok", LabelEvaluationExecutor.callWithTimeout(new Callable<String>() {
+                public String call() throws Exception
+                {
+                    Thread.sleep(500);
+                    return "ok";
+                }
+            }, 2000));
+        }
+        finally
+        {
+            release.countDown();
+        }
+    }
+    
     @Bug(30135)
     @Test
     public void testLabelIsOnceRemoved() throws Exception